@@ -0,0 +1,57 @@
+package behnke19.imageTagging;
+
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing an image for the API. Image content is served from /images/{id}/content now, so the inline case
+ * rebuilds the old response shape where the bytes were part of the image JSON as base64.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageJsonBenchmark {
+
+    @Param({"65536", "1048576"})
+    int contentSize;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Image image;
+    private InlineImage inlineImage;
+
+    record InlineImage(@JsonUnwrapped Image image, byte[] imageContent) {}
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        image = new Image("benchmark");
+        image.setContentHash("9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08");
+        image.setContentLength((long) contentSize);
+        image.setContentType("image/jpeg");
+        image.setDetectionStatus(DetectionStatus.COMPLETE);
+        for (int i = 0; i < 20; i++) {
+            image.addDetectedObject(new Tag(ImaggaResponses.tagName(i)), 100 - i * 3.5f);
+        }
+        byte[] content = new byte[contentSize];
+        random.nextBytes(content);
+        inlineImage = new InlineImage(image, content);
+    }
+
+    @Benchmark
+    public byte[] withoutContent() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(image);
+    }
+
+    @Benchmark
+    public byte[] withInlineContent() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(inlineImage);
+    }
+}
@@ -0,0 +1,54 @@
+package behnke19.imageTagging;
+
+import java.time.Duration;
+import java.util.Random;
+
+/**
+ * Synthetic imagga data shared by the benchmarks.
+ */
+final class ImaggaResponses {
+
+    private ImaggaResponses() {}
+
+    /**
+     * Build a tags response shaped like the ones imagga sends: tags sorted by descending confidence, each with the
+     * tag name keyed by language.
+     * @param tagCount the number of tags in the response
+     * @param seed seed for the confidences
+     * @return the response body
+     */
+    static String tagsResponse(int tagCount, long seed) {
+        Random random = new Random(seed);
+        StringBuilder json = new StringBuilder("{\"result\":{\"tags\":[");
+        double confidence = 100;
+        for (int i = 0; i < tagCount; i++) {
+            confidence -= random.nextDouble() * (100.0 / tagCount);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"confidence\":").append(Math.max(confidence, 0.01))
+                    .append(",\"tag\":{\"en\":\"").append(tagName(i)).append("\"}}");
+        }
+        return json.append("]},\"status\":{\"text\":\"\",\"type\":\"success\"}}").toString();
+    }
+
+    /**
+     * @return a readable, unique tag name for the given rank
+     */
+    static String tagName(int rank) {
+        return "tag-" + Integer.toString(rank, 36);
+    }
+
+    /**
+     * @return the default imagga settings
+     */
+    static ImaggaProperties properties() {
+        return new ImaggaProperties(
+                "http://localhost/v2/tags", "http://localhost/v2/uploads", 30f,
+                new ImaggaProperties.RateLimit(2, 5, Duration.ofSeconds(30), Duration.ofSeconds(2)),
+                new ImaggaProperties.Concurrency(4, 1, 16),
+                new ImaggaProperties.Timeouts(Duration.ofSeconds(5), Duration.ofSeconds(30)),
+                new ImaggaProperties.Retry(3, Duration.ofMillis(200), Duration.ofSeconds(5)),
+                new ImaggaProperties.CircuitBreaker(5, Duration.ofSeconds(30)));
+    }
+}
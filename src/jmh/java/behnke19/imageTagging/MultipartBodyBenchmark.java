@@ -0,0 +1,86 @@
+package behnke19.imageTagging;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the multipart upload body and draining its publisher the way the http client does, from memory and from
+ * a stored file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultipartBodyBenchmark {
+
+    @Param({"65536", "1048576", "8388608"})
+    int contentSize;
+
+    private byte[] content;
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        content = new byte[contentSize];
+        new Random(42).nextBytes(content);
+        file = Files.createTempFile("multipart-benchmark", ".jpg");
+        Files.write(file, content);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long fromBytes() {
+        return drain(new MultipartBody().addFile("image", "image", content).publisher());
+    }
+
+    @Benchmark
+    public long fromFile() throws IOException {
+        return drain(new MultipartBody().addFile("image", "image", file).publisher());
+    }
+
+    /**
+     * @return the number of bytes published
+     */
+    private static long drain(HttpRequest.BodyPublisher publisher) {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        publisher.subscribe(new Flow.Subscriber<>() {
+            private long bytes;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                bytes += item.remaining();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(bytes);
+            }
+        });
+        return done.join();
+    }
+}
@@ -0,0 +1,65 @@
+package behnke19.imageTagging;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Type-ahead behind GET /tags?prefix=. Compares the trie's best first search with taking the range of a sorted map
+ * and sorting every match by count. Short prefixes match most of the vocabulary so they are the interesting case.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagAutocompleteBenchmark {
+    private static final int LIMIT = 10;
+
+    @Param({"2000", "200000"})
+    int vocabulary;
+
+    @Param({"", "c", "ca"})
+    String prefix;
+
+    private TagTrie trie;
+    private TreeMap<String, Integer> sorted;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        trie = new TagTrie();
+        sorted = new TreeMap<>();
+        while (sorted.size() < vocabulary) {
+            StringBuilder name = new StringBuilder();
+            int length = 3 + random.nextInt(10);
+            for (int i = 0; i < length; i++) {
+                name.append((char) ('a' + random.nextInt(26)));
+            }
+            // zipf-like counts, a few tags are on most images
+            int count = (int) (100000 / (1 + random.nextInt(vocabulary)));
+            sorted.put(name.toString(), count);
+            trie.put(name.toString(), count);
+        }
+    }
+
+    @Benchmark
+    public List<TagCount> trie() {
+        return trie.complete(prefix, LIMIT);
+    }
+
+    @Benchmark
+    public List<TagCount> sortedMapRange() {
+        List<TagCount> matches = new ArrayList<>();
+        sorted.subMap(prefix, prefix + Character.MAX_VALUE)
+                .forEach((name, count) -> matches.add(new TagCount(name, count)));
+        matches.sort(Comparator.comparingLong(TagCount::count).reversed());
+        return matches.subList(0, Math.min(LIMIT, matches.size()));
+    }
+}
@@ -0,0 +1,109 @@
+package behnke19.imageTagging;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AND filter behind GET /images?objects=. Compares the tag index intersection the controller uses now with the
+ * old approach of loading every image that has any of the tags and checking each one with containsAll.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagFilterBenchmark {
+    private static final int VOCABULARY = 2000;
+    private static final int TAGS_PER_IMAGE = 15;
+
+    @Param({"100000"})
+    int imageCount;
+
+    /**
+     * uniform: every tag is equally likely. zipf: a few tags like "outdoor" are on most images and the rest are
+     * rare, which is closer to what imagga returns.
+     */
+    @Param({"uniform", "zipf"})
+    String distribution;
+
+    /**
+     * common: the query tags are among the most frequent. mixed: one frequent tag and one rare one.
+     */
+    @Param({"common", "mixed"})
+    String query;
+
+    private TagIndex index;
+    private List<Set<String>> imageTags;
+    private List<String> objects;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        double[] cumulative = cumulativeWeights();
+        index = new TagIndex(null);
+        imageTags = new ArrayList<>(imageCount);
+        for (long id = 1; id <= imageCount; id++) {
+            Set<String> tags = new LinkedHashSet<>();
+            while (tags.size() < TAGS_PER_IMAGE) {
+                tags.add(ImaggaResponses.tagName(sample(cumulative, random)));
+            }
+            imageTags.add(tags);
+            index.onImageSaved(new ImageSavedEvent(id, List.copyOf(tags)));
+        }
+        objects = "common".equals(query)
+                ? List.of(ImaggaResponses.tagName(0), ImaggaResponses.tagName(1))
+                : List.of(ImaggaResponses.tagName(0), ImaggaResponses.tagName(VOCABULARY / 2));
+    }
+
+    @Benchmark
+    public long[] tagIndex() {
+        return index.findContainingAll(objects);
+    }
+
+    @Benchmark
+    public List<Long> scanWithContainsAll() {
+        // what the repository query and controller loop used to do: any image with one of the tags is a candidate,
+        // then each candidate is checked for all of them
+        List<Long> matches = new ArrayList<>();
+        for (int i = 0; i < imageTags.size(); i++) {
+            Set<String> tags = imageTags.get(i);
+            boolean candidate = false;
+            for (String object : objects) {
+                if (tags.contains(object)) {
+                    candidate = true;
+                    break;
+                }
+            }
+            if (candidate && new HashSet<>(tags).containsAll(objects)) {
+                matches.add(i + 1L);
+            }
+        }
+        return matches;
+    }
+
+    private double[] cumulativeWeights() {
+        double[] cumulative = new double[VOCABULARY];
+        double total = 0;
+        for (int rank = 0; rank < VOCABULARY; rank++) {
+            total += "zipf".equals(distribution) ? 1.0 / (rank + 1) : 1.0;
+            cumulative[rank] = total;
+        }
+        for (int rank = 0; rank < VOCABULARY; rank++) {
+            cumulative[rank] /= total;
+        }
+        return cumulative;
+    }
+
+    private static int sample(double[] cumulative, Random random) {
+        int rank = java.util.Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(rank < 0 ? -rank - 1 : rank, cumulative.length - 1);
+    }
+}
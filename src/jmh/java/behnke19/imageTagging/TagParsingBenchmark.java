@@ -0,0 +1,58 @@
+package behnke19.imageTagging;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing imagga tags responses of different sizes. The streaming decoder the service uses is compared with the
+ * way responses used to be read, into a String and then a tree of maps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagParsingBenchmark {
+
+    @Param({"10", "50", "200", "500"})
+    int tagCount;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private ImaggaResponseDecoder decoder;
+    private byte[] response;
+
+    @Setup
+    public void setup() {
+        decoder = new ImaggaResponseDecoder(objectMapper);
+        response = ImaggaResponses.tagsResponse(tagCount, 42).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public List<DetectedTag> streamingDecoder() throws Exception {
+        return decoder.decodeTags(new ByteArrayInputStream(response), 0f);
+    }
+
+    @Benchmark
+    public List<DetectedTag> stringAndMaps() throws Exception {
+        String json = new String(response, StandardCharsets.UTF_8);
+        Map<String, Object> responseMap = objectMapper.readValue(json, HashMap.class);
+        Map<String, Object> resultMap = (Map<String, Object>) responseMap.get("result");
+        List<DetectedTag> detectedTags = new ArrayList<>();
+        List<Map<String, Object>> tagsList = (List<Map<String, Object>>) resultMap.get("tags");
+        for (Map<String, Object> tag : tagsList) {
+            Map<String, Object> tagMap = (Map<String, Object>) tag.get("tag");
+            Number confidence = (Number) tag.get("confidence");
+            detectedTags.add(new DetectedTag((String) tagMap.get("en"), confidence.floatValue()));
+        }
+        return detectedTags;
+    }
+}
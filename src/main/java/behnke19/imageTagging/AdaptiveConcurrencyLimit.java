@@ -0,0 +1,153 @@
+package behnke19.imageTagging;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many calls are in flight, adjusting the limit the way TCP adjusts its congestion window. Every
+ * successful call raises the limit by 1/limit, so it grows by about one per round of calls, and every call that
+ * finds the server overloaded halves it. Callers can wait for a slot on their thread or through a future.
+ */
+class AdaptiveConcurrencyLimit {
+    private final int min;
+    private final int max;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    // futures of callers waiting without a thread, in the order they arrived
+    private final Deque<CompletableFuture<Boolean>> waiters = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+
+    AdaptiveConcurrencyLimit(int initial, int min, int max) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("The concurrency bounds must satisfy 1 <= min <= max");
+        }
+        this.min = min;
+        this.max = max;
+        this.limit = Math.max(min, Math.min(max, initial));
+    }
+
+    /**
+     * Wait for a free slot. Every successful acquire must be followed by one of the release methods.
+     * @param maxWait the longest the caller is willing to wait
+     * @return false if no slot was free within maxWait
+     * @throws InterruptedException
+     */
+    boolean acquire(Duration maxWait) throws InterruptedException {
+        long remaining = maxWait.toNanos();
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = released.awaitNanos(remaining);
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for a free slot without holding a thread. Every acquire that completes with true must be followed by one
+     * of the release methods.
+     * @param maxWait the longest the caller is willing to wait
+     * @return completes with false if no slot was free within maxWait
+     */
+    CompletableFuture<Boolean> acquireAsync(Duration maxWait) {
+        CompletableFuture<Boolean> waiter = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return CompletableFuture.completedFuture(true);
+            }
+            if (maxWait.isZero() || maxWait.isNegative()) {
+                return CompletableFuture.completedFuture(false);
+            }
+            waiters.add(waiter);
+        } finally {
+            lock.unlock();
+        }
+        CompletableFuture.delayedExecutor(maxWait.toNanos(), TimeUnit.NANOSECONDS).execute(() -> {
+            boolean timedOut;
+            lock.lock();
+            try {
+                // still queued means no slot was handed to it
+                timedOut = waiters.remove(waiter);
+            } finally {
+                lock.unlock();
+            }
+            if (timedOut) {
+                waiter.complete(false);
+            }
+        });
+        return waiter;
+    }
+
+    /**
+     * Release a slot after the server handled the call without complaint.
+     */
+    void onSuccess() {
+        release(Math.min(max, limit + 1 / limit));
+    }
+
+    /**
+     * Release a slot after the server pushed back with a 429 or 503 or timed out.
+     */
+    void onOverload() {
+        release(Math.max(min, limit / 2));
+    }
+
+    /**
+     * Release a slot without changing the limit, for calls that failed in a way that says nothing about load.
+     */
+    void onIgnore() {
+        release(limit);
+    }
+
+    int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(double newLimit) {
+        List<CompletableFuture<Boolean>> granted = new ArrayList<>();
+        lock.lock();
+        try {
+            inFlight--;
+            limit = newLimit;
+            while (!waiters.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                granted.add(waiters.poll());
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        // completed outside the lock since the waiters carry on with their calls on this thread
+        granted.forEach(waiter -> waiter.complete(true));
+    }
+}
@@ -0,0 +1,219 @@
+package behnke19.imageTagging;
+
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Ingests many images in one go. Items are prepared and run through object detection with bounded parallelism,
+ * and the finished images are saved in chunks so hibernate can batch the inserts. A chunk is saved once it is full or
+ * once its first item has waited for the flush interval, so results keep flowing while detection is slow. Results
+ * are reported per item as each chunk is committed, which is not necessarily the order the items were submitted in.
+ */
+@Service
+class BatchIngestionService {
+    private static final Logger log = LoggerFactory.getLogger(BatchIngestionService.class);
+    // how often the calling thread checks for finished items while it waits
+    private static final long POLL_MILLIS = 50;
+
+    private final ImageRepository repository;
+    private final ImageTaggingService taggingService;
+    private final TransactionTemplate transactionTemplate;
+    private final int concurrency;
+    private final int chunkSize;
+    private final long flushIntervalNanos;
+    private final ObservationRegistry observationRegistry;
+
+    BatchIngestionService(ImageRepository repository, ImageTaggingService taggingService,
+                          TransactionTemplate transactionTemplate,
+                          @Value("${imageTagging.batch.concurrency:8}") int concurrency,
+                          @Value("${imageTagging.batch.chunk-size:50}") int chunkSize,
+                          @Value("${imageTagging.batch.flush-interval:250ms}") Duration flushInterval,
+                          ObservationRegistry observationRegistry) {
+        this.repository = repository;
+        this.taggingService = taggingService;
+        this.transactionTemplate = transactionTemplate;
+        this.concurrency = concurrency;
+        this.chunkSize = chunkSize;
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.observationRegistry = observationRegistry;
+    }
+
+    /**
+     * An item to ingest. Preparing it builds the unsaved image, which may throw if the item is unusable.
+     */
+    record BatchItem(int index, Callable<Image> prepare) {}
+
+    /**
+     * The outcome for one item of a batch.
+     */
+    record BatchItemResult(int index, Long imageId, DetectionStatus detectionStatus, List<String> detectedObjects,
+                           String error) {
+
+        static BatchItemResult failed(int index, String error) {
+            return new BatchItemResult(index, null, null, null, error);
+        }
+    }
+
+    /**
+     * Ingest every item. This blocks until the last item has been saved.
+     * @param items the items to ingest, read lazily so they can come from a stream
+     * @param detectObjects if true, run object detection on each image before saving it
+     * @param results called with each result on the calling thread
+     */
+    void ingest(Iterator<BatchItem> items, boolean detectObjects, Consumer<BatchItemResult> results)
+            throws InterruptedException {
+        BlockingQueue<Prepared> completed = new LinkedBlockingQueue<>();
+        Semaphore permits = new Semaphore(concurrency);
+        Chunk chunk = new Chunk();
+        int pending = 0;
+        // the items run on their own threads so hand them the request's observation to keep them in its trace
+        Observation parent = observationRegistry.getCurrentObservation();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (items.hasNext()) {
+                BatchItem item = items.next();
+                // wait for a free slot, saving whatever finished in the meantime so results keep flowing
+                while (!permits.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    pending -= drain(completed, chunk, results, false);
+                }
+                pending++;
+                executor.execute(() -> {
+                    // every item must post a result, the loop below waits until it has one for each
+                    Prepared prepared;
+                    try {
+                        prepared = Observation.createNotStarted("imageTagging.batch.item", observationRegistry)
+                                .parentObservation(parent)
+                                .contextualName("prepare batch item")
+                                .observe(() -> prepare(item, detectObjects));
+                    } catch (Throwable ex) {
+                        log.warn("Could not prepare batch item {}", item.index(), ex);
+                        prepared = new Prepared(item.index(), null, "Error processing image.");
+                    }
+                    try {
+                        completed.add(prepared);
+                    } finally {
+                        permits.release();
+                    }
+                });
+                pending -= drain(completed, chunk, results, false);
+            }
+            while (pending > 0) {
+                Prepared next = completed.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (next != null) {
+                    chunk.add(next);
+                    pending--;
+                }
+                pending -= drain(completed, chunk, results, false);
+            }
+            drain(completed, chunk, results, true);
+        }
+    }
+
+    private Prepared prepare(BatchItem item, boolean detectObjects) {
+        Image image;
+        try {
+            image = item.prepare().call();
+        } catch (Exception ex) {
+            return new Prepared(item.index(), null, ex.getMessage() == null ? ex.toString() : ex.getMessage());
+        }
+        if (image == null) {
+            return new Prepared(item.index(), null, "No image to save.");
+        }
+        if (!detectObjects) {
+            image.setDetectionStatus(DetectionStatus.NONE);
+            return new Prepared(item.index(), image, null);
+        }
+        try {
+            // a batch streams its results as they finish, its items can wait their turn for imagga
+            taggingService.detectObjectsInImage(image, ImaggaCallScheduler.Caller.BACKGROUND);
+            image.setDetectionStatus(DetectionStatus.COMPLETE);
+            return new Prepared(item.index(), image, null);
+        } catch (Exception ex) {
+            log.warn("Object detection failed for batch item {}", item.index(), ex);
+            // keep the image, it can be tagged again later
+            image.setDetectionStatus(DetectionStatus.FAILED);
+            return new Prepared(item.index(), image, "Error processing image.");
+        }
+    }
+
+    /**
+     * Move finished items into the chunk and save it once it is full or has waited long enough, or whatever is left
+     * when flushing.
+     * @return the number of items taken off the queue
+     */
+    private int drain(BlockingQueue<Prepared> completed, Chunk chunk, Consumer<BatchItemResult> results,
+                      boolean flush) {
+        int drained = 0;
+        Prepared next;
+        while ((next = completed.poll()) != null) {
+            chunk.add(next);
+            drained++;
+        }
+        if (chunk.isFull() || chunk.isDue() || (flush && !chunk.items.isEmpty())) {
+            save(chunk.items, results);
+            chunk.items.clear();
+        }
+        return drained;
+    }
+
+    private void save(List<Prepared> chunk, Consumer<BatchItemResult> results) {
+        List<Image> images = chunk.stream().filter(prepared -> prepared.image() != null).map(Prepared::image).toList();
+        boolean saved;
+        try {
+            transactionTemplate.executeWithoutResult(status -> repository.saveAll(images));
+            saved = true;
+        } catch (RuntimeException ex) {
+            // the rest of the batch carries on, only the items of this chunk are reported as failed
+            log.warn("Saving a chunk of {} batch items failed", images.size(), ex);
+            saved = false;
+        }
+        for (Prepared prepared : chunk) {
+            Image image = prepared.image();
+            if (image == null) {
+                results.accept(BatchItemResult.failed(prepared.index(), prepared.error()));
+            } else if (!saved) {
+                results.accept(BatchItemResult.failed(prepared.index(), "Error saving image."));
+            } else {
+                results.accept(new BatchItemResult(prepared.index(), image.getId(), image.getDetectionStatus(),
+                        image.getDetectedObjects(), prepared.error()));
+            }
+        }
+    }
+
+    private record Prepared(int index, Image image, String error) {}
+
+    /**
+     * The finished items waiting to be saved, with the time the oldest of them finished.
+     */
+    private final class Chunk {
+        private final List<Prepared> items = new ArrayList<>(chunkSize);
+        private long startedAt;
+
+        void add(Prepared prepared) {
+            if (items.isEmpty()) {
+                startedAt = System.nanoTime();
+            }
+            items.add(prepared);
+        }
+
+        boolean isFull() {
+            return items.size() >= chunkSize;
+        }
+
+        boolean isDue() {
+            return !items.isEmpty() && System.nanoTime() - startedAt >= flushIntervalNanos;
+        }
+    }
+}
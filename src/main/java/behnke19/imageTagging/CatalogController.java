@@ -0,0 +1,87 @@
+package behnke19.imageTagging;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class CatalogController {
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    private final ImageCatalogStreamer catalogStreamer;
+    private final ImageCatalogImporter catalogImporter;
+
+    CatalogController(ImageCatalogStreamer catalogStreamer, ImageCatalogImporter catalogImporter) {
+        this.catalogStreamer = catalogStreamer;
+        this.catalogImporter = catalogImporter;
+    }
+
+    /**
+     * GET the whole catalog as newline delimited JSON, one image with its tags per line in id order, for moving it to
+     * another environment with POST /import. The response is gzipped when the client accepts it.
+     * @param content 'hash' to refer to stored files by their hash, 'inline' to include them base64 encoded or 'none'
+     *                to leave them out (optional, defaults to hash)
+     * @param acceptEncoding the Accept-Encoding header (optional)
+     * @return
+     */
+    @GetMapping(value = "/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    ResponseEntity<StreamingResponseBody> exportCatalog(
+            @RequestParam(value = "content", required = false) String content,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        ImageCatalogStreamer.ContentMode contentMode;
+        try {
+            contentMode = content == null ? ImageCatalogStreamer.ContentMode.HASH
+                    : ImageCatalogStreamer.ContentMode.valueOf(content.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "content must be 'none', 'hash' or 'inline'");
+        }
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.toLowerCase(Locale.ROOT).contains("gzip")) {
+            return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(out -> {
+                GZIPOutputStream gzip = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+                catalogStreamer.export(gzip, contentMode);
+                gzip.finish();
+            });
+        }
+        return response.body(out -> catalogStreamer.export(out, contentMode));
+    }
+
+    /**
+     * POST a catalog written by GET /export. Images keep their ids and tags, and images whose id is already taken
+     * are skipped, so an import that was cut short can simply be sent again. Send Content-Encoding: gzip for a
+     * gzipped catalog.
+     * @param request
+     * @return the number of images imported and skipped, and why any lines were rejected
+     * @throws IOException
+     */
+    @PostMapping(value = "/import", consumes = MediaType.APPLICATION_NDJSON_VALUE,
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    ImageCatalogImporter.ImportResult importCatalog(HttpServletRequest request) throws IOException {
+        InputStream in = request.getInputStream();
+        String encoding = request.getHeader(HttpHeaders.CONTENT_ENCODING);
+        if (encoding != null && encoding.toLowerCase(Locale.ROOT).contains("gzip")) {
+            in = new GZIPInputStream(in, GZIP_BUFFER_SIZE);
+        }
+        try {
+            return catalogImporter.importAll(in);
+        } catch (JsonProcessingException ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The catalog is not valid JSON: "
+                    + ex.getOriginalMessage(), ex);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package behnke19.imageTagging;
+
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.util.Locale;
+
+/**
+ * Schema checks used by the startup migrations. Names are looked up in both cases since databases differ in how
+ * they fold unquoted identifiers.
+ */
+final class DatabaseSchema {
+
+    private DatabaseSchema() {}
+
+    static boolean tableExists(JdbcTemplate jdbcTemplate, String table) {
+        return Boolean.TRUE.equals(jdbcTemplate.execute((ConnectionCallback<Boolean>) connection -> {
+            DatabaseMetaData metaData = connection.getMetaData();
+            for (String name : new String[]{table.toLowerCase(Locale.ROOT), table.toUpperCase(Locale.ROOT)}) {
+                try (ResultSet tables = metaData.getTables(connection.getCatalog(), null, name,
+                        new String[]{"TABLE"})) {
+                    if (tables.next()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }));
+    }
+
+    static boolean columnExists(JdbcTemplate jdbcTemplate, String table, String column) {
+        return Boolean.TRUE.equals(jdbcTemplate.execute((ConnectionCallback<Boolean>) connection -> {
+            DatabaseMetaData metaData = connection.getMetaData();
+            String[][] names = {
+                    {table.toLowerCase(Locale.ROOT), column.toLowerCase(Locale.ROOT)},
+                    {table.toUpperCase(Locale.ROOT), column.toUpperCase(Locale.ROOT)}};
+            for (String[] name : names) {
+                try (ResultSet columns = metaData.getColumns(connection.getCatalog(), null, name[0], name[1])) {
+                    if (columns.next()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }));
+    }
+}
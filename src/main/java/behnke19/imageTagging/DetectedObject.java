@@ -0,0 +1,50 @@
+package behnke19.imageTagging;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import jakarta.persistence.*;
+
+import java.util.Objects;
+
+/**
+ * An object detected in an image along with imagga's confidence in it, stored as a row of image_tag.
+ */
+@Embeddable
+public class DetectedObject {
+    @ManyToOne(optional = false)
+    @JoinColumn(name = "tag_id")
+    private Tag tag;
+
+    @Column(nullable = false)
+    private float confidence;
+
+    DetectedObject() {}
+
+    DetectedObject(Tag tag, float confidence) {
+        this.tag = tag;
+        this.confidence = confidence;
+    }
+
+    @JsonIgnore
+    Tag getTag() {
+        return tag;
+    }
+
+    public String getName() {
+        return tag.getName();
+    }
+
+    public float getConfidence() {
+        return confidence;
+    }
+
+    // an image can only contain each tag once, so the tag alone identifies the detection
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof DetectedObject detected && Objects.equals(getName(), detected.getName());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(getName());
+    }
+}
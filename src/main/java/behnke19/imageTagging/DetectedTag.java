@@ -0,0 +1,12 @@
+package behnke19.imageTagging;
+
+import jakarta.persistence.Embeddable;
+
+/**
+ * A tag as reported by imagga, before it is resolved against the tag dictionary.
+ * @param name the english name of the object
+ * @param confidence imagga's confidence in the tag from 0 to 100
+ */
+@Embeddable
+record DetectedTag(String name, float confidence) {
+}
@@ -0,0 +1,164 @@
+package behnke19.imageTagging;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Two level cache of imagga results so the same image is never tagged twice. The first level is a size bounded
+ * in-memory cache and the second level is the detection_cache table, which keeps results across restarts.
+ * Images are keyed by the SHA-256 of their content or by their normalized url.
+ */
+@Component
+class DetectionCache {
+    private final DetectionCacheRepository repository;
+    private final Cache<String, List<DetectedTag>> memory;
+    private final Counter memoryHits;
+    private final Counter databaseHits;
+    private final Counter misses;
+
+    DetectionCache(DetectionCacheRepository repository, MeterRegistry meterRegistry,
+                   @Value("${imageTagging.detection-cache.max-entries:10000}") long maxEntries) {
+        this.repository = repository;
+        this.memory = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, memory, "detection");
+        this.memoryHits = Counter.builder("imageTagging.detection.cache")
+                .tag("result", "memory-hit").register(meterRegistry);
+        this.databaseHits = Counter.builder("imageTagging.detection.cache")
+                .tag("result", "database-hit").register(meterRegistry);
+        this.misses = Counter.builder("imageTagging.detection.cache")
+                .tag("result", "miss").register(meterRegistry);
+    }
+
+    /**
+     * Look up the tags imagga found for an image.
+     * @param key the cache key from {@link #keyFor(Image)}
+     * @return the tags if the image has been tagged before
+     */
+    Optional<List<DetectedTag>> get(String key) {
+        List<DetectedTag> detectedTags = memory.getIfPresent(key);
+        if (detectedTags != null) {
+            memoryHits.increment();
+            return Optional.of(detectedTags);
+        }
+        Optional<DetectionCacheEntry> entry = repository.findById(key);
+        if (entry.isPresent()) {
+            databaseHits.increment();
+            detectedTags = List.copyOf(entry.get().getDetectedTags());
+            memory.put(key, detectedTags);
+            return Optional.of(detectedTags);
+        }
+        misses.increment();
+        return Optional.empty();
+    }
+
+    /**
+     * Remember the tags for an image in both levels of the cache.
+     * @param key the cache key from {@link #keyFor(Image)}
+     * @param detectedTags the tags imagga found in the image
+     */
+    void put(String key, List<DetectedTag> detectedTags) {
+        List<DetectedTag> copy = List.copyOf(detectedTags);
+        memory.put(key, copy);
+        try {
+            repository.save(new DetectionCacheEntry(key, copy));
+        } catch (DataIntegrityViolationException ex) {
+            // another request tagged the same image at the same time and already saved the result
+        }
+    }
+
+    /**
+     * Remember the tags for an image unless the cache already has a result for it.
+     * @param key the cache key from {@link #keyFor(Image)}
+     * @param detectedTags the tags found in the image
+     */
+    void putIfAbsent(String key, List<DetectedTag> detectedTags) {
+        if (memory.getIfPresent(key) == null && !repository.existsById(key)) {
+            put(key, detectedTags);
+        }
+    }
+
+    /**
+     * Build the cache key for an image from its url or its content.
+     * @param image
+     * @return
+     */
+    static String keyFor(Image image) {
+        return keyFor(image.getImageUrl(), image.getContentHash());
+    }
+
+    /**
+     * Build the cache key for an image that isn't loaded.
+     * @param imageUrl the url of the image, null if it was uploaded as a file
+     * @param contentHash the hash of the stored file
+     * @return
+     */
+    static String keyFor(String imageUrl, String contentHash) {
+        if (imageUrl != null) {
+            return "url:" + normalizeUrl(imageUrl);
+        }
+        return "sha256:" + contentHash;
+    }
+
+    /**
+     * Normalize a url so trivially different spellings of the same address share a cache entry. The scheme and host
+     * are case-insensitive and the fragment is never sent to the server so it is dropped.
+     */
+    static String normalizeUrl(String url) {
+        String trimmed = url.trim();
+        try {
+            URI uri = new URI(trimmed).normalize();
+            if (uri.getScheme() == null || uri.getHost() == null) {
+                return trimmed;
+            }
+            int port = uri.getPort();
+            if (("http".equalsIgnoreCase(uri.getScheme()) && port == 80)
+                    || ("https".equalsIgnoreCase(uri.getScheme()) && port == 443)) {
+                port = -1;
+            }
+            StringBuilder normalized = new StringBuilder();
+            normalized.append(uri.getScheme().toLowerCase(Locale.ROOT)).append("://");
+            if (uri.getRawUserInfo() != null) {
+                normalized.append(uri.getRawUserInfo()).append('@');
+            }
+            normalized.append(uri.getHost().toLowerCase(Locale.ROOT));
+            if (port != -1) {
+                normalized.append(':').append(port);
+            }
+            normalized.append(uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath());
+            if (uri.getRawQuery() != null) {
+                normalized.append('?').append(uri.getRawQuery());
+            }
+            return normalized.toString();
+        } catch (Exception ex) {
+            // not something we can parse, fall back to the url as given
+            return trimmed;
+        }
+    }
+
+    static String sha256(byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(content));
+        } catch (NoSuchAlgorithmException ex) {
+            // every JVM is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+}
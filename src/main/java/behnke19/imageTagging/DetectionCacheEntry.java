@@ -0,0 +1,38 @@
+package behnke19.imageTagging;
+
+import jakarta.persistence.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A detection result that has already been paid for. Entries are keyed by the hash of the image content or by the
+ * normalized image url so they survive restarts.
+ */
+@Entity
+@Table(name = "detection_cache")
+class DetectionCacheEntry {
+    @Id
+    @Column(length = 600)
+    private String cacheKey;
+
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "detection_cache_tags", joinColumns = @JoinColumn(name = "cache_key"))
+    @OrderColumn
+    private List<DetectedTag> detectedTags;
+
+    DetectionCacheEntry() {}
+
+    DetectionCacheEntry(String cacheKey, List<DetectedTag> detectedTags) {
+        this.cacheKey = cacheKey;
+        this.detectedTags = new ArrayList<>(detectedTags);
+    }
+
+    String getCacheKey() {
+        return cacheKey;
+    }
+
+    List<DetectedTag> getDetectedTags() {
+        return detectedTags;
+    }
+}
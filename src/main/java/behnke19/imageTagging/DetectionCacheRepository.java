@@ -0,0 +1,6 @@
+package behnke19.imageTagging;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+interface DetectionCacheRepository extends JpaRepository<DetectionCacheEntry, String> {
+}
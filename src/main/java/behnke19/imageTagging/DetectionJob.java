@@ -0,0 +1,13 @@
+package behnke19.imageTagging;
+
+import java.util.List;
+
+/**
+ * Status of an object detection job. The job id is the id of the image being processed.
+ */
+public record DetectionJob(Long imageId, DetectionStatus status, List<String> detectedObjects) {
+
+    static DetectionJob of(Image image) {
+        return new DetectionJob(image.getId(), image.getDetectionStatus(), image.getDetectedObjects());
+    }
+}
@@ -0,0 +1,15 @@
+package behnke19.imageTagging;
+
+/**
+ * Lifecycle of object detection for an image.
+ */
+public enum DetectionStatus {
+    /** detection was not requested for the image */
+    NONE,
+    /** detection was requested and is waiting on a worker */
+    PENDING,
+    /** detection finished and the detected objects have been saved */
+    COMPLETE,
+    /** detection was attempted but imagga returned an error */
+    FAILED
+}
@@ -0,0 +1,183 @@
+package behnke19.imageTagging;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs object detection off the request thread. Images are handed to a bounded queue that is drained by a fixed
+ * number of virtual threads, and the detected objects are written back through the repository when imagga responds.
+ * If imagga is unavailable the image stays pending and is queued again once the circuit breaker lets calls through.
+ * Images left pending by a previous run, which nothing is working on any more, are reset at startup so the
+ * re-tagging job can pick them up.
+ * Detection is observed as a child of whatever was current when the image was submitted, usually the upload request,
+ * so its span joins the request's trace.
+ */
+@Component
+class DetectionWorker {
+    private static final Logger log = LoggerFactory.getLogger(DetectionWorker.class);
+
+    private final ImageRepository repository;
+    private final ImageTaggingService taggingService;
+    private final TransactionTemplate transactionTemplate;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledThreadPoolExecutor requeueScheduler;
+    private final int maxRequeues;
+    private final ObservationRegistry observationRegistry;
+
+    DetectionWorker(ImageRepository repository,
+                    ImageTaggingService taggingService,
+                    TransactionTemplate transactionTemplate,
+                    @Value("${imageTagging.detection.queue-capacity:100}") int queueCapacity,
+                    @Value("${imageTagging.detection.concurrency:4}") int concurrency,
+                    @Value("${imageTagging.detection.max-requeues:10}") int maxRequeues,
+                    ObservationRegistry observationRegistry, MeterRegistry meterRegistry) {
+        this.repository = repository;
+        this.taggingService = taggingService;
+        this.transactionTemplate = transactionTemplate;
+        this.maxRequeues = maxRequeues;
+        this.observationRegistry = observationRegistry;
+        // the pool size caps how many imagga calls are in flight and the queue caps how much work can back up behind
+        // them. Once both are full new jobs are rejected instead of piling up in memory.
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                Thread.ofVirtual().name("detection-", 0).factory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.requeueScheduler = new ScheduledThreadPoolExecutor(1,
+                Thread.ofPlatform().name("detection-requeue").daemon().factory());
+
+        Gauge.builder("imageTagging.detection.queue", this, DetectionWorker::getQueueDepth)
+                .description("Images waiting for a detection worker").register(meterRegistry);
+        Gauge.builder("imageTagging.detection.running", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Images being run through detection").register(meterRegistry);
+        Gauge.builder("imageTagging.detection.requeued", requeueScheduler, pool -> pool.getQueue().size())
+                .description("Images waiting for imagga to become available again").register(meterRegistry);
+    }
+
+    /**
+     * Images that were pending when the service last stopped were waiting for a worker or a requeue that is gone, so
+     * they are put back to untagged. This runs before the re-tagging job can resume.
+     */
+    @PostConstruct
+    void resetAbandonedDetections() {
+        Integer reset = transactionTemplate.execute(status -> repository.updateDetectionStatus(
+                DetectionStatus.PENDING, DetectionStatus.NONE));
+        if (reset != null && reset > 0) {
+            log.info("Reset {} images left pending by the last run, the re-tagging job can tag them", reset);
+        }
+    }
+
+    /**
+     * Queue an already saved image for object detection.
+     * @param image the image to process. It must have an id.
+     * @throws RejectedExecutionException if the queue is full
+     */
+    void submit(Image image) {
+        submit(image, 0);
+    }
+
+    private void submit(Image image, int requeues) {
+        Observation parent = observationRegistry.getCurrentObservation();
+        executor.execute(() -> Observation.createNotStarted("imageTagging.detection", observationRegistry)
+                .parentObservation(parent)
+                .contextualName("detect objects")
+                .lowCardinalityKeyValue("mode", "async")
+                .observe(() -> detect(image, requeues)));
+    }
+
+    /**
+     * @return the number of images waiting for a worker
+     */
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    private void detect(Image image, int requeues) {
+        List<DetectedTag> tags = null;
+        try {
+            tags = taggingService.detectTags(image, false, ImaggaCallScheduler.Caller.BACKGROUND);
+        } catch (ImaggaUnavailableException ex) {
+            if (requeues < maxRequeues) {
+                log.info("Imagga is unavailable, retrying image {} in {}", image.getId(), ex.getRetryAfter());
+                requeueScheduler.schedule(() -> requeue(image, requeues + 1),
+                        ex.getRetryAfter().toMillis(), TimeUnit.MILLISECONDS);
+                return;
+            }
+            log.warn("Giving up on object detection for image {} after {} attempts", image.getId(), requeues + 1);
+        } catch (Exception ex) {
+            log.warn("Object detection failed for image {}", image.getId(), ex);
+        }
+        finish(image.getId(), tags);
+    }
+
+    private void requeue(Image image, int requeues) {
+        try {
+            submit(image, requeues);
+        } catch (RejectedExecutionException ex) {
+            log.warn("Detection queue is full, could not requeue image {}", image.getId());
+            finish(image.getId(), null);
+        }
+    }
+
+    /**
+     * Write the result of detection. The image is read again so the save is checked against its current version
+     * rather than the copy taken at upload, and if the result can't be saved the image is marked failed instead of
+     * being left pending.
+     * @param tags the tags found, null if detection failed
+     */
+    private void finish(Long id, List<DetectedTag> tags) {
+        try {
+            try {
+                apply(id, tags);
+            } catch (OptimisticLockingFailureException ex) {
+                // saved by someone else in the meantime, apply the result on top of their change
+                apply(id, tags);
+            }
+        } catch (RuntimeException ex) {
+            log.warn("Could not save the detected objects of image {}", id, ex);
+            if (tags != null) {
+                try {
+                    apply(id, null);
+                } catch (RuntimeException failed) {
+                    log.error("Could not mark image {} failed, it stays pending until the next startup", id, failed);
+                }
+            }
+        }
+    }
+
+    private void apply(Long id, List<DetectedTag> tags) {
+        transactionTemplate.executeWithoutResult(status -> repository.findById(id).ifPresent(image -> {
+            if (tags == null) {
+                image.setDetectionStatus(DetectionStatus.FAILED);
+            } else {
+                taggingService.replaceDetectedObjects(image, tags);
+                image.setDetectionStatus(DetectionStatus.COMPLETE);
+            }
+            repository.save(image);
+        }));
+    }
+
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        // images waiting to be requeued stay pending until the next startup resets them
+        requeueScheduler.shutdownNow();
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+}
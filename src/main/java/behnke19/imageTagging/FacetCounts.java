@@ -0,0 +1,11 @@
+package behnke19.imageTagging;
+
+import java.util.List;
+
+/**
+ * Tag counts over the images matching a filter.
+ * @param matching the number of images matching the filter
+ * @param tags the other tags found in those images with the number of matching images each is in, most common first
+ */
+record FacetCounts(long matching, List<TagCount> tags) {
+}
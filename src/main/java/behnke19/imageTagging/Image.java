@@ -1,41 +1,49 @@
 package behnke19.imageTagging;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.BatchSize;
+import org.springframework.data.domain.DomainEvents;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 @Entity
 public class Image {
-    private @Id @GeneratedValue Long id;
+    // ids come from a pooled sequence, hibernate reserves 50 at a time so inserts can be sent to the database in batches
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "image_seq")
+    @SequenceGenerator(name = "image_seq", sequenceName = "image_seq", allocationSize = 50)
+    private Long id;
+    // load the tags for a whole page of images at once instead of one query per image
+    @BatchSize(size = 100)
     @ElementCollection
-    private List<String> detectedObjects;
+    @CollectionTable(name = "image_tag", joinColumns = @JoinColumn(name = "image_id"),
+            uniqueConstraints = @UniqueConstraint(name = "uk_image_tag", columnNames = {"image_id", "tag_id"}),
+            indexes = @Index(name = "idx_image_tag_tag_image", columnList = "tag_id, image_id, confidence"))
+    private Set<DetectedObject> detectedObjects = new HashSet<>();
 
     private String label;
 
+    @Enumerated(EnumType.STRING)
+    private DetectionStatus detectionStatus;
+
     @Column(length = 500)
     private String imageUrl;
 
-    @Basic(fetch = FetchType.LAZY)
-    @Lob
-    @Column(length = 2000000)
-    private byte[] imageContent;
-    // I'm not a big fan of storing the image data like this and the prompts are a little unclear because they say
-    // things like return the image metadata, return the images, return a JSON response including the image data which
-    // all sound like different but similar things to me.
-    //
-    // Initially I was not saving off the url or file content but after rereading the problem, my interpretation is that
-    // we want to persist the actual file contents when a file is provided and also include that data in the JSON
-    // response. Its kind of ugly since it's a giant encoded string in the response but another program could certainly
-    // consume it.
-    //
-    // My real preference would be to save the file content as its own object type that is just referenced by this
-    // image metadata class. Then you could go to another endpoint like /imageContent/fileId to actually download the
-    // file. On the other hand, I could see wanting to have a preview of the image in a UI and having the image
-    // content right away would save an extra API call. Or in the case of a list of images it would save many calls.
-    // These files shouldn't be huge so not being able to stream them isn't a huge issue. The GET images could end up
-    // with a huge payload though if there are many images. That could be resolved with paginated results but that is
-    // out of scope for this project.
+    // the file content lives in the ImageContentStore under this hash and is served from /images/{id}/content so it
+    // isn't loaded with the row or written into every JSON response
+    @Column(length = 64)
+    private String contentHash;
+
+    private Long contentLength;
+
+    private String contentType;
+
+    // difference hash of the stored file for finding near-duplicates, null for urls and files that can't be decoded
+    private Long perceptualHash;
+
+    // bumped on every change to the image or its tags, it's what the ETag of the image's JSON is made from
+    @Version
+    private Long version;
 
     Image() {}
 
@@ -43,6 +51,14 @@ public class Image {
         this.label = label;
     }
 
+    /**
+     * For an image read or written without going through hibernate.
+     */
+    Image(Long id, Long version) {
+        this.id = id;
+        this.version = version;
+    }
+
     public Long getId() {
         return id;
     }
@@ -55,19 +71,35 @@ public class Image {
         this.label = label;
     }
 
+    /**
+     * @return the detected objects along with their confidence, most confident first
+     */
+    public List<DetectedObject> getTags() {
+        List<DetectedObject> tags = new ArrayList<>(detectedObjectSet());
+        tags.sort(Comparator.comparing(DetectedObject::getConfidence).reversed());
+        return tags;
+    }
+
+    /**
+     * @return the names of the detected objects, most confident first
+     */
     public List<String> getDetectedObjects() {
-        if (detectedObjects == null) {
-            detectedObjects = new LinkedList<>();
-        }
-        return detectedObjects;
+        return getTags().stream().map(DetectedObject::getName).toList();
     }
 
-    public void setDetectedObjects(List<String> detectedObjects) {
-        this.detectedObjects = detectedObjects;
+    public void addDetectedObject(Tag tag, float confidence) {
+        detectedObjectSet().add(new DetectedObject(tag, confidence));
     }
 
-    public void addDetectedObject(String detectedObject) {
-        getDetectedObjects().add(detectedObject);
+    public void clearDetectedObjects() {
+        detectedObjectSet().clear();
+    }
+
+    private Set<DetectedObject> detectedObjectSet() {
+        if (detectedObjects == null) {
+            detectedObjects = new HashSet<>();
+        }
+        return detectedObjects;
     }
 
     public String getImageUrl() {
@@ -78,11 +110,59 @@ public class Image {
         this.imageUrl = imageUrl;
     }
 
-    public byte[] getImageContent() {
-        return imageContent;
+    public DetectionStatus getDetectionStatus() {
+        // images saved before detection was tracked have no status
+        if (detectionStatus == null) {
+            return DetectionStatus.NONE;
+        }
+        return detectionStatus;
+    }
+
+    public void setDetectionStatus(DetectionStatus detectionStatus) {
+        this.detectionStatus = detectionStatus;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public Long getContentLength() {
+        return contentLength;
+    }
+
+    public void setContentLength(Long contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    Long getPerceptualHash() {
+        return perceptualHash;
+    }
+
+    void setPerceptualHash(Long perceptualHash) {
+        this.perceptualHash = perceptualHash;
+    }
+
+    Long getVersion() {
+        return version;
     }
 
-    public void setImageContent(byte[] content) {
-        this.imageContent = content;
+    /**
+     * Spring Data publishes these after every save of the image.
+     */
+    @DomainEvents
+    Collection<ImageSavedEvent> domainEvents() {
+        return List.of(new ImageSavedEvent(id, List.copyOf(getDetectedObjects()), perceptualHash));
     }
 }
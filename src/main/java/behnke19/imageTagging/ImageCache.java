@@ -0,0 +1,178 @@
+package behnke19.imageTagging;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Read-through cache of images by id, bounded by the bytes it holds rather than the number of entries. Image
+ * metadata and small stored files are kept in separate tiers so a few large files can't push out the metadata of
+ * many images. Files never change so their tier is never invalidated, while an image is dropped from the metadata
+ * tier once any save of it has been committed.
+ * <p>
+ * Misses are loaded on a virtual thread of their own rather than inside the cache's lock, so a request thread that
+ * is itself virtual isn't pinned to its carrier while it waits for the database.
+ */
+@Component
+class ImageCache {
+    // rough size of an image object with its fields and collection before any strings or tags are counted
+    private static final int IMAGE_OVERHEAD = 256;
+    private static final int TAG_OVERHEAD = 64;
+    private static final int ARRAY_OVERHEAD = 16;
+
+    private final ImageRepository repository;
+    private final ImageContentStore contentStore;
+    private final TransactionTemplate readOnlyTransaction;
+    private final AsyncCache<Long, Image> metadata;
+    private final Cache<String, byte[]> content;
+    private final long maxContentEntryBytes;
+    private final ExecutorService loader = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("image-cache-load-", 0).factory());
+
+    ImageCache(ImageRepository repository, ImageContentStore contentStore, TransactionTemplate transactionTemplate,
+               MeterRegistry meterRegistry,
+               @Value("${imageTagging.image-cache.metadata-bytes:16777216}") long metadataBytes,
+               @Value("${imageTagging.image-cache.content-bytes:33554432}") long contentBytes,
+               @Value("${imageTagging.image-cache.content-max-entry-bytes:1048576}") long maxContentEntryBytes) {
+        this.repository = repository;
+        this.contentStore = contentStore;
+        this.readOnlyTransaction = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        this.readOnlyTransaction.setReadOnly(true);
+        this.metadata = Caffeine.newBuilder()
+                .maximumWeight(metadataBytes)
+                .weigher((Long id, Image image) -> weigh(image))
+                .recordStats()
+                .buildAsync();
+        this.content = Caffeine.newBuilder()
+                .maximumWeight(contentBytes)
+                .weigher((String hash, byte[] bytes) -> ARRAY_OVERHEAD + bytes.length)
+                .recordStats()
+                .build();
+        this.maxContentEntryBytes = contentBytes > 0 ? maxContentEntryBytes : -1;
+        CaffeineCacheMetrics.monitor(meterRegistry, metadata.synchronous(), "image-metadata");
+        CaffeineCacheMetrics.monitor(meterRegistry, content, "image-content");
+        Gauge.builder("imageTagging.image-cache.resident", metadata.synchronous(), ImageCache::residentBytes)
+                .tag("tier", "metadata").baseUnit("bytes").description("Estimated bytes held by the image cache")
+                .register(meterRegistry);
+        Gauge.builder("imageTagging.image-cache.resident", content, ImageCache::residentBytes)
+                .tag("tier", "content").baseUnit("bytes").description("Estimated bytes held by the image cache")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Get an image, loading it with its tags from the database if it isn't cached.
+     * @param id the id of the image
+     * @return the image, which is shared and must not be modified
+     */
+    Optional<Image> get(Long id) {
+        // a missing image isn't cached, the null from the loader is just passed through
+        CompletableFuture<Image> image = metadata.get(id,
+                (key, executor) -> CompletableFuture.supplyAsync(() -> load(key), loader));
+        try {
+            return Optional.ofNullable(image.join());
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * @param id the id of the image
+     * @return the image if it is cached, without going to the database
+     */
+    Optional<Image> getIfPresent(Long id) {
+        // an image that is still being loaded isn't waited for
+        return Optional.ofNullable(metadata.synchronous().getIfPresent(id));
+    }
+
+    /**
+     * Get the content of a stored file if it is small enough to cache, reading it from the content store if it
+     * isn't cached.
+     * @param hash the hash of the stored content
+     * @return the content, or empty if the file is too large to cache. The array is shared and must not be modified.
+     */
+    Optional<byte[]> content(String hash) {
+        byte[] cached = content.getIfPresent(hash);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        Path path = contentStore.path(hash);
+        try {
+            if (Files.size(path) > maxContentEntryBytes) {
+                return Optional.empty();
+            }
+            return Optional.of(content.get(hash, key -> {
+                try {
+                    return Files.readAllBytes(path);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Drop an image that was changed without going through its entity, call it once the change has committed.
+     * @param id the id of the image
+     */
+    void invalidate(Long id) {
+        // a load that raced with the change is dropped too, Caffeine only keeps a finished load if its future is
+        // still the one in the cache
+        metadata.synchronous().invalidate(id);
+    }
+
+    // runs after the save commits
+    @TransactionalEventListener(fallbackExecution = true)
+    void onImageSaved(ImageSavedEvent event) {
+        if (event.imageId() != null) {
+            invalidate(event.imageId());
+        }
+    }
+
+    private Image load(Long id) {
+        return readOnlyTransaction.execute(status -> repository.findById(id).map(image -> {
+            // load the tags now, the image is read after its session has closed
+            image.getTags();
+            return image;
+        }).orElse(null));
+    }
+
+    private static int weigh(Image image) {
+        long bytes = IMAGE_OVERHEAD + chars(image.getLabel()) + chars(image.getImageUrl())
+                + chars(image.getContentHash()) + chars(image.getContentType());
+        for (String tag : image.getDetectedObjects()) {
+            // tag names are shared between images but count them anyway, it keeps the estimate on the safe side
+            bytes += TAG_OVERHEAD + chars(tag);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    private static long chars(String value) {
+        return value == null ? 0 : ARRAY_OVERHEAD + value.length();
+    }
+
+    private static double residentBytes(Cache<?, ?> cache) {
+        return cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+    }
+}
@@ -0,0 +1,275 @@
+package behnke19.imageTagging;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Reads a catalog written by {@link ImageCatalogStreamer#export} back into the database. The input is parsed as it
+ * streams in and inline files go straight into the {@link ImageContentStore}, so only a batch of images is held in
+ * memory. Each batch is written with jdbc batch inserts in one transaction, keeping the ids from the export so links
+ * to images stay valid. The tags in the export are kept and also put into the {@link DetectionCache}, so nothing is
+ * sent to imagga again.
+ * <p>
+ * Hibernate hands out image ids from a block it reserved from image_seq, so moving the sequence past the imported ids
+ * doesn't stop a block that is already in use, here or in another instance, from reaching them. Every block reserved
+ * so far lies at or below the value the sequence had when it is moved, so imported ids that don't exist yet and aren't
+ * above that value are rejected.
+ */
+@Component
+class ImageCatalogImporter {
+    private static final Logger log = LoggerFactory.getLogger(ImageCatalogImporter.class);
+    private static final int BATCH_SIZE = 500;
+    private static final int MAX_ERRORS = 100;
+    // the allocation size of image_seq, hibernate hands out ids up to this far below the value it reads
+    private static final int ID_ALLOCATION_SIZE = 50;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ImageContentStore contentStore;
+    private final TagDictionary tagDictionary;
+    private final DetectionCache detectionCache;
+    private final ObjectMapper objectMapper;
+    private final ApplicationEventPublisher eventPublisher;
+
+    ImageCatalogImporter(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate,
+                         ImageContentStore contentStore, TagDictionary tagDictionary, DetectionCache detectionCache,
+                         ObjectMapper objectMapper, ApplicationEventPublisher eventPublisher) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.contentStore = contentStore;
+        this.tagDictionary = tagDictionary;
+        this.detectionCache = detectionCache;
+        this.objectMapper = objectMapper;
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * The outcome of an import.
+     * @param imported the number of images added
+     * @param skipped the number of images left out because an image with the same id already exists
+     * @param errors why lines or images were rejected, at most the first 100
+     */
+    record ImportResult(long imported, long skipped, List<String> errors) {}
+
+    /**
+     * Import every image in the input. Batches that were written stay written if the input turns out to be malformed
+     * part way through, importing the same file again skips them.
+     * @param in newline delimited JSON in the export format
+     * @return the counts of imported and skipped images
+     * @throws IOException if the input can't be read or isn't JSON
+     */
+    ImportResult importAll(InputStream in) throws IOException {
+        long[] counts = new long[2];
+        List<String> errors = new ArrayList<>();
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        try (JsonParser parser = objectMapper.getFactory().createParser(in)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token != JsonToken.START_OBJECT) {
+                    throw new JsonParseException(parser, "Expected an image object but found " + token);
+                }
+                long line = parser.currentLocation().getLineNr();
+                try {
+                    batch.add(read(parser));
+                } catch (IllegalArgumentException ex) {
+                    if (errors.size() < MAX_ERRORS) {
+                        errors.add("line " + line + ": " + ex.getMessage());
+                    }
+                    continue;
+                }
+                if (batch.size() == BATCH_SIZE) {
+                    insert(batch, counts, errors);
+                    batch.clear();
+                }
+            }
+        }
+        insert(batch, counts, errors);
+        log.info("Imported {} images, skipped {} that already existed and rejected {}", counts[0], counts[1],
+                errors.size());
+        return new ImportResult(counts[0], counts[1], errors);
+    }
+
+    /**
+     * Read one image, storing its file if it is inline.
+     * @throws IllegalArgumentException if the image is unusable, the rest of its object has been read
+     */
+    private Entry read(JsonParser parser) throws IOException {
+        Entry entry = new Entry();
+        ImageContentStore.StoredContent stored = null;
+        String problem = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            try {
+                switch (field) {
+                    case "id" -> entry.id = parser.getLongValue();
+                    case "label" -> entry.label = parser.getText();
+                    case "imageUrl" -> entry.imageUrl = parser.getText();
+                    case "detectionStatus" -> entry.detectionStatus = DetectionStatus.valueOf(parser.getText());
+                    case "tags" -> entry.tags = List.of(parser.readValueAs(DetectedTag[].class));
+                    case "contentHash" -> entry.contentHash = parser.getText();
+                    case "contentLength" -> entry.contentLength = parser.getLongValue();
+                    case "contentType" -> entry.contentType = parser.getText();
+                    case "perceptualHash" -> entry.perceptualHash = parser.getLongValue();
+                    // decoded a buffer at a time straight into the store
+                    case "content" -> stored = contentStore.store(out -> parser.readBinaryValue(out));
+                    default -> parser.skipChildren();
+                }
+            } catch (IllegalArgumentException ex) {
+                // keep reading so the parser ends up after this image
+                problem = "invalid " + field;
+            }
+        }
+        if (problem != null) {
+            throw new IllegalArgumentException(problem);
+        }
+        if (entry.id == null || entry.id <= 0) {
+            throw new IllegalArgumentException("an image needs a positive id");
+        }
+        if (stored != null) {
+            if (entry.contentHash != null && !entry.contentHash.equals(stored.hash())) {
+                throw new IllegalArgumentException("the content of image " + entry.id + " doesn't match its hash");
+            }
+            entry.contentHash = stored.hash();
+            entry.contentLength = stored.length();
+            if (entry.contentType == null) {
+                entry.contentType = contentStore.probeContentType(stored.hash(), null);
+            }
+        } else if (entry.contentHash != null) {
+            // throws if it isn't a hash at all, a file that isn't in the store yet can be copied over later
+            contentStore.path(entry.contentHash);
+        }
+        if (entry.detectionStatus == DetectionStatus.PENDING) {
+            // nothing is working on it here, it can be picked up by the re-tagging job
+            entry.detectionStatus = DetectionStatus.NONE;
+        }
+        return entry;
+    }
+
+    private void insert(List<Entry> batch, long[] counts, List<String> errors) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        // moved first so no block handed out from now on can reach the ids of this batch
+        long reserved = advanceIdSequence(batch);
+        // resolved before the transaction, new tags are committed on a connection of their own
+        Map<String, Tag> tags = new HashMap<>();
+        for (Entry entry : batch) {
+            for (DetectedTag tag : entry.tags) {
+                tags.computeIfAbsent(tag.name(), tagDictionary::resolve);
+            }
+        }
+        List<Long> rejected = new ArrayList<>();
+        List<Entry> inserted = transactionTemplate.execute(status -> {
+            Set<Long> existing = new HashSet<>(jdbcTemplate.queryForList("SELECT id FROM image WHERE id IN ("
+                    + String.join(",", Collections.nCopies(batch.size(), "?")) + ")", Long.class,
+                    batch.stream().map(entry -> entry.id).toArray()));
+            List<Entry> added = new ArrayList<>(batch.size());
+            Set<Long> seen = new HashSet<>();
+            for (Entry entry : batch) {
+                if (existing.contains(entry.id) || !seen.add(entry.id)) {
+                    continue;
+                }
+                if (entry.id <= reserved) {
+                    rejected.add(entry.id);
+                } else {
+                    added.add(entry);
+                }
+            }
+            jdbcTemplate.batchUpdate("INSERT INTO image (id, label, image_url, content_hash, content_length,"
+                            + " content_type, perceptual_hash, detection_status, version) VALUES (?, ?, ?, ?, ?, ?, ?, ?, 0)",
+                    added.stream().map(entry -> new Object[]{entry.id, entry.label, entry.imageUrl,
+                            entry.contentHash, entry.contentLength, entry.contentType, entry.perceptualHash,
+                            entry.detectionStatus == null ? null : entry.detectionStatus.name()}).toList());
+            List<Object[]> tagRows = new ArrayList<>();
+            for (Entry entry : added) {
+                Set<String> names = new HashSet<>();
+                for (DetectedTag tag : entry.tags) {
+                    // an image can only have each tag once
+                    if (names.add(tag.name())) {
+                        tagRows.add(new Object[]{entry.id, tags.get(tag.name()).getId(), tag.confidence()});
+                    }
+                }
+            }
+            jdbcTemplate.batchUpdate("INSERT INTO image_tag (image_id, tag_id, confidence) VALUES (?, ?, ?)",
+                    tagRows);
+            // keeps the tag index, facets and similar image index current, the same as a save through the repository
+            for (Entry entry : added) {
+                eventPublisher.publishEvent(new ImageSavedEvent(entry.id,
+                        entry.tags.stream().map(DetectedTag::name).distinct().toList(), entry.perceptualHash));
+            }
+            return added;
+        });
+        for (long id : rejected) {
+            if (errors.size() < MAX_ERRORS) {
+                errors.add("image " + id + ": the id may already have been given to a new image, import before"
+                        + " uploading or give the image a new id");
+            }
+        }
+        for (Entry entry : inserted) {
+            if (entry.detectionStatus == DetectionStatus.COMPLETE
+                    && (entry.imageUrl != null || entry.contentHash != null)) {
+                detectionCache.putIfAbsent(DetectionCache.keyFor(entry.imageUrl, entry.contentHash), entry.tags);
+            }
+        }
+        counts[0] += inserted.size();
+        counts[1] += batch.size() - inserted.size() - rejected.size();
+    }
+
+    /**
+     * Move image_seq past the imported ids so new images don't collide with them.
+     * @return the value the sequence had before it was moved, no block of ids reserved so far goes above it
+     */
+    private long advanceIdSequence(List<Entry> batch) {
+        long maxId = batch.stream().mapToLong(entry -> entry.id).max().orElse(0);
+        // the pooled optimizer hands out ids below the value it reads, so leave a whole block above the imported ids
+        long next = maxId + ID_ALLOCATION_SIZE + 1;
+        if (DatabaseSchema.tableExists(jdbcTemplate, "image_seq")) {
+            // mysql has no sequences, hibernate keeps the next value in a table. It is locked so no instance can
+            // reserve a block between reading it and moving it
+            return transactionTemplate.execute(status -> {
+                long current = jdbcTemplate.queryForObject("SELECT next_val FROM image_seq FOR UPDATE", Long.class);
+                if (current < next) {
+                    jdbcTemplate.update("UPDATE image_seq SET next_val = ?", next);
+                }
+                return current;
+            });
+        }
+        // reading the sequence costs a block of ids but works the same on every database with sequences
+        long current = jdbcTemplate.queryForObject("SELECT NEXT VALUE FOR image_seq", Long.class);
+        if (current < next) {
+            jdbcTemplate.execute("ALTER SEQUENCE image_seq RESTART WITH " + next);
+        }
+        return current;
+    }
+
+    /**
+     * An image read from the export.
+     */
+    private static class Entry {
+        private Long id;
+        private String label;
+        private String imageUrl;
+        private DetectionStatus detectionStatus;
+        private List<DetectedTag> tags = List.of();
+        private String contentHash;
+        private Long contentLength;
+        private String contentType;
+        private Long perceptualHash;
+    }
+}
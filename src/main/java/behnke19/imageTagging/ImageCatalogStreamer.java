@@ -0,0 +1,182 @@
+package behnke19.imageTagging;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jakarta.persistence.EntityManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Writes images as newline delimited JSON while reading them from the database, so memory use stays flat no matter
+ * how many images there are. Besides the JSON clients see it writes the export format read by
+ * {@link ImageCatalogImporter}, which can carry the stored files along with the images.
+ */
+@Component
+class ImageCatalogStreamer {
+    private static final int CHUNK_SIZE = 500;
+
+    private final ImageRepository repository;
+    private final ImageContentStore contentStore;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    private final ObjectMapper objectMapper;
+    // let the generator buffer between images instead of flushing the response after every one
+    private final ObjectWriter imageWriter;
+
+    ImageCatalogStreamer(ImageRepository repository, ImageContentStore contentStore, EntityManager entityManager,
+                         TransactionTemplate transactionTemplate, ObjectMapper objectMapper) {
+        this.repository = repository;
+        this.contentStore = contentStore;
+        this.entityManager = entityManager;
+        this.transactionTemplate = transactionTemplate;
+        this.objectMapper = objectMapper;
+        this.imageWriter = objectMapper.writerFor(Image.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    /**
+     * Write every image in id order, one per line.
+     * @param out
+     */
+    void writeAll(OutputStream out) {
+        transactionTemplate.executeWithoutResult(status -> {
+            try (Stream<Image> images = repository.streamAll();
+                 JsonGenerator generator = newlineDelimited(out)) {
+                images.forEach(image -> {
+                    write(generator, image);
+                    // drop the image from the persistence context once it is written so it can be collected
+                    entityManager.detach(image);
+                });
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    /**
+     * Write the images with the given ids, one per line. The images are loaded a chunk at a time.
+     * @param out
+     * @param ids ids in the order they should be written
+     */
+    void writeAll(OutputStream out, long[] ids) {
+        try (JsonGenerator generator = newlineDelimited(out)) {
+            for (int from = 0; from < ids.length; from += CHUNK_SIZE) {
+                List<Long> chunk = Arrays.stream(ids, from, Math.min(ids.length, from + CHUNK_SIZE)).boxed().toList();
+                transactionTemplate.executeWithoutResult(status -> {
+                    List<Image> images = repository.findAllById(chunk);
+                    images.sort(Comparator.comparing(Image::getId));
+                    images.forEach(image -> write(generator, image));
+                    entityManager.clear();
+                });
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * How the stored file of an image is exported.
+     */
+    enum ContentMode {
+        /** leave out the file and everything about it */
+        NONE,
+        /** refer to the file by its hash, for environments that share the content store or copy it separately */
+        HASH,
+        /** include the file base64 encoded along with its hash */
+        INLINE
+    }
+
+    /**
+     * Write every image in id order in the export format, one per line. Images are read through a forward-only
+     * cursor and stored files are streamed into the output, so neither has to fit in memory.
+     * @param out
+     * @param contentMode how to export the stored files
+     */
+    void export(OutputStream out, ContentMode contentMode) {
+        transactionTemplate.executeWithoutResult(status -> {
+            try (Stream<Image> images = repository.streamAll();
+                 JsonGenerator generator = newlineDelimited(out)) {
+                images.forEach(image -> {
+                    try {
+                        writeExport(generator, image, contentMode);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                    entityManager.detach(image);
+                });
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    private void writeExport(JsonGenerator generator, Image image, ContentMode contentMode) throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField("id", image.getId());
+        writeIfPresent(generator, "label", image.getLabel());
+        writeIfPresent(generator, "imageUrl", image.getImageUrl());
+        if (image.getDetectionStatus() != null) {
+            generator.writeStringField("detectionStatus", image.getDetectionStatus().name());
+        }
+        generator.writeArrayFieldStart("tags");
+        for (DetectedObject tag : image.getTags()) {
+            generator.writeStartObject();
+            generator.writeStringField("name", tag.getName());
+            generator.writeNumberField("confidence", tag.getConfidence());
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        if (contentMode != ContentMode.NONE && image.getContentHash() != null) {
+            generator.writeStringField("contentHash", image.getContentHash());
+            if (image.getContentLength() != null) {
+                generator.writeNumberField("contentLength", image.getContentLength());
+            }
+            writeIfPresent(generator, "contentType", image.getContentType());
+            if (image.getPerceptualHash() != null) {
+                generator.writeNumberField("perceptualHash", image.getPerceptualHash());
+            }
+            // a file that has gone missing is exported by hash alone rather than failing the whole export
+            if (contentMode == ContentMode.INLINE && contentStore.exists(image.getContentHash())) {
+                generator.writeFieldName("content");
+                try (InputStream in = Files.newInputStream(contentStore.path(image.getContentHash()))) {
+                    generator.writeBinary(in, -1);
+                }
+            }
+        }
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+    }
+
+    private static void writeIfPresent(JsonGenerator generator, String field, String value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(field, value);
+        }
+    }
+
+    private JsonGenerator newlineDelimited(OutputStream out) throws IOException {
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+        // the servlet owns the output stream so leave it open when the generator is closed
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        return generator;
+    }
+
+    private void write(JsonGenerator generator, Image image) {
+        try {
+            imageWriter.writeValue(generator, image);
+            generator.writeRaw('\n');
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package behnke19.imageTagging;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URLConnection;
+import java.nio.file.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Content addressed storage for image files. Each file is stored once on disk under the SHA-256 of its content, so
+ * uploading the same image again doesn't use any more space. Files are never modified after they are written.
+ * Uploads are streamed in, so files of any size can be stored without holding them in memory.
+ */
+@Component
+class ImageContentStore {
+    private final Path root;
+
+    ImageContentStore(@Value("${imageTagging.content-store.path}") String root) {
+        this.root = Paths.get(root).toAbsolutePath();
+        try {
+            Files.createDirectories(this.root);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not create the image content store at " + this.root, ex);
+        }
+    }
+
+    /**
+     * Store the given content unless a file with the same content is already stored.
+     * @param content the file content
+     * @return the SHA-256 hash that identifies the content
+     * @throws IOException
+     */
+    String store(byte[] content) throws IOException {
+        String hash = DetectionCache.sha256(content);
+        Path target = path(hash);
+        if (Files.exists(target)) {
+            return hash;
+        }
+        Files.createDirectories(target.getParent());
+        // write to a temp file first so a half written file can never be read under the final name
+        Path tmp = Files.createTempFile(target.getParent(), hash, ".tmp");
+        try {
+            Files.write(tmp, content);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException ex) {
+            // the same content was stored by someone else in the meantime
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return hash;
+    }
+
+    /**
+     * Store content read from a stream unless a file with the same content is already stored. The stream is copied
+     * to a temp file a buffer at a time while it is hashed, so memory use doesn't grow with the size of the file.
+     * @param content the file content, which is read to the end but not closed
+     * @return the SHA-256 hash that identifies the content and the number of bytes read
+     * @throws IOException
+     */
+    StoredContent store(InputStream content) throws IOException {
+        return store(content::transferTo);
+    }
+
+    /**
+     * Store content written by the caller unless a file with the same content is already stored. The content is
+     * hashed as it is written to a temp file, so memory use doesn't grow with the size of the file.
+     * @param content writes the file content
+     * @return the SHA-256 hash that identifies the content and the number of bytes written
+     * @throws IOException
+     */
+    StoredContent store(ContentWriter content) throws IOException {
+        MessageDigest digest = newDigest();
+        Path tmp = createTempFile();
+        try {
+            long length;
+            try (OutputStream out = new DigestOutputStream(Files.newOutputStream(tmp), digest)) {
+                length = content.writeTo(out);
+            }
+            return moveIntoPlace(tmp, HexFormat.of().formatHex(digest.digest()), length);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return a digest for hashing content the way the store does
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every JVM is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Create an empty temp file for content that is written by some other means, such as non-blocking writes, and
+     * then handed to {@link #moveIntoPlace}.
+     * @return the temp file. The caller deletes it if it isn't moved into place.
+     * @throws IOException
+     */
+    Path createTempFile() throws IOException {
+        // the temp file is in the store so moving it into place is a rename on the same file system
+        return Files.createTempFile(root, "upload", ".tmp");
+    }
+
+    /**
+     * Store a fully written temp file under its hash, unless a file with the same content is already stored.
+     * @param tmp a file from {@link #createTempFile()}, which is left in place if it isn't needed
+     * @param hash the SHA-256 of the file content from {@link #newDigest()}
+     * @param length the size of the file content in bytes
+     * @return the stored content
+     * @throws IOException
+     */
+    StoredContent moveIntoPlace(Path tmp, String hash, long length) throws IOException {
+        Path target = path(hash);
+        if (!Files.exists(target)) {
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException ex) {
+                // the same content was stored by someone else in the meantime
+            }
+        }
+        return new StoredContent(hash, length);
+    }
+
+    /**
+     * Writes the content of a file being stored.
+     */
+    @FunctionalInterface
+    interface ContentWriter {
+        /**
+         * @param out where to write the content, it is closed by the store
+         * @return the number of bytes written
+         * @throws IOException
+         */
+        long writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Content that was stored from a stream.
+     * @param hash the SHA-256 hash that identifies the content
+     * @param length the size of the content in bytes
+     */
+    record StoredContent(String hash, long length) {}
+
+    /**
+     * @param hash the hash returned when the content was stored
+     * @return the location of the stored file. Files are spread over two levels of directories by hash prefix.
+     */
+    Path path(String hash) {
+        if (hash.length() < 4 || !hash.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+            throw new IllegalArgumentException("Not a content hash: " + hash);
+        }
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    boolean exists(String hash) {
+        return Files.exists(path(hash));
+    }
+
+    /**
+     * Work out the media type of stored content from its leading bytes, falling back to what the client declared.
+     * @param hash the hash of the stored content
+     * @param declared the content type the client sent, may be null
+     * @return
+     * @throws IOException
+     */
+    String probeContentType(String hash, String declared) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path(hash)))) {
+            String guessed = URLConnection.guessContentTypeFromStream(in);
+            if (guessed != null) {
+                return guessed;
+            }
+        }
+        if (declared != null && !declared.isBlank()) {
+            return declared;
+        }
+        return "application/octet-stream";
+    }
+}
@@ -1,59 +1,197 @@
 package behnke19.imageTagging;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.data.domain.Limit;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class ImageController {
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 1000;
+    private static final int DEFAULT_SIMILAR_DISTANCE = 10;
+    // stored files and thumbnails never change so clients can keep them for as long as they like
+    static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
     private final ImageRepository repository;
+    private final ImageCache imageCache;
+    private final ImageTaggingService taggingService;
+    private final DetectionWorker detectionWorker;
+    private final TagIndex tagIndex;
+    private final ImageContentStore contentStore;
+    private final ThumbnailStore thumbnailStore;
+    private final SimilarImageIndex similarImages;
+    private final ImageCatalogStreamer catalogStreamer;
+    private final ImageIngestor ingestor;
+    private final BatchIngestionService batchIngestionService;
+    private final ObjectMapper objectMapper;
+    private final ObservationRegistry observationRegistry;
 
-    ImageController(ImageRepository repository) {
+    ImageController(ImageRepository repository, ImageCache imageCache, ImageTaggingService taggingService,
+                    DetectionWorker detectionWorker, TagIndex tagIndex, ImageContentStore contentStore, ThumbnailStore thumbnailStore,
+                    SimilarImageIndex similarImages, ImageCatalogStreamer catalogStreamer, ImageIngestor ingestor, BatchIngestionService batchIngestionService, ObjectMapper objectMapper,
+                    ObservationRegistry observationRegistry) {
         this.repository = repository;
+        this.imageCache = imageCache;
+        this.taggingService = taggingService;
+        this.detectionWorker = detectionWorker;
+        this.tagIndex = tagIndex;
+        this.contentStore = contentStore;
+        this.thumbnailStore = thumbnailStore;
+        this.similarImages = similarImages;
+        this.catalogStreamer = catalogStreamer;
+        this.ingestor = ingestor;
+        this.batchIngestionService = batchIngestionService;
+        this.objectMapper = objectMapper;
+        this.observationRegistry = observationRegistry;
     }
 
     /**
-     * GET endpoint to fetch all images in the database. An optional 'objects' query param
-     * can be provided to search only for images that contain the given objects.
+     * GET endpoint to fetch a page of images from the database. An optional 'objects' query param
+     * can be provided to search only for images that contain the given objects. Pages are in id order and when
+     * there are more images the Link header holds the url of the next page.
      * @param objects comma separated list of objects (optional)
+     * @param minConfidence only match objects imagga detected with at least this confidence (optional)
+     * @param after only return images with an id greater than this, the cursor from the previous page (optional)
+     * @param limit the maximum number of images to return, defaults to 100 and is capped at 1000 (optional)
      * @return
      */
-    @GetMapping("/images")
-    List<Image> getImages(@RequestParam(value = "objects", required = false) String objects) {
-        if (null == objects || objects.isBlank()) {
-            return repository.findAll();
+    @GetMapping(value = "/images", produces = MediaType.APPLICATION_JSON_VALUE)
+    ResponseEntity<List<Image>> getImages(@RequestParam(value = "objects", required = false) String objects,
+                          @RequestParam(value = "minConfidence", required = false) Float minConfidence,
+                          @RequestParam(value = "after", required = false) Long after,
+                          @RequestParam(value = "limit", required = false) Integer limit) {
+        long cursor = after == null ? 0 : after;
+        int pageSize = limit == null ? DEFAULT_PAGE_SIZE : Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        Set<String> targetObjects = parseObjects(objects);
+
+        String strategy = targetObjects.isEmpty() ? "page"
+                : minConfidence == null ? "index" : "database";
+        // ask for one extra image to find out if there is another page
+        List<Image> images = Observation.createNotStarted("imageTagging.images.query", observationRegistry)
+                .contextualName("query images")
+                .lowCardinalityKeyValue("strategy", strategy)
+                .observe(() -> switch (strategy) {
+                    case "page" -> repository.findByIdGreaterThanOrderByIdAsc(cursor, Limit.of(pageSize + 1));
+                    // the index does the matching so only the images in the page are loaded
+                    case "index" -> findIndexedPage(targetObjects, cursor, pageSize + 1);
+                    // confidences aren't in the index so match in the database instead
+                    default -> repository.findByDetectedObjectsContainingAll(targetObjects, targetObjects.size(),
+                            minConfidence == null ? 0f : minConfidence, cursor, pageSize + 1);
+                });
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (images.size() > pageSize) {
+            images = images.subList(0, pageSize);
+            String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                    .replaceQueryParam("after", images.get(pageSize - 1).getId())
+                    .replaceQueryParam("limit", pageSize)
+                    .toUriString();
+            response.header(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"");
+        }
+        return response.body(images);
+    }
+
+    /**
+     * @return up to count images containing all the objects with an id greater than cursor, in id order
+     */
+    private List<Image> findIndexedPage(Set<String> objects, long cursor, int count) {
+        long[] matchingIds = tagIndex.findContainingAll(objects);
+        int from = Arrays.binarySearch(matchingIds, cursor);
+        from = from >= 0 ? from + 1 : -from - 1;
+        int to = (int) Math.min(matchingIds.length, (long) from + count);
+        List<Long> ids = Arrays.stream(matchingIds, from, to).boxed().toList();
+        List<Image> images = new ArrayList<>(repository.findAllById(ids));
+        images.sort(Comparator.comparing(Image::getId));
+        return images;
+    }
+
+    /**
+     * GET endpoint to stream every image in the database, or every image containing the given objects, as
+     * newline delimited JSON. Images are written as they are read so there is no limit on how many are returned.
+     * @param objects comma separated list of objects (optional)
+     * @return
+     */
+    @GetMapping(value = "/images", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    ResponseEntity<StreamingResponseBody> streamImages(@RequestParam(value = "objects", required = false) String objects) {
+        Set<String> targetObjects = parseObjects(objects);
+        StreamingResponseBody body;
+        if (targetObjects.isEmpty()) {
+            body = catalogStreamer::writeAll;
         } else {
-            // TODO trim whitespaces if I have time later?
-            objects = objects.replaceAll("\"", "");
-            List<String> targetObjects = Arrays.asList(objects.split(","));
-            LinkedList<Image> matchingImages = new LinkedList<>();
-            List<Image> imagesWithTags = repository.findByDetectedObjectsIn(targetObjects);
-            // I interpreted the prompt to mean that the image must have all the provided tags to be included
-            for (Image potentialMatch : imagesWithTags) {
-                // for performance reasons convert the list to a set so contains checks are more efficient.
-                // we don't care about duplicates when checking contains anyway
-                HashSet<String> uniqueDetectedObjects = new HashSet<>(potentialMatch.getDetectedObjects());
-                if (uniqueDetectedObjects.containsAll(targetObjects)){
-                    matchingImages.add(potentialMatch);
-                }
+            long[] matchingIds = tagIndex.findContainingAll(targetObjects);
+            body = out -> catalogStreamer.writeAll(out, matchingIds);
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+
+    /**
+     * Split the objects query param into distinct object names.
+     */
+    static Set<String> parseObjects(String objects) {
+        Set<String> targetObjects = new LinkedHashSet<>();
+        if (null == objects || objects.isBlank()) {
+            return targetObjects;
+        }
+        objects = objects.replaceAll("\"", "");
+        // I interpreted the prompt to mean that the image must have all the provided tags to be included
+        for (String object : objects.split(",")) {
+            if (!object.isBlank()) {
+                targetObjects.add(object.trim());
             }
-            return matchingImages;
         }
+        return targetObjects;
     }
 
     /**
-     * GET a specific image from the database.
+     * GET a specific image, from the image cache when it's there. The ETag changes whenever the image or its tags
+     * do, and a request with a matching If-None-Match gets a 304 without the image being loaded.
      * @param id the id of the image to fetch.
+     * @param request
      * @return
      */
     @GetMapping("/images/{id}")
-    Image getImage(@PathVariable Long id) {
-        Optional<Image> result = repository.findById(id);
+    ResponseEntity<Image> getImage(@PathVariable Long id, WebRequest request) {
+        if (request.checkNotModified("\"" + id + "-" + findHeader(id).version() + "\"")) {
+            return null;
+        }
+        // tags can change at any time so clients have to check back before using a stored copy
+        return ResponseEntity.ok().cacheControl(CacheControl.noCache()).body(findImage(id));
+    }
+
+    private Image findImage(Long id) {
+        Optional<Image> result = imageCache.get(id);
         if (result.isPresent()) {
             return result.get();
         } else {
@@ -61,18 +199,193 @@ public class ImageController {
         }
     }
 
+    private ImageHeader findHeader(Long id) {
+        Optional<Image> cached = imageCache.getIfPresent(id);
+        if (cached.isPresent()) {
+            Image image = cached.get();
+            return new ImageHeader(image.getVersion(), image.getContentHash(), image.getContentType());
+        }
+        return repository.findHeaderById(id).orElseThrow(() ->
+                new ResponseStatusException(HttpStatus.NOT_FOUND, "No Image found with the id " + id));
+    }
+
+    private ImageHeader findStoredContentHeader(Long id) {
+        ImageHeader header = findHeader(id);
+        if (header.contentHash() == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND,
+                    "The image with the id " + id + " was uploaded as a url and has no stored content");
+        }
+        return header;
+    }
+
+    /**
+     * GET the file content of an uploaded image. Supports a single byte range in the Range header so large images
+     * can be fetched in pieces or resumed. The ETag is the hash of the content, which never changes. Small files are
+     * kept in the image cache.
+     * @param id the id of the image.
+     * @param range the Range header (optional)
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    @GetMapping("/images/{id}/content")
+    void getImageContent(@PathVariable Long id, @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                         ServletWebRequest request, HttpServletResponse response) throws IOException {
+        ImageHeader image = findStoredContentHeader(id);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, IMMUTABLE);
+        if (request.checkNotModified("\"" + image.contentHash() + "\"")) {
+            return;
+        }
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setContentType(image.contentType());
+        // small files are served from memory, anything else straight from disk
+        Optional<byte[]> cached = imageCache.content(image.contentHash());
+        if (cached.isPresent()) {
+            byte[] content = cached.get();
+            long[] span = contentRange(range, content.length, response);
+            response.getOutputStream().write(content, (int) span[0], (int) (span[1] - span[0] + 1));
+            return;
+        }
+        Path path = contentStore.path(image.contentHash());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long[] span = contentRange(range, channel.size(), response);
+            long end = span[1];
+            // the servlet stream isn't a socket channel so transferTo copies through a buffer, but only the requested
+            // range is read and never the whole file at once
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = span[0];
+            while (position <= end) {
+                position += channel.transferTo(position, end - position + 1, out);
+            }
+        }
+    }
+
+    /**
+     * Work out which bytes of the content to send for the Range header and set the status and headers to match.
+     * @return the first and last byte to send
+     */
+    private static long[] contentRange(String range, long length, HttpServletResponse response) {
+        long start = 0;
+        long end = length - 1;
+        if (range != null) {
+            List<HttpRange> ranges;
+            try {
+                ranges = HttpRange.parseRanges(range);
+            } catch (IllegalArgumentException ex) {
+                ranges = List.of();
+            }
+            // multiple ranges would need a multipart response, it's allowed to just send everything instead
+            if (ranges.size() == 1) {
+                HttpRange requested = ranges.get(0);
+                start = requested.getRangeStart(length);
+                end = requested.getRangeEnd(length);
+                if (start >= length || start > end) {
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                    throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                }
+                response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+        response.setContentLengthLong(end - start + 1);
+        return new long[]{start, end};
+    }
+
+    /**
+     * GET a JPEG thumbnail of an uploaded image. Thumbnails of images stored before thumbnails existed are made on
+     * the first request.
+     * @param id the id of the image.
+     * @param size the longest side of the thumbnail, one of the configured sizes. Defaults to the first size.
+     * @param request
+     * @param response
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @GetMapping("/images/{id}/thumbnail")
+    void getThumbnail(@PathVariable Long id, @RequestParam(value = "size", required = false) Integer size,
+                      ServletWebRequest request, HttpServletResponse response) throws IOException, InterruptedException {
+        int thumbnailSize = size == null ? thumbnailStore.sizes().get(0) : size;
+        if (!thumbnailStore.sizes().contains(thumbnailSize)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "The thumbnail size must be one of " + thumbnailStore.sizes());
+        }
+        ImageHeader image = findStoredContentHeader(id);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, IMMUTABLE);
+        if (request.checkNotModified("\"" + image.contentHash() + "-" + thumbnailSize + "\"")) {
+            return;
+        }
+        Optional<Path> thumbnail;
+        try {
+            thumbnail = thumbnailStore.get(image.contentHash(), thumbnailSize);
+        } catch (RejectedExecutionException ex) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                    "Too many thumbnails are being made. Please try again shortly.");
+        }
+        if (thumbnail.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND,
+                    "No thumbnail can be made of the image with the id " + id);
+        }
+        response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+        response.setContentLengthLong(Files.size(thumbnail.get()));
+        Files.copy(thumbnail.get(), response.getOutputStream());
+    }
+
+    /**
+     * GET the status of object detection for an image. The image id doubles as the job id for async uploads.
+     * @param id the id of the image.
+     * @return
+     */
+    @GetMapping("/images/{id}/detection")
+    DetectionJob getDetection(@PathVariable Long id) {
+        return DetectionJob.of(findImage(id));
+    }
+
+    /**
+     * GET the images that look like this one, such as resized or re-compressed copies of it. Likeness is the number
+     * of bits the perceptual hashes of the images differ by, out of 64.
+     * @param id the id of the image.
+     * @param maxDistance the most bits a similar image's hash may differ by, defaults to 10 (optional)
+     * @param limit the maximum number of images to return, defaults to 100 and is capped at 1000 (optional)
+     * @return the similar images, closest first
+     */
+    @GetMapping(value = "/images/{id}/similar", produces = MediaType.APPLICATION_JSON_VALUE)
+    List<SimilarImage> getSimilarImages(@PathVariable Long id,
+                                        @RequestParam(value = "maxDistance", required = false) Integer maxDistance,
+                                        @RequestParam(value = "limit", required = false) Integer limit) {
+        Image image = findImage(id);
+        if (image.getPerceptualHash() == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND,
+                    "The image with the id " + id + " has no stored content to compare, or it hasn't been hashed yet");
+        }
+        int distance = maxDistance == null ? DEFAULT_SIMILAR_DISTANCE : Math.max(0, Math.min(maxDistance, Long.SIZE));
+        int count = limit == null ? DEFAULT_PAGE_SIZE : Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        List<SimilarImage> similar = new ArrayList<>();
+        for (SimilarImageIndex.Match match : similarImages.find(image.getPerceptualHash(), distance)) {
+            if (similar.size() == count) {
+                break;
+            }
+            if (match.imageId() != id) {
+                imageCache.get(match.imageId()).ifPresent(other -> similar.add(new SimilarImage(match.distance(), other)));
+            }
+        }
+        return similar;
+    }
+
     /**
      * POST call to upload an image and optionally scan it to detect objects in the image.
      * Provide either a URL or a file but not both.
      * @param label optional label for the image
      * @param detectObjects if true, detect objects in the image
+     * @param async if true, save the image right away and detect objects in the background. The response is a 202
+     *              with the detection job, whose status can be polled at /images/{id}/detection
      * @param URL a url for an image.
      * @param file an image file to process.
      * @return
      */
     @PostMapping(value = "/images", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    Image uploadImage(@RequestPart(name = "label", required = false) String label,
+    ResponseEntity<?> uploadImage(@RequestPart(name = "label", required = false) String label,
                       @RequestPart(name = "detectObjects", required = false) Boolean detectObjects,
+                      @RequestPart(name = "async", required = false) Boolean async,
                       @RequestPart(name = "url", required = false) String URL,
                       @RequestPart(name = "file", required = false) MultipartFile file) { // query params for label and object detection allowed?
         // no image provided so nothing to do. Ask the user to provide one.
@@ -85,37 +398,151 @@ public class ImageController {
                     "Both a url and image file were provided. Please provide only one of them.");
         }
 
-        Image image = new Image();
-        if (label != null && !label.isBlank()) {
-            image.setLabel(label);
-        } else {
-            // no label provided so create a default image name with the current time as part of the name for uniqueness
-            image.setLabel("image-" + System.currentTimeMillis());
-        }
-
+        Image image;
         if (file != null) {
             try {
-                image.setImageContent(file.getBytes());
+                image = ingestor.fromFile(label, file);
             } catch (IOException ex) {
                 throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error saving image file.");
             }
         } else {
-            image.setImageUrl(URL);
+            image = ingestor.fromUrl(label, URL);
         }
 
-        // detect objects if relevant
-        if (detectObjects != null && detectObjects) {
-            ImageTaggingService taggingService = new ImageTaggingService();
+        if (detectObjects == null || !detectObjects) {
+            image.setDetectionStatus(DetectionStatus.NONE);
+            repository.save(image);
+            return ResponseEntity.ok(image);
+        }
+
+        if (async != null && async) {
+            // save first so the caller gets an id to poll, then let a worker fill in the detected objects
+            image.setDetectionStatus(DetectionStatus.PENDING);
+            repository.save(image);
             try {
-                taggingService.detectObjectsInImage(image);
-            } catch (Exception ex) {
-                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error processing image.");
+                detectionWorker.submit(image);
+            } catch (RejectedExecutionException ex) {
+                image.setDetectionStatus(DetectionStatus.FAILED);
+                repository.save(image);
+                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                        "Too many images are waiting for object detection. Please try again later.");
             }
+            // the worker owns the image from here on so only hand back the job status
+            return ResponseEntity.accepted()
+                    .location(URI.create("/images/" + image.getId() + "/detection"))
+                    .body(new DetectionJob(image.getId(), DetectionStatus.PENDING, List.of()));
         }
 
+        try {
+            taggingService.detectObjectsInImage(image, ImaggaCallScheduler.Caller.FOREGROUND);
+        } catch (ImaggaUnavailableException ex) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                    "Object detection is temporarily unavailable. Please try again later.");
+        } catch (Exception ex) {
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error processing image.");
+        }
+        image.setDetectionStatus(DetectionStatus.COMPLETE);
+
         repository.save(image);
-        return image;
+        return ResponseEntity.ok(image);
     }
 
+    /**
+     * POST call to upload many images at once as a multipart form. Every file part named 'files' and every
+     * field named 'urls' becomes an image. The response is newline delimited JSON with one result per image, written
+     * as each batch of images is saved. Files are numbered first, then urls, in the order they were sent.
+     * @param detectObjects if true, detect objects in every image
+     * @param urls urls of images (optional)
+     * @param files image files to process (optional)
+     * @return
+     */
+    @PostMapping(value = "/images/batch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE,
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    ResponseEntity<StreamingResponseBody> uploadImageBatch(
+            @RequestParam(name = "detectObjects", required = false) Boolean detectObjects,
+            @RequestParam(name = "urls", required = false) List<String> urls,
+            @RequestPart(name = "files", required = false) List<MultipartFile> files) {
+        List<BatchIngestionService.BatchItem> items = new ArrayList<>();
+        if (files != null) {
+            for (MultipartFile file : files) {
+                items.add(new BatchIngestionService.BatchItem(items.size(),
+                        () -> ingestor.fromFile(file.getOriginalFilename(), file)));
+            }
+        }
+        if (urls != null) {
+            for (String url : urls) {
+                items.add(new BatchIngestionService.BatchItem(items.size(), () -> ingestor.fromUrl(null, url)));
+            }
+        }
+        if (items.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "At least one url or image file is required");
+        }
+        return streamBatchResults(items.iterator(), detectObjects);
+    }
 
+    /**
+     * POST call to upload many images by url as newline delimited JSON, one {"url": "...", "label": "..."} object
+     * per line. The request body is read as the images are processed so it can be arbitrarily long. The response is
+     * the same as for a multipart batch, items are numbered by line.
+     * @param detectObjects if true, detect objects in every image
+     * @param request
+     * @return
+     * @throws IOException
+     */
+    @PostMapping(value = "/images/batch", consumes = MediaType.APPLICATION_NDJSON_VALUE,
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    ResponseEntity<StreamingResponseBody> uploadImageBatchNdjson(
+            @RequestParam(name = "detectObjects", required = false) Boolean detectObjects,
+            HttpServletRequest request) throws IOException {
+        MappingIterator<BatchImageRequest> lines = objectMapper.readerFor(BatchImageRequest.class)
+                .readValues(request.getInputStream());
+        Iterator<BatchIngestionService.BatchItem> items = new Iterator<>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return lines.hasNext();
+            }
+
+            @Override
+            public BatchIngestionService.BatchItem next() {
+                BatchImageRequest line = lines.next();
+                return new BatchIngestionService.BatchItem(index++, () -> {
+                    if (line.url() == null || line.url().isBlank()) {
+                        throw new IllegalArgumentException("A url is required");
+                    }
+                    return ingestor.fromUrl(line.label(), line.url());
+                });
+            }
+        };
+        return streamBatchResults(items, detectObjects);
+    }
+
+    /**
+     * One line of an NDJSON batch upload.
+     */
+    record BatchImageRequest(String label, String url) {}
+
+    private ResponseEntity<StreamingResponseBody> streamBatchResults(Iterator<BatchIngestionService.BatchItem> items,
+                                                                     Boolean detectObjects) {
+        StreamingResponseBody body = out -> {
+            JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            try {
+                batchIngestionService.ingest(items, detectObjects != null && detectObjects, result -> {
+                    try {
+                        objectMapper.writeValue(generator, result);
+                        generator.writeRaw('\n');
+                        generator.flush();
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            generator.close();
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
 }
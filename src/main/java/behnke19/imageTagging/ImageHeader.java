@@ -0,0 +1,10 @@
+package behnke19.imageTagging;
+
+/**
+ * The few columns of an image needed to answer a conditional request, read without loading the image or its tags.
+ * @param version bumped by hibernate every time the image or its tags change
+ * @param contentHash the hash of the stored file, null for images uploaded as a url
+ * @param contentType the media type of the stored file
+ */
+record ImageHeader(Long version, String contentHash, String contentType) {
+}
@@ -0,0 +1,108 @@
+package behnke19.imageTagging;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds new, unsaved images from uploaded files or urls. Uploaded files go into the {@link ImageContentStore} and
+ * their thumbnails are started in the {@link ThumbnailStore}. Uploaded files are also given a perceptual hash so
+ * near-duplicates of them can be found.
+ */
+@Component
+class ImageIngestor {
+    private final ImageContentStore contentStore;
+    private final ThumbnailStore thumbnailStore;
+    private final ImageScaler scaler;
+    private final DistributionSummary uploadBytes;
+
+    ImageIngestor(ImageContentStore contentStore, ThumbnailStore thumbnailStore, ImageScaler scaler,
+                  MeterRegistry registry) {
+        this.contentStore = contentStore;
+        this.thumbnailStore = thumbnailStore;
+        this.scaler = scaler;
+        this.uploadBytes = DistributionSummary.builder("imageTagging.upload.bytes")
+                .description("Size of uploaded image files")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * @param label the label for the image, a default one is generated if this is blank
+     * @param file the uploaded image file
+     * @return an unsaved image pointing at the stored file
+     * @throws IOException if the file could not be stored
+     */
+    Image fromFile(String label, MultipartFile file) throws IOException {
+        ImageContentStore.StoredContent stored;
+        // the servlet container has already spooled the part to disk, read it from there rather than into memory
+        try (InputStream in = file.getInputStream()) {
+            stored = contentStore.store(in);
+        }
+        return fromStoredContent(label, stored, file.getContentType());
+    }
+
+    /**
+     * @param label the label for the image, a default one is generated if this is blank
+     * @param stored an uploaded file that is already in the content store
+     * @param declaredType the content type the client sent, may be null
+     * @return an unsaved image pointing at the stored file
+     * @throws IOException if the file could not be read
+     */
+    Image fromStoredContent(String label, ImageContentStore.StoredContent stored, String declaredType)
+            throws IOException {
+        Image image = newImage(label);
+        String hash = stored.hash();
+        uploadBytes.record(stored.length());
+        image.setContentHash(hash);
+        image.setContentLength(stored.length());
+        image.setContentType(contentStore.probeContentType(hash, declaredType));
+        thumbnailStore.generateInBackground(hash);
+        image.setPerceptualHash(perceptualHash(hash));
+        return image;
+    }
+
+    /**
+     * @param label the label for the image, a default one is generated if this is blank
+     * @param url the url of the image
+     * @return an unsaved image for the url
+     */
+    Image fromUrl(String label, String url) {
+        Image image = newImage(label);
+        image.setImageUrl(url);
+        return image;
+    }
+
+    /**
+     * @return the difference hash of the stored file, or null if it can't be computed right now
+     */
+    private Long perceptualHash(String hash) {
+        try {
+            OptionalLong perceptualHash = scaler.differenceHash(contentStore.path(hash), 10, TimeUnit.SECONDS);
+            return perceptualHash.isPresent() ? perceptualHash.getAsLong() : null;
+        } catch (IOException | RuntimeException ex) {
+            // only costs the chance to reuse a similar image's tags
+            return null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static Image newImage(String label) {
+        Image image = new Image();
+        if (label != null && !label.isBlank()) {
+            image.setLabel(label);
+        } else {
+            // no label provided so create a default image name with the current time as part of the name for uniqueness
+            image.setLabel("image-" + System.currentTimeMillis());
+        }
+        return image;
+    }
+}
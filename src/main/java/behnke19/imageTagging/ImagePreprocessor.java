@@ -0,0 +1,127 @@
+package behnke19.imageTagging;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shrinks images before they are uploaded to imagga, which doesn't need full resolution to find objects. Images
+ * larger than the max dimension are scaled down and re-encoded as JPEG into a temp file by the {@link ImageScaler}.
+ * The stored original is never touched. Anything that can't be shrunk is uploaded as is.
+ */
+@Component
+class ImagePreprocessor {
+    private static final Logger log = LoggerFactory.getLogger(ImagePreprocessor.class);
+
+    private final ImageScaler scaler;
+    private final boolean enabled;
+    private final int maxDimension;
+    private final float quality;
+    private final ObservationRegistry observationRegistry;
+    private final Counter bytesSaved;
+    private final MeterRegistry meterRegistry;
+
+    ImagePreprocessor(ImageScaler scaler,
+                      @Value("${imageTagging.preprocess.enabled:true}") boolean enabled,
+                      @Value("${imageTagging.preprocess.max-dimension:1024}") int maxDimension,
+                      @Value("${imageTagging.preprocess.jpeg-quality:0.85}") float quality,
+                      ObservationRegistry observationRegistry, MeterRegistry meterRegistry) {
+        this.scaler = scaler;
+        this.enabled = enabled;
+        this.maxDimension = maxDimension;
+        this.quality = quality;
+        this.observationRegistry = observationRegistry;
+        this.meterRegistry = meterRegistry;
+        this.bytesSaved = Counter.builder("imageTagging.preprocess.bytes.saved")
+                .description("Bytes not uploaded to imagga thanks to downscaling")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * The file to upload in place of an original. Closing it deletes the file if it is a temp file.
+     */
+    record PreparedUpload(Path path, boolean temporary) implements AutoCloseable {
+        @Override
+        public void close() throws IOException {
+            if (temporary) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * @param original the stored image file
+     * @return a smaller copy of the image to upload, or the original if it is small enough or can't be shrunk
+     */
+    PreparedUpload prepare(Path original) {
+        if (!enabled) {
+            return new PreparedUpload(original, false);
+        }
+        return Observation.createNotStarted("imageTagging.preprocess", observationRegistry)
+                .contextualName("downscale image")
+                .observe(() -> {
+                    try {
+                        return downscale(original);
+                    } catch (IOException | RuntimeException ex) {
+                        log.debug("Could not downscale {}, uploading the original", original, ex);
+                        count("failed");
+                        return new PreparedUpload(original, false);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return new PreparedUpload(original, false);
+                    }
+                });
+    }
+
+    private PreparedUpload downscale(Path original) throws IOException, InterruptedException {
+        Optional<Dimension> dimensions = scaler.dimensions(original);
+        if (dimensions.isEmpty()) {
+            // not a format we can decode
+            count("unsupported");
+            return new PreparedUpload(original, false);
+        }
+        if (Math.max(dimensions.get().width, dimensions.get().height) <= maxDimension) {
+            count("small");
+            return new PreparedUpload(original, false);
+        }
+
+        Path tmp = Files.createTempFile("imagga-upload", ".jpg");
+        try {
+            if (!scaler.scaleToJpeg(original, maxDimension, quality, tmp, 30, TimeUnit.SECONDS)) {
+                Files.deleteIfExists(tmp);
+                count("busy");
+                return new PreparedUpload(original, false);
+            }
+            long saved = Files.size(original) - Files.size(tmp);
+            if (saved <= 0) {
+                // already well compressed, re-encoding only lost quality
+                Files.deleteIfExists(tmp);
+                count("larger");
+                return new PreparedUpload(original, false);
+            }
+            bytesSaved.increment(saved);
+            count("downscaled");
+            return new PreparedUpload(tmp, true);
+        } catch (IOException | RuntimeException | InterruptedException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+    }
+
+    private void count(String result) {
+        meterRegistry.counter("imageTagging.preprocess", "result", result).increment();
+    }
+}
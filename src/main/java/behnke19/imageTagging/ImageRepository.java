@@ -1,17 +1,76 @@
 package behnke19.imageTagging;
 
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 interface ImageRepository extends JpaRepository<Image, Long> {
     /**
-     * find only the entries that have at least one of the tags provided
+     * find only the entries that have every one of the tags provided with at least the given confidence.
+     * The tags must be distinct since the match is counted per image. Results are paged by id.
      */
-    @Query(value = "SELECT * FROM image WHERE id IN (SELECT DISTINCT image_id FROM image_detected_objects WHERE detected_objects IN :detections)",
+    @Query(value = "SELECT * FROM image WHERE id > :after AND id IN (SELECT it.image_id FROM image_tag it"
+            + " JOIN tag t ON t.id = it.tag_id WHERE t.name IN :detections AND it.confidence >= :minConfidence"
+            + " GROUP BY it.image_id HAVING COUNT(*) = :detectionCount) ORDER BY id LIMIT :limit",
         nativeQuery = true)
-    List<Image> findByDetectedObjectsIn(@Param("detections") Collection<String> detections);
+    List<Image> findByDetectedObjectsContainingAll(@Param("detections") Collection<String> detections,
+                                                   @Param("detectionCount") int detectionCount,
+                                                   @Param("minConfidence") float minConfidence,
+                                                   @Param("after") long after,
+                                                   @Param("limit") int limit);
+
+    /**
+     * find a page of images by keyset, the images with ids after the last one of the previous page
+     */
+    List<Image> findByIdGreaterThanOrderByIdAsc(Long after, Limit limit);
+
+    /**
+     * find the ids of the next images by keyset, for jobs that walk every image
+     */
+    @Query("SELECT i.id FROM Image i WHERE i.id > :after ORDER BY i.id")
+    List<Long> findIdsAfter(@Param("after") long after, Limit limit);
+
+    /**
+     * find the ids of the next images by keyset that have one of the given detection statuses
+     */
+    @Query("SELECT i.id FROM Image i WHERE i.id > :after AND (i.detectionStatus IS NULL"
+            + " OR i.detectionStatus IN :statuses) ORDER BY i.id")
+    List<Long> findIdsAfterWithStatus(@Param("after") long after,
+                                      @Param("statuses") Collection<DetectionStatus> statuses, Limit limit);
+
+    /**
+     * stream every image in id order along with its tags. The database cursor is read a batch of rows at a time
+     * so the table is never loaded all at once. Must be called inside a transaction and the stream must be closed.
+     */
+    @Query("SELECT i FROM Image i LEFT JOIN FETCH i.detectedObjects ORDER BY i.id")
+    @QueryHints({
+            @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"),
+            @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+    })
+    Stream<Image> streamAll();
+
+    /**
+     * read just what is needed to answer a conditional request for the image, its content or its thumbnails
+     */
+    @Query("SELECT new behnke19.imageTagging.ImageHeader(i.version, i.contentHash, i.contentType)"
+            + " FROM Image i WHERE i.id = :id")
+    Optional<ImageHeader> findHeaderById(@Param("id") Long id);
+
+    /**
+     * Move every image with one detection status to another, bumping their versions.
+     * @return the number of images changed
+     */
+    @Modifying
+    @Query("UPDATE Image i SET i.detectionStatus = :to, i.version = i.version + 1 WHERE i.detectionStatus = :from")
+    int updateDetectionStatus(@Param("from") DetectionStatus from, @Param("to") DetectionStatus to);
 }
@@ -0,0 +1,16 @@
+package behnke19.imageTagging;
+
+import java.util.List;
+
+/**
+ * Published by the repository every time an image is saved so in-memory views of the catalog can stay current.
+ * @param imageId the id of the saved image
+ * @param detectedObjects the objects detected in the image at the time it was saved
+ * @param perceptualHash the difference hash of the image's file, null if it has none
+ */
+record ImageSavedEvent(Long imageId, List<String> detectedObjects, Long perceptualHash) {
+
+    ImageSavedEvent(Long imageId, List<String> detectedObjects) {
+        this(imageId, detectedObjects, null);
+    }
+}
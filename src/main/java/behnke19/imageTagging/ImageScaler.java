@@ -0,0 +1,223 @@
+package behnke19.imageTagging;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scales stored images down and re-encodes them as JPEG, or all the way down to a perceptual hash. Large images are
+ * decoded at a reduced resolution so a huge image never exists in memory at full size, and the decoded pixels of
+ * every image being scaled at once are limited by a shared budget so many large images can't exhaust the heap.
+ */
+@Component
+class ImageScaler {
+    // the pixel budget is counted in blocks of this many pixels so it fits in a semaphore
+    private static final int PIXELS_PER_PERMIT = 1024;
+    // the difference hash compares 9 pixels across to get 8 bits on each of 8 rows
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+    private static final int HASH_DECODE_SIZE = 64;
+
+    private final Semaphore pixelBudget;
+    private final int budgetPermits;
+
+    ImageScaler(@Value("${imageTagging.image-decoding.pixel-budget:67108864}") long pixelBudget) {
+        this.budgetPermits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, pixelBudget / PIXELS_PER_PERMIT));
+        this.pixelBudget = new Semaphore(budgetPermits, true);
+    }
+
+    /**
+     * Read the dimensions of an image from its header without decoding it.
+     * @param source the image file
+     * @return the width and height, or empty if the format can't be decoded
+     * @throws IOException
+     */
+    Optional<Dimension> dimensions(Path source) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(source.toFile())) {
+            ImageReader reader = in == null ? null : firstReader(in);
+            if (reader == null) {
+                return Optional.empty();
+            }
+            try {
+                reader.setInput(in, true, true);
+                return Optional.of(new Dimension(reader.getWidth(0), reader.getHeight(0)));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Scale an image so its longest side is at most maxDimension and write it as JPEG. Images are never scaled up
+     * and transparency is flattened onto white.
+     * @param source the image file
+     * @param maxDimension the longest side of the result
+     * @param quality the JPEG quality between 0 and 1
+     * @param target where to write the JPEG
+     * @param maxWait how long to wait for room in the pixel budget
+     * @return false if the format can't be decoded or there was no room in the budget in time
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    boolean scaleToJpeg(Path source, int maxDimension, float quality, Path target, long maxWait, TimeUnit unit)
+            throws IOException, InterruptedException {
+        BufferedImage scaled;
+        try (ImageInputStream in = ImageIO.createImageInputStream(source.toFile())) {
+            ImageReader reader = in == null ? null : firstReader(in);
+            if (reader == null) {
+                return false;
+            }
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                // let the decoder skip pixels, it only needs enough of them to scale from
+                int subsampling = Math.max(1, Math.max(width, height) / maxDimension);
+                long decodedPixels = (long) ceilDiv(width, subsampling) * ceilDiv(height, subsampling);
+                int permits = (int) Math.min(budgetPermits, Math.max(1, decodedPixels / PIXELS_PER_PERMIT));
+                if (!pixelBudget.tryAcquire(permits, maxWait, unit)) {
+                    return false;
+                }
+                try {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    BufferedImage decoded = reader.read(0, param);
+                    scaled = scale(decoded, width, height, maxDimension);
+                    decoded.flush();
+                } finally {
+                    pixelBudget.release(permits);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+        write(scaled, quality, target);
+        return true;
+    }
+
+    /**
+     * Compute the difference hash of an image: it is shrunk to 9x8 grey pixels and each bit says whether a pixel is
+     * brighter than its right hand neighbour. Resized or re-compressed copies of an image get the same or nearly the
+     * same hash, so the number of differing bits says how alike two images look.
+     * @param source the image file
+     * @param maxWait how long to wait for room in the pixel budget
+     * @return the hash, or empty if the format can't be decoded or there was no room in the budget in time
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    OptionalLong differenceHash(Path source, long maxWait, TimeUnit unit) throws IOException, InterruptedException {
+        BufferedImage small;
+        try (ImageInputStream in = ImageIO.createImageInputStream(source.toFile())) {
+            ImageReader reader = in == null ? null : firstReader(in);
+            if (reader == null) {
+                return OptionalLong.empty();
+            }
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                // a few times the hash size is plenty to average down from
+                int subsampling = Math.max(1, Math.min(width, height) / HASH_DECODE_SIZE);
+                long decodedPixels = (long) ceilDiv(width, subsampling) * ceilDiv(height, subsampling);
+                int permits = (int) Math.min(budgetPermits, Math.max(1, decodedPixels / PIXELS_PER_PERMIT));
+                if (!pixelBudget.tryAcquire(permits, maxWait, unit)) {
+                    return OptionalLong.empty();
+                }
+                try {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    BufferedImage decoded = reader.read(0, param);
+                    small = new BufferedImage(HASH_WIDTH, HASH_HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+                    Graphics2D graphics = small.createGraphics();
+                    try {
+                        graphics.drawImage(decoded.getScaledInstance(HASH_WIDTH, HASH_HEIGHT,
+                                java.awt.Image.SCALE_AREA_AVERAGING), 0, 0, null);
+                    } finally {
+                        graphics.dispose();
+                    }
+                    decoded.flush();
+                } finally {
+                    pixelBudget.release(permits);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+        long hash = 0;
+        Raster pixels = small.getRaster();
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                hash <<= 1;
+                if (pixels.getSample(x, y, 0) > pixels.getSample(x + 1, y, 0)) {
+                    hash |= 1;
+                }
+            }
+        }
+        return OptionalLong.of(hash);
+    }
+
+    private static BufferedImage scale(BufferedImage decoded, int width, int height, int maxDimension) {
+        double factor = Math.min(1.0, (double) maxDimension / Math.max(width, height));
+        int targetWidth = Math.max(1, (int) Math.round(width * factor));
+        int targetHeight = Math.max(1, (int) Math.round(height * factor));
+        BufferedImage scaled = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, targetWidth, targetHeight);
+            graphics.drawImage(decoded, 0, 0, targetWidth, targetHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private static void write(BufferedImage image, float quality, Path target) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        // closing the image stream doesn't close the file, and ImageIO's default would also spool to a cache file
+        try (OutputStream file = Files.newOutputStream(target);
+             ImageOutputStream out = new MemoryCacheImageOutputStream(file)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static ImageReader firstReader(ImageInputStream in) {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        return readers.hasNext() ? readers.next() : null;
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
@@ -2,10 +2,12 @@ package behnke19.imageTagging;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.context.annotation.ComponentScan;
 
 @ComponentScan("org.springframework.cloud.gcp.vision")
 @SpringBootApplication
+@ConfigurationPropertiesScan
 public class ImageTaggingApplication {
 
 	public static void main(String[] args) {
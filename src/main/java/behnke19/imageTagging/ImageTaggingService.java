@@ -1,214 +1,432 @@
 package behnke19.imageTagging;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
 
-import java.io.*;
-import java.net.HttpURLConnection;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
-import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Base64;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
 /**
- * This class has logic to reach out to Imagga apis for image tagging.
+ * This class has logic to reach out to Imagga apis for image tagging. It is a singleton so every request shares
+ * one http client, which keeps connections to imagga alive and negotiates HTTP/2 when it can. Results are kept in
+ * the {@link DetectionCache} so an image we have already tagged never goes back out to imagga, and an upload that
+ * looks the same as an image we have tagged takes that image's tags. Calls are made
+ * through the {@link ImaggaCallScheduler} so a slow or failing imagga can't tie up the whole service.
  */
+@Service
 public class ImageTaggingService {
+    private static final Pattern RETRY_AFTER_SECONDS = Pattern.compile("\\d{1,9}");
+
     private final String basicAuth;
-    private final String tags_endpoint = "https://api.imagga.com/v2/tags";
-    private final String uploads_endpoint = "https://api.imagga.com/v2/uploads";
+    private final String tags_endpoint;
+    private final String uploads_endpoint;
+    private final HttpClient httpClient;
+    private final ImaggaResponseDecoder decoder;
+    private final DetectionCache detectionCache;
+    private final TagDictionary tagDictionary;
+    private final ImageContentStore contentStore;
+    private final ImagePreprocessor preprocessor;
+    private final ImaggaCallScheduler scheduler;
+    private final Duration readTimeout;
+    private final float confidenceThreshold;
+    private final ObservationRegistry observationRegistry;
+    private final DistributionSummary tagsPerImage;
+    private final SimilarImageIndex similarImages;
+    private final ImageCache imageCache;
+    private final int nearDuplicateDistance;
+    private final Counter nearDuplicateHits;
+    // the blocking parts of async detection run here, off the threads that are waiting for nobody
+    private final ExecutorService blockingExecutor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("detection-", 0).factory());
 
-    ImageTaggingService() {
+    ImageTaggingService(ImaggaResponseDecoder decoder, DetectionCache detectionCache, TagDictionary tagDictionary,
+                        ImageContentStore contentStore, ImaggaCallScheduler scheduler, ImaggaProperties properties,
+                        ObservationRegistry observationRegistry, MeterRegistry meterRegistry,
+                        ImagePreprocessor preprocessor, SimilarImageIndex similarImages, ImageCache imageCache,
+                        @Value("${imageTagging.near-duplicates.max-distance:4}") int nearDuplicateDistance) {
         String key = System.getenv("imagga-key");
         String secret = System.getenv("imagga-secret");
         // init credentials
         String credentials = String.format("%s:%s", key, secret);
         basicAuth = Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+        this.decoder = decoder;
+        this.detectionCache = detectionCache;
+        this.tagDictionary = tagDictionary;
+        this.contentStore = contentStore;
+        this.preprocessor = preprocessor;
+        this.scheduler = scheduler;
+        this.tags_endpoint = properties.tagsEndpoint();
+        this.uploads_endpoint = properties.uploadsEndpoint();
+        this.readTimeout = properties.timeouts().read();
+        this.confidenceThreshold = properties.confidenceThreshold();
+        this.observationRegistry = observationRegistry;
+        this.similarImages = similarImages;
+        this.imageCache = imageCache;
+        this.nearDuplicateDistance = nearDuplicateDistance;
+        this.nearDuplicateHits = Counter.builder("imageTagging.detection.cache")
+                .tag("result", "near-duplicate").register(meterRegistry);
+        this.tagsPerImage = DistributionSummary.builder("imageTagging.image.tags")
+                .description("Objects detected per image")
+                .register(meterRegistry);
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(properties.timeouts().connect())
+                .build();
     }
 
     /**
-     * Uses imagga to detect objects in the given image and populates the detectedObjects field of the image
+     * Uses imagga to detect objects in the given image and adds them, with their confidence, to the image
      * @param image
+     * @param caller who is waiting for the result, which decides how long imagga may keep it waiting
      * @throws Exception
      */
-    public void detectObjectsInImage(Image image) throws Exception {
-        // the image should only have one of URL or content populated
-        if (image.getImageUrl() != null) {
-            detectObjectsInImageUrl(image);
-        } else {
-            detectObjectsInImageFile(image);
+    public void detectObjectsInImage(Image image, ImaggaCallScheduler.Caller caller) throws Exception {
+        for (DetectedTag tag : detectTags(image, false, caller)) {
+            image.addDetectedObject(tagDictionary.resolve(tag.name()), tag.confidence());
         }
     }
 
     /**
-     * Uses imagga to tag objects in the image using the imageContent to upload a file.
-     * @param image
+     * Find the objects in an image without changing it.
+     * @param image the image to tag
+     * @param refresh if true, ask imagga even if the image or a near-duplicate of it has been tagged before, and
+     *                replace the cached result with the new one
+     * @param caller who is waiting for the result, which decides how long imagga may keep it waiting
+     * @return the tags found in the image
      * @throws Exception
      */
-    public void detectObjectsInImageFile(Image image) throws Exception {
-        // save the image content to a temp file to
-        File tmpFile = new File("/tmp/image" + System.currentTimeMillis() + ".tmp");
-        FileOutputStream outputStream = new FileOutputStream(tmpFile);
-        try {
-            outputStream.write(image.getImageContent());
-        } finally {
-            outputStream.close();
+    List<DetectedTag> detectTags(Image image, boolean refresh, ImaggaCallScheduler.Caller caller) throws Exception {
+        String cacheKey = DetectionCache.keyFor(image);
+        Optional<List<DetectedTag>> cached = refresh ? Optional.empty() : detectionCache.get(cacheKey);
+        List<DetectedTag> tags;
+        if (cached.isPresent()) {
+            tags = cached.get();
+        } else {
+            Optional<List<DetectedTag>> nearDuplicate = refresh ? Optional.empty() : tagsOfNearDuplicate(image);
+            // the image should only have one of URL or content populated
+            if (nearDuplicate.isPresent()) {
+                tags = nearDuplicate.get();
+            } else if (image.getImageUrl() != null) {
+                tags = detectObjectsInImageUrl(image.getImageUrl(), caller);
+            } else {
+                tags = detectObjectsInImageFile(contentStore.path(image.getContentHash()), caller);
+            }
+            detectionCache.put(cacheKey, tags);
+        }
+        tagsPerImage.record(tags.size());
+        return tags;
+    }
+
+    /**
+     * Replace the objects of an image with the given tags.
+     * @param image the image to change
+     * @param tags the tags from {@link #detectTags(Image, boolean, ImaggaCallScheduler.Caller)}
+     */
+    void replaceDetectedObjects(Image image, List<DetectedTag> tags) {
+        image.clearDetectedObjects();
+        for (DetectedTag tag : tags) {
+            image.addDetectedObject(tagDictionary.resolve(tag.name()), tag.confidence());
+        }
+    }
+
+    /**
+     * Find an already tagged image that looks the same as this one, most likely a resized or re-compressed copy, so
+     * its tags can be used instead of asking imagga.
+     * @param image the image to tag
+     * @return the tags of the closest tagged image within the configured distance
+     */
+    private Optional<List<DetectedTag>> tagsOfNearDuplicate(Image image) {
+        if (nearDuplicateDistance < 0 || image.getPerceptualHash() == null) {
+            return Optional.empty();
         }
+        for (SimilarImageIndex.Match match : similarImages.find(image.getPerceptualHash(), nearDuplicateDistance)) {
+            if (image.getId() != null && match.imageId() == image.getId()) {
+                continue;
+            }
+            Optional<Image> similar = imageCache.get(match.imageId());
+            if (similar.isPresent() && similar.get().getDetectionStatus() == DetectionStatus.COMPLETE) {
+                nearDuplicateHits.increment();
+                return Optional.of(similar.get().getTags().stream()
+                        .map(tag -> new DetectedTag(tag.getName(), tag.getConfidence()))
+                        .toList());
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Uses imagga to tag objects in the image by uploading the stored image file, downscaled if it is large.
+     * @param imageFile
+     * @param caller who is waiting for the result
+     * @return the tags imagga found
+     * @throws Exception
+     */
+    public List<DetectedTag> detectObjectsInImageFile(Path imageFile, ImaggaCallScheduler.Caller caller)
+            throws Exception {
         // first we must upload the image
         String upload_id;
-        try {
-            upload_id = uploadFileToImagga(tmpFile);
+        try (ImagePreprocessor.PreparedUpload upload = preprocessor.prepare(imageFile)) {
+            upload_id = uploadFileToImagga(upload.path(), caller);
+        } catch (ImaggaUnavailableException ex) {
+            // let callers see that this is worth trying again later
+            throw ex;
         } catch (Exception ex) {
-            throw new Exception("Error uploading file");
-        } finally {
-            tmpFile.delete(); // make sure the tmp file is cleaned up even if there was an error on upload
+            throw new Exception("Error uploading file", ex);
         }
 
-
         // now we can pass the upload id to the tags endpoint
-        StringBuilder urlBuilder = new StringBuilder();
-        urlBuilder.append(tags_endpoint);
-        urlBuilder.append("?image_upload_id=");
-        urlBuilder.append(upload_id);
-        // the imagga docs say tags with a confidence lower than 30 are likely to be wrong so ignore them
-        urlBuilder.append("&threshold=30.0");
-        String tagsJsonResponse = getImageTags(urlBuilder.toString());
-        processResultingTags(tagsJsonResponse, image);
+        return getImageTags(uploadTagsUrl(upload_id), caller);
     }
 
     /**
      * Uses imagga to tag objects in the image using the image url.
-     * @param image
+     * @param imageUrl
+     * @param caller who is waiting for the result
+     * @return the tags imagga found
      * @throws Exception
      */
-    public void detectObjectsInImageUrl(Image image) throws Exception {
+    public List<DetectedTag> detectObjectsInImageUrl(String imageUrl, ImaggaCallScheduler.Caller caller)
+            throws Exception {
+        return getImageTags(imageUrlTagsUrl(imageUrl), caller);
+    }
+
+    /**
+     * The same as {@link #detectTags} without holding a thread while the call to imagga waits for the rate limit,
+     * for imagga or for a retry. Looking the image up in the detection cache, finding a near-duplicate and
+     * preparing a file for upload still block, so they run on virtual threads.
+     * @param image the image to tag
+     * @param caller who is waiting for the result, which decides how long imagga may keep it waiting
+     * @return completes with the tags found in the image
+     */
+    CompletableFuture<List<DetectedTag>> detectTagsAsync(Image image, ImaggaCallScheduler.Caller caller) {
+        String cacheKey = DetectionCache.keyFor(image);
+        return CompletableFuture.supplyAsync(() -> detectionCache.get(cacheKey), blockingExecutor)
+                .thenCompose(cached -> cached.map(CompletableFuture::completedFuture).orElseGet(() ->
+                        CompletableFuture.supplyAsync(() -> tagsOfNearDuplicate(image), blockingExecutor)
+                                .thenCompose(nearDuplicate -> nearDuplicate.map(CompletableFuture::completedFuture)
+                                        .orElseGet(() -> image.getImageUrl() != null
+                                                ? getImageTagsAsync(imageUrlTagsUrl(image.getImageUrl()), caller)
+                                                : detectObjectsInImageFileAsync(
+                                                        contentStore.path(image.getContentHash()), caller)))
+                                .thenApplyAsync(tags -> {
+                                    detectionCache.put(cacheKey, tags);
+                                    return tags;
+                                }, blockingExecutor)))
+                .thenApply(tags -> {
+                    tagsPerImage.record(tags.size());
+                    return tags;
+                });
+    }
+
+    private CompletableFuture<List<DetectedTag>> detectObjectsInImageFileAsync(Path imageFile,
+                                                                              ImaggaCallScheduler.Caller caller) {
+        return CompletableFuture.supplyAsync(() -> preprocessor.prepare(imageFile), blockingExecutor)
+                .thenCompose(upload -> uploadFileToImaggaAsync(upload.path(), caller)
+                        .whenComplete((uploadId, failure) -> {
+                            try {
+                                upload.close();
+                            } catch (IOException ex) {
+                                // only a temp file left behind
+                            }
+                        }))
+                .thenCompose(uploadId -> getImageTagsAsync(uploadTagsUrl(uploadId), caller));
+    }
+
+    private String uploadTagsUrl(String uploadId) {
+        StringBuilder urlBuilder = new StringBuilder();
+        urlBuilder.append(tags_endpoint);
+        urlBuilder.append("?image_upload_id=");
+        urlBuilder.append(uploadId);
+        // imagga leaves out tags below imagga.confidence-threshold, which defaults to the 30 its docs recommend
+        urlBuilder.append("&threshold=").append(confidenceThreshold);
+        return urlBuilder.toString();
+    }
+
+    private String imageUrlTagsUrl(String imageUrl) {
         StringBuilder urlBuilder = new StringBuilder();
         urlBuilder.append(tags_endpoint);
         urlBuilder.append("?image_url=");
-        urlBuilder.append(image.getImageUrl());
-        // the imagga docs say tags with a confidence lower than 30 are likely to be wrong so ignore them
-        urlBuilder.append("&threshold=30.0");
-        String tagsJsonResponse = getImageTags(urlBuilder.toString());
-        processResultingTags(tagsJsonResponse, image);
+        urlBuilder.append(imageUrl);
+        // imagga leaves out tags below imagga.confidence-threshold, which defaults to the 30 its docs recommend
+        urlBuilder.append("&threshold=").append(confidenceThreshold);
+        return urlBuilder.toString();
     }
 
     /**
-     * Uploads the given image file to imagga and returns the uploaded image id.
+     * Uploads the given image file to imagga and returns the uploaded image id. The file is streamed straight
+     * into the request body.
      * @param imageFile
+     * @param caller who is waiting for the result
      * @return
      * @throws Exception
      */
-    private String uploadFileToImagga(File imageFile) throws Exception {
-        String crlf = "\r\n";
-        String twoHyphens = "--";
-        String boundary =  "Image Upload";
-        URI uri = new URI(uploads_endpoint);
-        URL urlObject = uri.toURL();
-        HttpURLConnection connection = (HttpURLConnection) urlObject.openConnection();
-        connection.setRequestProperty("Authorization", "Basic " + basicAuth);
-        connection.setUseCaches(false);
-        connection.setDoOutput(true);
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Connection", "Keep-Alive");
-        connection.setRequestProperty("Cache-Control", "no-cache");
-        connection.setRequestProperty(
-                "Content-Type", "multipart/form-data;boundary=" + boundary);
-
-        DataOutputStream request = new DataOutputStream(connection.getOutputStream());
-        request.writeBytes(twoHyphens + boundary + crlf);
-        request.writeBytes("Content-Disposition: form-data; name=\"image\";filename=\"" + imageFile.getName() + "\"" + crlf);
-        request.writeBytes(crlf);
-        InputStream inputStream = new FileInputStream(imageFile);
-        int bytesRead;
-        byte[] dataBuffer = new byte[1024];
-        while ((bytesRead = inputStream.read(dataBuffer)) != -1) {
-            request.write(dataBuffer, 0, bytesRead);
-        }
-        request.writeBytes(crlf);
-        request.writeBytes(twoHyphens + boundary + twoHyphens + crlf);
-        request.flush();
-        request.close();
-
-        InputStream responseStream = new BufferedInputStream(connection.getInputStream());
-        BufferedReader responseStreamReader = new BufferedReader(new InputStreamReader(responseStream));
-        String line = "";
-        StringBuilder stringBuilder = new StringBuilder();
-        while ((line = responseStreamReader.readLine()) != null) {
-            stringBuilder.append(line).append("\n");
-        }
-        responseStreamReader.close();
-
-        String jsonResponse = stringBuilder.toString();
-        Map<String, Object> responseMap = new ObjectMapper().readValue(jsonResponse, HashMap.class);
-
-        responseStream.close();
-        connection.disconnect();
-
-        Map<String, Object> statusMap = (Map<String, Object>) responseMap.get("status");
-        Map<String, Object> resultMap = (Map<String, Object>) responseMap.get("result");
-        String upload_id = null;
-        if (statusMap != null && "success".equals(statusMap.get("type")) && resultMap != null) {
-            upload_id = (String) resultMap.get("upload_id");
-        }
+    private String uploadFileToImagga(Path imageFile, ImaggaCallScheduler.Caller caller) throws Exception {
+        HttpRequest request = uploadRequest(imageFile);
+        // the observation covers waiting for the rate limit and any retries, which is what callers experience
+        return Observation.createNotStarted("imagga.upload", observationRegistry)
+                .contextualName("imagga upload")
+                .observeChecked(() -> scheduler.execute(caller, () -> {
+                    HttpResponse<InputStream> response = checkStatus(
+                            httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream()));
+                    try (InputStream in = response.body()) {
+                        return decoder.decodeUploadId(in);
+                    }
+                }));
+    }
 
-        if (upload_id == null) {
-            throw new Exception("error uploading file");
+    private CompletableFuture<String> uploadFileToImaggaAsync(Path imageFile, ImaggaCallScheduler.Caller caller) {
+        HttpRequest request;
+        try {
+            request = uploadRequest(imageFile);
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
         }
-        return upload_id;
+        return observeAsync("imagga.upload", "imagga upload",
+                () -> scheduler.executeAsync(caller, () -> sendAsync(request, decoder::decodeUploadId)));
     }
 
+    private HttpRequest uploadRequest(Path imageFile) throws IOException {
+        MultipartBody body = new MultipartBody().addFile("image", "image", imageFile);
+        return HttpRequest.newBuilder(URI.create(uploads_endpoint))
+                .header("Authorization", "Basic " + basicAuth)
+                .header("Cache-Control", "no-cache")
+                .header("Content-Type", body.contentType())
+                .timeout(readTimeout)
+                .POST(body.publisher())
+                .build();
+    }
 
     /**
      * Get the tags for an image using the imagga tags endpoint. The URL should specify the
-     * param for either an imageUrl or the upload_id
+     * param for either an imageUrl or the upload_id. The response is decoded as it arrives.
      * @param url
-     * @return
+     * @param caller who is waiting for the result
+     * @return the tags imagga found above the confidence threshold
      * @throws Exception
      */
-    private String getImageTags(String url) throws Exception {
-        URI tagsUri = new URI(url);
-        URL tagsUrlObject = tagsUri.toURL();
+    private List<DetectedTag> getImageTags(String url, ImaggaCallScheduler.Caller caller) throws Exception {
+        HttpRequest request = tagsRequest(url);
+        return Observation.createNotStarted("imagga.tags", observationRegistry)
+                .contextualName("imagga tags")
+                .observeChecked(() -> scheduler.execute(caller, () -> {
+                    HttpResponse<InputStream> response = checkStatus(
+                            httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream()));
+                    //success! now lets take note of the tags
+                    try (InputStream body = response.body()) {
+                        return decoder.decodeTags(body, confidenceThreshold);
+                    }
+                }));
+    }
 
-        HttpURLConnection tagsConnection = (HttpURLConnection) tagsUrlObject.openConnection();
-        tagsConnection.setRequestProperty("Authorization", "Basic " + basicAuth);
+    private CompletableFuture<List<DetectedTag>> getImageTagsAsync(String url, ImaggaCallScheduler.Caller caller) {
+        HttpRequest request = tagsRequest(url);
+        return observeAsync("imagga.tags", "imagga tags", () -> scheduler.executeAsync(caller,
+                () -> sendAsync(request, body -> decoder.decodeTags(body, confidenceThreshold))));
+    }
 
-        if (tagsConnection.getResponseCode() == 200) {
-            //success! now lets take note of the tags
-            BufferedReader responseBody = new BufferedReader(new InputStreamReader(tagsConnection.getInputStream()));
+    private HttpRequest tagsRequest(String url) {
+        return HttpRequest.newBuilder(URI.create(url))
+                .header("Authorization", "Basic " + basicAuth)
+                .timeout(readTimeout)
+                .GET()
+                .build();
+    }
 
-            // Parse the json response to find the tags and add them to the image
-            String tagsJsonResponse = responseBody.readLine();
+    /**
+     * Send a request without waiting for the response. The response is small, so it is read into memory as it
+     * arrives and decoded once it is complete.
+     */
+    private <T> CompletableFuture<T> sendAsync(HttpRequest request, ResponseDecoder<T> decode) {
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).thenCompose(response -> {
+            try {
+                if (response.statusCode() != 200) {
+                    throw new ImaggaException(response.statusCode(), retryAfter(response));
+                }
+                return CompletableFuture.completedFuture(decode.decode(new ByteArrayInputStream(response.body())));
+            } catch (Exception ex) {
+                return CompletableFuture.failedFuture(ex);
+            }
+        });
+    }
 
-            responseBody.close();
-            return tagsJsonResponse;
-        } else {
-            throw new Exception("Error processing image");
-        }
+    @FunctionalInterface
+    private interface ResponseDecoder<T> {
+        T decode(InputStream body) throws Exception;
     }
 
     /**
-     * Add the tags found by imagga to the image object
-     * @param jsonResponse
-     * @param image
-     * @throws Exception
+     * Time an async call the way observeChecked times a blocking one, from the start until the future completes.
      */
-    private void processResultingTags(String jsonResponse, Image image) throws Exception {
-        Map<String, Object> responseMap = new ObjectMapper().readValue(jsonResponse, HashMap.class);
-        Map<String, Object> resultMap = (Map<String, Object>) responseMap.get("result");
-        Map<String, Object> statusMap = (Map<String, Object>) responseMap.get("status");
-        if (statusMap != null && "success".equals(statusMap.get("type")) && resultMap != null) { // image was successfully labeled.
-            ArrayList<Map<String, Object>> tagsList = (ArrayList<Map<String, Object>>) resultMap.get("tags");
-            if (tagsList != null) {
-                for (Map<String, Object> tag : tagsList) {
-                    Map<String, Object> tagMap = (Map<String, Object>) tag.get("tag");
-                    if (tagMap != null) {
-                        image.addDetectedObject((String) tagMap.get("en")); // there are only english tags
-                    }
-                }
+    private <T> CompletableFuture<T> observeAsync(String name, String contextualName,
+                                                  Supplier<CompletableFuture<T>> call) {
+        Observation observation = Observation.createNotStarted(name, observationRegistry)
+                .contextualName(contextualName)
+                .start();
+        return call.get().whenComplete((value, failure) -> {
+            if (failure != null) {
+                observation.error(failure instanceof CompletionException ? failure.getCause() : failure);
             }
+            observation.stop();
+        });
+    }
+
+    /**
+     * @param response a response from imagga
+     * @return the response if it was successful
+     * @throws ImaggaException with the status and any Retry-After delay if it wasn't
+     */
+    private static HttpResponse<InputStream> checkStatus(HttpResponse<InputStream> response)
+            throws ImaggaException, IOException {
+        if (response.statusCode() == 200) {
+            return response;
+        }
+        // error bodies are small, reading them to the end lets the connection be reused
+        try (InputStream body = response.body()) {
+            body.transferTo(OutputStream.nullOutputStream());
         }
+        throw new ImaggaException(response.statusCode(), retryAfter(response));
     }
 
+    /**
+     * @return the delay in the Retry-After header of an error response, or null if it has none we understand
+     */
+    private static Duration retryAfter(HttpResponse<?> response) {
+        // only delay-seconds is understood, an HTTP date or a value too long to be a sensible delay is ignored
+        return response.headers().firstValue("Retry-After")
+                .map(String::strip)
+                .filter(RETRY_AFTER_SECONDS.asMatchPredicate())
+                .map(value -> Duration.ofSeconds(Long.parseLong(value)))
+                .orElse(null);
+    }
+
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        blockingExecutor.shutdown();
+        blockingExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    }
 }
@@ -0,0 +1,13 @@
+package behnke19.imageTagging;
+
+import java.util.Set;
+
+/**
+ * Published by the {@link TagIndex} when a save changes which objects an image has, so counts over the catalog can
+ * be adjusted by the difference instead of being recomputed.
+ * @param imageId the id of the saved image
+ * @param previous the objects the image had before the save
+ * @param current the objects the image has now
+ */
+record ImageTagsChangedEvent(long imageId, Set<String> previous, Set<String> current) {
+}
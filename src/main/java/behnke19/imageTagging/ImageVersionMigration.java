@@ -0,0 +1,31 @@
+package behnke19.imageTagging;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Gives images saved before they were versioned a starting version. Hibernate adds the version column as nullable
+ * and an image without a version would be taken for a new one and inserted again on its next save.
+ */
+@Component
+class ImageVersionMigration {
+    private static final Logger log = LoggerFactory.getLogger(ImageVersionMigration.class);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    // the repository isn't used directly but depending on it makes sure hibernate has added the column
+    ImageVersionMigration(JdbcTemplate jdbcTemplate, ImageRepository imageRepository) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    void migrate() {
+        int migrated = jdbcTemplate.update("UPDATE image SET version = 0 WHERE version IS NULL");
+        if (migrated > 0) {
+            log.info("Set a version on {} images", migrated);
+        }
+    }
+}
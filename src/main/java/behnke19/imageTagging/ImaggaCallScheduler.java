@@ -0,0 +1,336 @@
+package behnke19.imageTagging;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every call to imagga goes through here. Calls are spaced out by a token bucket that matches our imagga plan, the
+ * number in flight is capped by a limit that backs off when imagga pushes back, and calls that fail with a
+ * retryable status are retried with jittered exponential backoff. When imagga keeps failing a circuit breaker stops
+ * calling it for a while so requests fail fast instead of tying up threads.
+ */
+@Component
+class ImaggaCallScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ImaggaCallScheduler.class);
+    // rejected callers are told to come back after at least this long
+    private static final Duration MIN_RETRY_AFTER = Duration.ofSeconds(1);
+
+    /**
+     * Who is waiting for a call, which decides how long it may wait for a rate limit permit and a free slot.
+     */
+    enum Caller {
+        // a request held open until detection finishes, better to fail fast than to hold its thread
+        FOREGROUND,
+        // the detection worker, batch uploads and the re-tagging job, which can afford to wait their turn
+        BACKGROUND
+    }
+
+    /**
+     * A single attempt at a call to imagga.
+     */
+    @FunctionalInterface
+    interface ImaggaCall<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * A single attempt at a call to imagga that doesn't block, its result arrives through the future.
+     */
+    @FunctionalInterface
+    interface AsyncImaggaCall<T> {
+        CompletableFuture<T> call();
+    }
+
+    private final ImaggaProperties.RateLimit rateLimit;
+    private final ImaggaProperties.Retry retry;
+    private final TokenBucket tokenBucket;
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+    private final CircuitBreaker circuitBreaker;
+    private final Counter retries;
+    private final Counter circuitOpenRejections;
+    private final Counter rateLimitRejections;
+    private final MeterRegistry registry;
+
+    ImaggaCallScheduler(ImaggaProperties properties, MeterRegistry registry) {
+        this.rateLimit = properties.rateLimit();
+        this.retry = properties.retry();
+        this.tokenBucket = new TokenBucket(rateLimit.permitsPerSecond(), rateLimit.burst());
+        ImaggaProperties.Concurrency concurrency = properties.concurrency();
+        this.concurrencyLimit = new AdaptiveConcurrencyLimit(concurrency.initial(), concurrency.min(),
+                concurrency.max());
+        this.circuitBreaker = new CircuitBreaker(properties.circuitBreaker().failureThreshold(),
+                properties.circuitBreaker().openDuration());
+
+        Gauge.builder("imagga.concurrency.limit", concurrencyLimit, AdaptiveConcurrencyLimit::getLimit)
+                .description("Imagga calls allowed in flight").register(registry);
+        Gauge.builder("imagga.concurrency.in-flight", concurrencyLimit, AdaptiveConcurrencyLimit::getInFlight)
+                .description("Imagga calls in flight").register(registry);
+        Gauge.builder("imagga.rate-limit.available", tokenBucket, TokenBucket::available)
+                .description("Imagga calls that can be made right now without waiting").register(registry);
+        Gauge.builder("imagga.circuit-breaker.state", circuitBreaker, breaker -> breaker.getState().ordinal())
+                .description("0 closed, 1 half open, 2 open").register(registry);
+        this.retries = registry.counter("imagga.retries");
+        this.circuitOpenRejections = registry.counter("imagga.rejected", "reason", "circuit-open");
+        this.rateLimitRejections = registry.counter("imagga.rejected", "reason", "rate-limit");
+        this.registry = registry;
+    }
+
+    /**
+     * Make a call to imagga, retrying it if it fails with a retryable status.
+     * @param caller who is waiting, foreground callers give up on the rate limit and concurrency limit sooner
+     * @param call makes one attempt. It should throw an {@link ImaggaException} when imagga answers with an error.
+     * @return what the call returned
+     * @throws ImaggaUnavailableException if the circuit is open, the call couldn't be scheduled in time or imagga
+     *                                    asked us to wait longer than the longest backoff
+     * @throws Exception what the last attempt threw
+     */
+    <T> T execute(Caller caller, ImaggaCall<T> call) throws Exception {
+        Duration maxWait = maxWait(caller);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return attempt(call, maxWait);
+            } catch (ImaggaException | IOException ex) {
+                Duration backoff = backoffBeforeRetry(attempt, ex);
+                log.debug("Imagga call attempt {} failed, retrying in {}", attempt, backoff, ex);
+                retries.increment();
+                TimeUnit.MILLISECONDS.sleep(backoff.toMillis());
+            }
+        }
+    }
+
+    /**
+     * The same as {@link #execute} without holding a thread while the call waits for a permit, a slot, imagga or a
+     * retry.
+     * @param caller who is waiting, foreground callers give up on the rate limit and concurrency limit sooner
+     * @param call starts one attempt. Its future should fail with an {@link ImaggaException} when imagga answers
+     *             with an error.
+     * @return completes with what the last attempt completed with
+     */
+    <T> CompletableFuture<T> executeAsync(Caller caller, AsyncImaggaCall<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attemptAsync(call, maxWait(caller), 1, result);
+        return result;
+    }
+
+    CircuitBreaker.State getCircuitState() {
+        return circuitBreaker.getState();
+    }
+
+    private Duration maxWait(Caller caller) {
+        return caller == Caller.FOREGROUND ? rateLimit.foregroundMaxWait() : rateLimit.maxWait();
+    }
+
+    /**
+     * Decide whether a failed attempt is tried again.
+     * @return how long to wait before the next attempt
+     * @throws Exception the failure, if it shouldn't be retried
+     * @throws ImaggaUnavailableException if imagga asked us to wait longer than the longest backoff
+     */
+    private Duration backoffBeforeRetry(int attempt, Exception ex) throws Exception {
+        if (attempt >= retry.maxAttempts()) {
+            throw ex;
+        }
+        if (ex instanceof ImaggaException imaggaEx) {
+            if (!imaggaEx.isRetryable()) {
+                throw ex;
+            }
+            Duration backoff = imaggaEx.getRetryAfter() != null ? imaggaEx.getRetryAfter() : backoff(attempt);
+            if (backoff.compareTo(retry.maxBackoff()) > 0) {
+                // imagga wants us to wait longer than we're willing to hold the caller for, the work can be
+                // tried again once that time has passed
+                throw new ImaggaUnavailableException("Imagga asked us to retry after " + backoff, backoff);
+            }
+            return backoff;
+        }
+        if (ex instanceof IOException) {
+            return backoff(attempt);
+        }
+        throw ex;
+    }
+
+    private <T> T attempt(ImaggaCall<T> call, Duration maxWait) throws Exception {
+        if (circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+            throw circuitOpen();
+        }
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        if (!tokenBucket.acquire(maxWait)) {
+            rateLimitRejections.increment();
+            throw new ImaggaUnavailableException("Imagga rate limit exceeded", retryAfter(maxWait));
+        }
+        // the wait for a slot shares the caller's budget with the wait for a permit
+        if (!concurrencyLimit.acquire(Duration.ofNanos(Math.max(0, deadline - System.nanoTime())))) {
+            rateLimitRejections.increment();
+            throw new ImaggaUnavailableException("Too many imagga calls in flight", retryAfter(maxWait));
+        }
+        if (!circuitBreaker.tryAcquire()) {
+            // the circuit opened or another caller is making the trial call while we waited
+            concurrencyLimit.onIgnore();
+            throw circuitOpen();
+        }
+
+        T result;
+        try {
+            result = call.call();
+        } catch (Exception ex) {
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            onFailure(ex);
+            throw ex;
+        }
+        onSuccess();
+        return result;
+    }
+
+    /**
+     * Make one attempt and, if it fails in a way worth retrying, schedule the next one after the backoff.
+     */
+    private <T> void attemptAsync(AsyncImaggaCall<T> call, Duration maxWait, int attempt, CompletableFuture<T> result) {
+        attemptAsync(call, maxWait).whenComplete((value, failure) -> {
+            if (failure == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+            Duration backoff;
+            try {
+                if (!(cause instanceof Exception ex)) {
+                    throw cause;
+                }
+                backoff = backoffBeforeRetry(attempt, ex);
+            } catch (Throwable last) {
+                result.completeExceptionally(last);
+                return;
+            }
+            log.debug("Imagga call attempt {} failed, retrying in {}", attempt, backoff, cause);
+            retries.increment();
+            CompletableFuture.delayedExecutor(backoff.toMillis(), TimeUnit.MILLISECONDS)
+                    .execute(() -> attemptAsync(call, maxWait, attempt + 1, result));
+        });
+    }
+
+    private <T> CompletableFuture<T> attemptAsync(AsyncImaggaCall<T> call, Duration maxWait) {
+        if (circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+            return CompletableFuture.failedFuture(circuitOpen());
+        }
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        long permitWait = tokenBucket.reserve(maxWait);
+        if (permitWait < 0) {
+            rateLimitRejections.increment();
+            return CompletableFuture.failedFuture(
+                    new ImaggaUnavailableException("Imagga rate limit exceeded", retryAfter(maxWait)));
+        }
+        CompletableFuture<Void> permit = permitWait == 0 ? CompletableFuture.completedFuture(null)
+                : CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(permitWait, TimeUnit.NANOSECONDS));
+        return permit
+                .thenCompose(ignored -> concurrencyLimit.acquireAsync(
+                        Duration.ofNanos(Math.max(0, deadline - System.nanoTime()))))
+                .thenCompose(acquired -> {
+                    if (!acquired) {
+                        rateLimitRejections.increment();
+                        return CompletableFuture.failedFuture(
+                                new ImaggaUnavailableException("Too many imagga calls in flight", retryAfter(maxWait)));
+                    }
+                    if (!circuitBreaker.tryAcquire()) {
+                        concurrencyLimit.onIgnore();
+                        return CompletableFuture.failedFuture(circuitOpen());
+                    }
+                    CompletableFuture<T> attempt;
+                    try {
+                        attempt = call.call();
+                    } catch (RuntimeException ex) {
+                        attempt = CompletableFuture.failedFuture(ex);
+                    }
+                    return attempt.whenComplete((value, failure) -> {
+                        if (failure == null) {
+                            onSuccess();
+                        } else {
+                            onFailure(failure instanceof CompletionException ? failure.getCause() : failure);
+                        }
+                    });
+                });
+    }
+
+    private void onSuccess() {
+        circuitBreaker.onSuccess();
+        concurrencyLimit.onSuccess();
+    }
+
+    /**
+     * Record how an attempt failed with the circuit breaker, the concurrency limit and the failure counts.
+     */
+    private void onFailure(Throwable failure) {
+        if (failure instanceof ImaggaException ex) {
+            countFailure(ex.getStatusCode() == 429 ? "throttled"
+                    : ex.getStatusCode() >= 500 ? "server-error" : "client-error");
+            if (ex.isRetryable()) {
+                circuitBreaker.onFailure();
+            } else {
+                // imagga is up, it just didn't like this request
+                circuitBreaker.onSuccess();
+            }
+            if (ex.isOverload()) {
+                concurrencyLimit.onOverload();
+            } else {
+                concurrencyLimit.onIgnore();
+            }
+        } else if (failure instanceof IOException ex) {
+            countFailure(ex instanceof HttpTimeoutException ? "timeout"
+                    : ex instanceof ConnectException ? "connect" : "io");
+            circuitBreaker.onFailure();
+            if (ex instanceof HttpTimeoutException) {
+                concurrencyLimit.onOverload();
+            } else {
+                concurrencyLimit.onIgnore();
+            }
+        } else if (failure instanceof InterruptedException || failure instanceof CancellationException) {
+            // we gave up on the call, that says nothing about imagga. A trial call is handed to the next caller
+            circuitBreaker.onIgnore();
+            concurrencyLimit.onIgnore();
+        } else {
+            // imagga answered but we couldn't use the response, that doesn't mean it is down
+            countFailure("invalid-response");
+            circuitBreaker.onSuccess();
+            concurrencyLimit.onIgnore();
+        }
+    }
+
+    /**
+     * Count a failed attempt, whether or not it is retried.
+     */
+    private void countFailure(String cause) {
+        registry.counter("imagga.failures", "cause", cause).increment();
+    }
+
+    private ImaggaUnavailableException circuitOpen() {
+        circuitOpenRejections.increment();
+        return new ImaggaUnavailableException("Imagga is unavailable", retryAfter(circuitBreaker.getRemainingOpen()));
+    }
+
+    private static Duration retryAfter(Duration wait) {
+        return wait.compareTo(MIN_RETRY_AFTER) < 0 ? MIN_RETRY_AFTER : wait;
+    }
+
+    /**
+     * Full jitter: a random wait up to a cap that doubles with every attempt, so callers that failed together
+     * don't all retry together.
+     */
+    private Duration backoff(int attempt) {
+        long cap = Math.min(retry.maxBackoff().toMillis(), retry.initialBackoff().toMillis() << Math.min(attempt - 1, 20));
+        return Duration.ofMillis(ThreadLocalRandom.current().nextLong(cap + 1));
+    }
+}
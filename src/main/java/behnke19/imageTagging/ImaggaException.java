@@ -0,0 +1,43 @@
+package behnke19.imageTagging;
+
+import java.time.Duration;
+
+/**
+ * Imagga answered a request with an error status.
+ */
+class ImaggaException extends Exception {
+    private final int statusCode;
+    private final Duration retryAfter;
+
+    ImaggaException(int statusCode, Duration retryAfter) {
+        super("Imagga responded with status " + statusCode);
+        this.statusCode = statusCode;
+        this.retryAfter = retryAfter;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return how long imagga asked us to wait before trying again, or null if it didn't say
+     */
+    Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Rate limiting and server errors are usually temporary so they are worth another try, other client errors
+     * will fail the same way every time.
+     */
+    boolean isRetryable() {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * @return true if imagga is telling us to slow down
+     */
+    boolean isOverload() {
+        return statusCode == 429 || statusCode == 503;
+    }
+}
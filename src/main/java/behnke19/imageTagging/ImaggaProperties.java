@@ -0,0 +1,67 @@
+package behnke19.imageTagging;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+/**
+ * Settings for how we call imagga, bound from the imagga.* properties.
+ * @param tagsEndpoint the url of the imagga tags api
+ * @param uploadsEndpoint the url of the imagga uploads api
+ * @param confidenceThreshold tags imagga is less confident about than this are ignored
+ * @param rateLimit requests per second allowed by our imagga plan
+ * @param concurrency bounds for the adaptive limit on requests in flight
+ * @param timeouts connect and read timeouts for each request
+ * @param retry backoff for requests that fail with a retryable status
+ * @param circuitBreaker when to stop calling imagga after repeated failures
+ */
+@ConfigurationProperties("imagga")
+record ImaggaProperties(@DefaultValue("https://api.imagga.com/v2/tags") String tagsEndpoint,
+                        @DefaultValue("https://api.imagga.com/v2/uploads") String uploadsEndpoint,
+                        @DefaultValue("30") float confidenceThreshold,
+                        @DefaultValue RateLimit rateLimit,
+                        @DefaultValue Concurrency concurrency,
+                        @DefaultValue Timeouts timeouts,
+                        @DefaultValue Retry retry,
+                        @DefaultValue CircuitBreaker circuitBreaker) {
+
+    /**
+     * @param permitsPerSecond the steady request rate
+     * @param burst how many requests may be sent back to back after a quiet period
+     * @param maxWait how long a background caller will wait for a permit and a free slot before giving up
+     * @param foregroundMaxWait how long a request waiting for its detection will wait before it fails
+     */
+    record RateLimit(@DefaultValue("2") double permitsPerSecond,
+                     @DefaultValue("5") int burst,
+                     @DefaultValue("30s") Duration maxWait,
+                     @DefaultValue("2s") Duration foregroundMaxWait) {}
+
+    /**
+     * @param initial the limit on requests in flight at startup
+     * @param min the limit never drops below this
+     * @param max the limit never grows above this
+     */
+    record Concurrency(@DefaultValue("4") int initial,
+                       @DefaultValue("1") int min,
+                       @DefaultValue("16") int max) {}
+
+    record Timeouts(@DefaultValue("5s") Duration connect,
+                    @DefaultValue("30s") Duration read) {}
+
+    /**
+     * @param maxAttempts the total number of attempts including the first one
+     * @param initialBackoff the backoff cap for the first retry, doubled for every retry after it
+     * @param maxBackoff the backoff is never longer than this
+     */
+    record Retry(@DefaultValue("3") int maxAttempts,
+                 @DefaultValue("200ms") Duration initialBackoff,
+                 @DefaultValue("5s") Duration maxBackoff) {}
+
+    /**
+     * @param failureThreshold consecutive failed calls that open the circuit
+     * @param openDuration how long calls fail fast before a trial call is let through
+     */
+    record CircuitBreaker(@DefaultValue("5") int failureThreshold,
+                          @DefaultValue("30s") Duration openDuration) {}
+}
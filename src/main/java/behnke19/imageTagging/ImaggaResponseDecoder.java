@@ -0,0 +1,199 @@
+package behnke19.imageTagging;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads imagga responses straight off the response stream with a streaming parser. Only the fields we use are
+ * read, everything else is skipped without being built into objects. Tag names are interned against a shared
+ * vocabulary so every cached result and image refers to the same string for a tag.
+ */
+@Component
+class ImaggaResponseDecoder {
+    // imagga has a few thousand tags, this only stops a misbehaving server from growing the vocabulary forever
+    private static final int MAX_VOCABULARY = 100_000;
+
+    private final JsonFactory jsonFactory;
+    private final Map<String, String> vocabulary = new ConcurrentHashMap<>();
+
+    ImaggaResponseDecoder(ObjectMapper objectMapper) {
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    /**
+     * Read the tags out of a tags response, e.g.
+     * {"result":{"tags":[{"confidence":61.4,"tag":{"en":"mountain"}}]},"status":{"text":"","type":"success"}}
+     * @param in the response body
+     * @param threshold tags with a lower confidence than this are dropped
+     * @return the tags in the order imagga returned them
+     * @throws Exception if the response isn't valid or imagga did not report the tagging as successful
+     */
+    List<DetectedTag> decodeTags(InputStream in, float threshold) throws Exception {
+        List<DetectedTag> tags = new ArrayList<>();
+        boolean success = false;
+        boolean hasResult = false;
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("result".equals(field) && value == JsonToken.START_OBJECT) {
+                    hasResult = true;
+                    readResultTags(parser, threshold, tags);
+                } else if ("status".equals(field) && value == JsonToken.START_OBJECT) {
+                    success = readStatusIsSuccess(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (JsonProcessingException ex) {
+            // a malformed body won't get any better by asking again
+            throw new Exception("Could not read the imagga response", ex);
+        }
+        if (!success || !hasResult) {
+            throw new Exception("Error processing image");
+        }
+        return tags;
+    }
+
+    /**
+     * Read the upload id out of an uploads response, e.g.
+     * {"result":{"upload_id":"i05e132196706b94b1d85efb5f3SaM1j"},"status":{"text":"","type":"success"}}
+     * @param in the response body
+     * @return the upload id
+     * @throws Exception if the response isn't valid or imagga did not report the upload as successful
+     */
+    String decodeUploadId(InputStream in) throws Exception {
+        String uploadId = null;
+        boolean success = false;
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("result".equals(field) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String resultField = parser.currentName();
+                        if (parser.nextToken() == JsonToken.VALUE_STRING && "upload_id".equals(resultField)) {
+                            uploadId = parser.getText();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else if ("status".equals(field) && value == JsonToken.START_OBJECT) {
+                    success = readStatusIsSuccess(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (JsonProcessingException ex) {
+            throw new Exception("Could not read the imagga response", ex);
+        }
+        if (!success || uploadId == null) {
+            throw new Exception("error uploading file");
+        }
+        return uploadId;
+    }
+
+    /**
+     * @param name a tag name read from a response
+     * @return the shared instance of that name
+     */
+    String intern(String name) {
+        String shared = vocabulary.get(name);
+        if (shared != null) {
+            return shared;
+        }
+        if (vocabulary.size() >= MAX_VOCABULARY) {
+            return name;
+        }
+        shared = vocabulary.putIfAbsent(name, name);
+        return shared == null ? name : shared;
+    }
+
+    /**
+     * Read the tags array of the result object. The parser is on the result's START_OBJECT and is left on its
+     * END_OBJECT.
+     */
+    private void readResultTags(JsonParser parser, float threshold, List<DetectedTag> tags) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            JsonToken value = parser.nextToken();
+            if (!"tags".equals(parser.currentName()) || value != JsonToken.START_ARRAY) {
+                parser.skipChildren();
+                continue;
+            }
+            JsonToken element;
+            while ((element = parser.nextToken()) != JsonToken.END_ARRAY && element != null) {
+                if (element != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+                float confidence = 0f;
+                String name = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    value = parser.nextToken();
+                    if ("confidence".equals(field) && value.isNumeric()) {
+                        confidence = parser.getFloatValue();
+                    } else if ("tag".equals(field) && value == JsonToken.START_OBJECT) {
+                        name = readEnglishName(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                // imagga usually drops these itself when given a threshold, but don't rely on it
+                if (name != null && confidence >= threshold) {
+                    tags.add(new DetectedTag(intern(name), confidence));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the english name of a tag object, or null if it has none. There are only english tags.
+     */
+    private static String readEnglishName(JsonParser parser) throws IOException {
+        String name = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            if (parser.nextToken() == JsonToken.VALUE_STRING && "en".equals(field)) {
+                name = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return name;
+    }
+
+    private static boolean readStatusIsSuccess(JsonParser parser) throws IOException {
+        boolean success = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            if (parser.nextToken() == JsonToken.VALUE_STRING && "type".equals(field)) {
+                success = "success".equals(parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return success;
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new JsonParseException(parser,
+                    "Expected " + expected + " but found " + actual);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package behnke19.imageTagging;
+
+import java.time.Duration;
+
+/**
+ * A call to imagga was not attempted because the circuit breaker is open or no rate limit permit was available in
+ * time. The work can be tried again later.
+ */
+class ImaggaUnavailableException extends Exception {
+    private final Duration retryAfter;
+
+    ImaggaUnavailableException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return how long to wait before trying again
+     */
+    Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
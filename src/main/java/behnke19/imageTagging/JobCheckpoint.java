@@ -0,0 +1,111 @@
+package behnke19.imageTagging;
+
+import jakarta.persistence.*;
+
+import java.time.Instant;
+
+/**
+ * The progress of a background job over the images, saved in the same transaction as each batch of its results so
+ * it can carry on from where it stopped after a pause or a restart. Images are walked in id order, every image up to
+ * lastImageId has been handled.
+ */
+@Entity
+@Table(name = "job_checkpoint")
+public class JobCheckpoint {
+    /** whether a job is meant to be running */
+    public enum State {
+        RUNNING,
+        PAUSED,
+        COMPLETE
+    }
+
+    /** which images a re-tagging job goes over */
+    public enum Scope {
+        /** images that were never tagged or whose detection failed, results may come from the detection cache */
+        UNTAGGED,
+        /** every image, each one is sent to imagga again and its tags replaced */
+        ALL
+    }
+
+    @Id
+    @Column(length = 50)
+    private String name;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private Scope scope;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private State state;
+
+    private long lastImageId;
+
+    private long tagged;
+
+    private long failed;
+
+    private Instant startedAt;
+
+    private Instant updatedAt;
+
+    JobCheckpoint() {}
+
+    JobCheckpoint(String name, Scope scope) {
+        this.name = name;
+        this.scope = scope;
+        this.state = State.RUNNING;
+        this.startedAt = Instant.now();
+        this.updatedAt = startedAt;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Scope getScope() {
+        return scope;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+        this.updatedAt = Instant.now();
+    }
+
+    public long getLastImageId() {
+        return lastImageId;
+    }
+
+    /**
+     * Record a batch of results.
+     * @param lastImageId the id of the last image handled
+     * @param tagged the number of images that were tagged
+     * @param failed the number of images detection failed for
+     */
+    void advance(long lastImageId, long tagged, long failed) {
+        this.lastImageId = lastImageId;
+        this.tagged += tagged;
+        this.failed += failed;
+        this.updatedAt = Instant.now();
+    }
+
+    public long getTagged() {
+        return tagged;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+}
@@ -0,0 +1,78 @@
+package behnke19.imageTagging;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Locale;
+
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class JobController {
+    private final RetagJob retagJob;
+
+    JobController(RetagJob retagJob) {
+        this.retagJob = retagJob;
+    }
+
+    /**
+     * POST to start re-tagging images in the background from the first image. Any paused or finished job is
+     * replaced.
+     * @param scope 'untagged' for images that were never tagged or whose detection failed, or 'all' to send every
+     *              image to imagga again and replace its tags (optional, defaults to untagged)
+     * @return a 202 with the job's checkpoint
+     */
+    @PostMapping("/jobs/retag")
+    ResponseEntity<JobCheckpoint> startRetag(@RequestParam(value = "scope", required = false) String scope) {
+        JobCheckpoint.Scope parsed;
+        try {
+            parsed = scope == null ? JobCheckpoint.Scope.UNTAGGED
+                    : JobCheckpoint.Scope.valueOf(scope.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "scope must be 'untagged' or 'all'");
+        }
+        try {
+            return ResponseEntity.accepted().body(retagJob.start(parsed));
+        } catch (IllegalStateException ex) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, ex.getMessage());
+        }
+    }
+
+    /**
+     * POST to pause the running re-tagging job. It stops once the images it is working on are saved.
+     * @return a 202 with the job's checkpoint
+     */
+    @PostMapping("/jobs/retag/pause")
+    ResponseEntity<JobCheckpoint> pauseRetag() {
+        return ResponseEntity.accepted().body(retagJob.pause().orElseThrow(() ->
+                new ResponseStatusException(HttpStatus.NOT_FOUND, "No re-tagging job has been started")));
+    }
+
+    /**
+     * POST to carry on with a paused re-tagging job from its checkpoint.
+     * @return a 202 with the job's checkpoint
+     */
+    @PostMapping("/jobs/retag/resume")
+    ResponseEntity<JobCheckpoint> resumeRetag() {
+        try {
+            return ResponseEntity.accepted().body(retagJob.resume());
+        } catch (IllegalStateException ex) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, ex.getMessage());
+        }
+    }
+
+    /**
+     * GET the progress of the re-tagging job as of the last chunk of images it saved.
+     * @return
+     */
+    @GetMapping("/jobs/retag")
+    JobCheckpoint getRetag() {
+        return retagJob.status().orElseThrow(() ->
+                new ResponseStatusException(HttpStatus.NOT_FOUND, "No re-tagging job has been started"));
+    }
+}
@@ -0,0 +1,64 @@
+package behnke19.imageTagging;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Moves image files that were stored as LOBs in the image_content column of the image table into the
+ * {@link ImageContentStore}, then drops the column. Images are moved a batch at a time in id order so a restart
+ * part way through picks up where it left off.
+ */
+@Component
+class LegacyContentMigration {
+    private static final Logger log = LoggerFactory.getLogger(LegacyContentMigration.class);
+    private static final int BATCH_SIZE = 50;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ImageContentStore contentStore;
+
+    // the repository isn't used directly but depending on it makes sure hibernate has added the new columns
+    LegacyContentMigration(JdbcTemplate jdbcTemplate, ImageContentStore contentStore,
+                           ImageRepository imageRepository) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.contentStore = contentStore;
+    }
+
+    @PostConstruct
+    void migrate() throws IOException {
+        if (!DatabaseSchema.columnExists(jdbcTemplate, "image", "image_content")) {
+            return;
+        }
+        long lastId = 0;
+        int migrated = 0;
+        while (true) {
+            // only a batch of LOBs is held in memory at a time
+            List<LegacyContent> rows = jdbcTemplate.query(
+                    "SELECT id, image_content FROM image WHERE id > ? AND image_content IS NOT NULL ORDER BY id LIMIT ?",
+                    (rs, rowNum) -> new LegacyContent(rs.getLong("id"), rs.getBytes("image_content")),
+                    lastId, BATCH_SIZE);
+            if (rows.isEmpty()) {
+                break;
+            }
+            for (LegacyContent row : rows) {
+                long id = row.id();
+                byte[] content = row.content();
+                String hash = contentStore.store(content);
+                jdbcTemplate.update("UPDATE image SET content_hash = ?, content_length = ?, content_type = ?,"
+                                + " image_content = NULL WHERE id = ?",
+                        hash, (long) content.length, contentStore.probeContentType(hash, null), id);
+                lastId = id;
+                migrated++;
+            }
+        }
+        jdbcTemplate.execute("ALTER TABLE image DROP COLUMN image_content");
+        log.info("Moved {} image files out of the database into the content store", migrated);
+    }
+
+    private record LegacyContent(long id, byte[] content) {}
+}
@@ -0,0 +1,53 @@
+package behnke19.imageTagging;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Moves tags from the old image_detected_objects table, which stored the tag name once per image, into the tag
+ * dictionary and the image_tag join table. Hibernate creates the new tables on startup, this copies the data over
+ * and drops the old tables so it only ever runs once.
+ */
+@Component
+class LegacyTagMigration {
+    private static final Logger log = LoggerFactory.getLogger(LegacyTagMigration.class);
+    // imagga only returned tags above our threshold so the old tags are at least this confident
+    private static final float LEGACY_CONFIDENCE = 30.0f;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    // the tag repository isn't used directly but depending on it makes sure hibernate has created the new tables
+    LegacyTagMigration(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate,
+                       TagRepository tagRepository) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    @PostConstruct
+    void migrate() {
+        if (DatabaseSchema.tableExists(jdbcTemplate, "image_detected_objects")) {
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.update("INSERT INTO tag (name) SELECT DISTINCT d.detected_objects"
+                        + " FROM image_detected_objects d WHERE d.detected_objects IS NOT NULL"
+                        + " AND NOT EXISTS (SELECT 1 FROM tag t WHERE t.name = d.detected_objects)");
+                int migrated = jdbcTemplate.update("INSERT INTO image_tag (image_id, tag_id, confidence)"
+                        + " SELECT DISTINCT d.image_id, t.id, ? FROM image_detected_objects d"
+                        + " JOIN tag t ON t.name = d.detected_objects"
+                        + " WHERE NOT EXISTS (SELECT 1 FROM image_tag it"
+                        + " WHERE it.image_id = d.image_id AND it.tag_id = t.id)", LEGACY_CONFIDENCE);
+                log.info("Migrated {} image tags into image_tag", migrated);
+            });
+            jdbcTemplate.execute("DROP TABLE image_detected_objects");
+        }
+        if (DatabaseSchema.tableExists(jdbcTemplate, "detection_cache_objects")) {
+            // cached results from before confidences were kept can't be converted, imagga will be asked again
+            jdbcTemplate.execute("DROP TABLE detection_cache_objects");
+            jdbcTemplate.update("DELETE FROM detection_cache");
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package behnke19.imageTagging;
+
+import java.io.FileNotFoundException;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Builds a multipart/form-data request body out of byte arrays or files without copying them. The part headers and
+ * boundaries are small arrays of their own and the publisher sends everything back to back.
+ */
+class MultipartBody {
+    private static final String CRLF = "\r\n";
+    private static final String TWO_HYPHENS = "--";
+
+    private final String boundary;
+    private final List<HttpRequest.BodyPublisher> parts = new ArrayList<>();
+
+    MultipartBody() {
+        this("ImageUpload" + UUID.randomUUID().toString().replace("-", ""));
+    }
+
+    MultipartBody(String boundary) {
+        this.boundary = boundary;
+    }
+
+    /**
+     * Add a form field to the body.
+     * @param name the form field name
+     * @param value the field value
+     * @param contentType the media type of the value, which decides how the server converts it
+     * @return this body
+     */
+    MultipartBody addField(String name, String value, String contentType) {
+        String part = TWO_HYPHENS + boundary + CRLF
+                + "Content-Disposition: form-data; name=\"" + name + "\"" + CRLF
+                + "Content-Type: " + contentType + CRLF
+                + CRLF
+                + value + CRLF;
+        parts.add(HttpRequest.BodyPublishers.ofByteArray(part.getBytes(StandardCharsets.UTF_8)));
+        return this;
+    }
+
+    /**
+     * Add a file part to the body. The content array is sent as is so it must not be modified until the request
+     * has been sent.
+     * @param name the form field name
+     * @param filename the file name reported to the server
+     * @param content the file content
+     * @return this body
+     */
+    MultipartBody addFile(String name, String filename, byte[] content) {
+        return addFile(name, filename, HttpRequest.BodyPublishers.ofByteArray(content));
+    }
+
+    /**
+     * Add a file part to the body that is read from disk while the request is sent.
+     * @param name the form field name
+     * @param filename the file name reported to the server
+     * @param file the file to send
+     * @return this body
+     * @throws FileNotFoundException if the file doesn't exist
+     */
+    MultipartBody addFile(String name, String filename, Path file) throws FileNotFoundException {
+        return addFile(name, filename, HttpRequest.BodyPublishers.ofFile(file));
+    }
+
+    private MultipartBody addFile(String name, String filename, HttpRequest.BodyPublisher content) {
+        String header = TWO_HYPHENS + boundary + CRLF
+                + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + filename + "\"" + CRLF
+                + CRLF;
+        parts.add(HttpRequest.BodyPublishers.ofByteArray(header.getBytes(StandardCharsets.UTF_8)));
+        parts.add(content);
+        parts.add(HttpRequest.BodyPublishers.ofByteArray(CRLF.getBytes(StandardCharsets.UTF_8)));
+        return this;
+    }
+
+    /**
+     * @return the value for the Content-Type header of the request
+     */
+    String contentType() {
+        return "multipart/form-data;boundary=" + boundary;
+    }
+
+    /**
+     * @return a publisher that streams every part followed by the closing boundary
+     */
+    HttpRequest.BodyPublisher publisher() {
+        List<HttpRequest.BodyPublisher> all = new ArrayList<>(parts);
+        String closing = TWO_HYPHENS + boundary + TWO_HYPHENS + CRLF;
+        all.add(HttpRequest.BodyPublishers.ofByteArray(closing.getBytes(StandardCharsets.UTF_8)));
+        return HttpRequest.BodyPublishers.concat(all.toArray(new HttpRequest.BodyPublisher[0]));
+    }
+}
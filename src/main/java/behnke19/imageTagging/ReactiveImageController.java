@@ -0,0 +1,350 @@
+package behnke19.imageTagging;
+
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.multipart.FilePartEvent;
+import org.springframework.http.codec.multipart.FormPartEvent;
+import org.springframework.http.codec.multipart.PartEvent;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The /images api of {@link ImageController} served by WebFlux for the reactive profile. No request holds a thread
+ * while it waits: images are read and written through the {@link ReactiveImageRepository}, imagga is called through
+ * {@link ImageTaggingService#detectTagsAsync} and uploaded files are written to the content store as their parts
+ * arrive, with the next part of the request only read once the last one has been written. The little work that
+ * still blocks, such as hashing an image for near-duplicates or resolving a new tag, runs on the bounded elastic
+ * scheduler.
+ * <p>
+ * Listing, fetching and uploading single images are served here. The rest of the api is only served by the
+ * servlet controllers.
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveImageController {
+    private final ReactiveImageRepository repository;
+    private final ImageCache imageCache;
+    private final ImageTaggingService taggingService;
+    private final DetectionWorker detectionWorker;
+    private final TagIndex tagIndex;
+    private final ImageContentStore contentStore;
+    private final ImageIngestor ingestor;
+    private final ObservationRegistry observationRegistry;
+
+    ReactiveImageController(ReactiveImageRepository repository, ImageCache imageCache,
+                            ImageTaggingService taggingService, DetectionWorker detectionWorker, TagIndex tagIndex,
+                            ImageContentStore contentStore, ImageIngestor ingestor,
+                            ObservationRegistry observationRegistry) {
+        this.repository = repository;
+        this.imageCache = imageCache;
+        this.taggingService = taggingService;
+        this.detectionWorker = detectionWorker;
+        this.tagIndex = tagIndex;
+        this.contentStore = contentStore;
+        this.ingestor = ingestor;
+        this.observationRegistry = observationRegistry;
+    }
+
+    /**
+     * GET a page of images, optionally only those containing the given objects. The same as
+     * {@link ImageController#getImages}.
+     * @param objects comma separated list of objects (optional)
+     * @param minConfidence only match objects imagga detected with at least this confidence (optional)
+     * @param after only return images with an id greater than this, the cursor from the previous page (optional)
+     * @param limit the maximum number of images to return, defaults to 100 and is capped at 1000 (optional)
+     * @param request
+     * @return
+     */
+    @GetMapping(value = "/images", produces = MediaType.APPLICATION_JSON_VALUE)
+    Mono<ResponseEntity<List<Image>>> getImages(@RequestParam(value = "objects", required = false) String objects,
+                                                @RequestParam(value = "minConfidence", required = false) Float minConfidence,
+                                                @RequestParam(value = "after", required = false) Long after,
+                                                @RequestParam(value = "limit", required = false) Integer limit,
+                                                ServerHttpRequest request) {
+        long cursor = after == null ? 0 : after;
+        int pageSize = limit == null ? ImageController.DEFAULT_PAGE_SIZE
+                : Math.max(1, Math.min(limit, ImageController.MAX_PAGE_SIZE));
+        Set<String> targetObjects = ImageController.parseObjects(objects);
+
+        String strategy = targetObjects.isEmpty() ? "page"
+                : minConfidence == null ? "index" : "database";
+        // ask for one extra image to find out if there is another page
+        Mono<List<Image>> images = Flux.defer(() -> switch (strategy) {
+            case "page" -> repository.findPage(cursor, pageSize + 1);
+            // the index does the matching so only the images in the page are loaded
+            case "index" -> repository.findAllById(indexedPage(targetObjects, cursor, pageSize + 1));
+            // confidences aren't in the index so match in the database instead
+            default -> repository.findContainingAll(targetObjects, minConfidence, cursor, pageSize + 1);
+        }).collectList();
+
+        return observe(images, strategy).map(page -> {
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            if (page.size() > pageSize) {
+                page = page.subList(0, pageSize);
+                String next = UriComponentsBuilder.fromHttpRequest(request)
+                        .replaceQueryParam("after", page.get(pageSize - 1).getId())
+                        .replaceQueryParam("limit", pageSize)
+                        .toUriString();
+                response.header(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"");
+            }
+            return response.body(page);
+        });
+    }
+
+    /**
+     * @return the ids of up to count images containing all the objects with an id greater than cursor, in order
+     */
+    private List<Long> indexedPage(Set<String> objects, long cursor, int count) {
+        long[] matchingIds = tagIndex.findContainingAll(objects);
+        int from = Arrays.binarySearch(matchingIds, cursor);
+        from = from >= 0 ? from + 1 : -from - 1;
+        int to = (int) Math.min(matchingIds.length, (long) from + count);
+        return Arrays.stream(matchingIds, from, to).boxed().toList();
+    }
+
+    /**
+     * Time a query from when it is subscribed to until it completes, the way the servlet controller observes its
+     * blocking queries.
+     */
+    private <T> Mono<T> observe(Mono<T> query, String strategy) {
+        return Mono.defer(() -> {
+            Observation observation = Observation.createNotStarted("imageTagging.images.query", observationRegistry)
+                    .contextualName("query images")
+                    .lowCardinalityKeyValue("strategy", strategy)
+                    .start();
+            return query.doOnError(observation::error).doFinally(signal -> observation.stop());
+        });
+    }
+
+    /**
+     * GET a specific image. The ETag changes whenever the image or its tags do, and a request with a matching
+     * If-None-Match gets a 304 without the image being loaded.
+     * @param id the id of the image to fetch.
+     * @param exchange
+     * @return
+     */
+    @GetMapping("/images/{id}")
+    Mono<ResponseEntity<Image>> getImage(@PathVariable Long id, ServerWebExchange exchange) {
+        return findHeader(id).flatMap(header -> {
+            String etag = "\"" + id + "-" + header.version() + "\"";
+            if (exchange.checkNotModified(etag)) {
+                return Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).<Image>build());
+            }
+            // tags can change at any time so clients have to check back before using a stored copy
+            return findImage(id).map(image -> ResponseEntity.ok().cacheControl(CacheControl.noCache()).body(image));
+        });
+    }
+
+    private Mono<Image> findImage(Long id) {
+        return Mono.justOrEmpty(imageCache.getIfPresent(id))
+                .switchIfEmpty(repository.findById(id))
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND,
+                        "No Image found with the id " + id)));
+    }
+
+    private Mono<ImageHeader> findHeader(Long id) {
+        Optional<Image> cached = imageCache.getIfPresent(id);
+        if (cached.isPresent()) {
+            Image image = cached.get();
+            return Mono.just(new ImageHeader(image.getVersion(), image.getContentHash(), image.getContentType()));
+        }
+        return repository.findHeaderById(id).switchIfEmpty(Mono.error(() ->
+                new ResponseStatusException(HttpStatus.NOT_FOUND, "No Image found with the id " + id)));
+    }
+
+    /**
+     * GET the file content of an uploaded image. WebFlux answers a Range header from the file on disk. The ETag is
+     * the hash of the content, which never changes.
+     * @param id the id of the image.
+     * @return
+     */
+    @GetMapping("/images/{id}/content")
+    Mono<ResponseEntity<Resource>> getImageContent(@PathVariable Long id) {
+        return findHeader(id).map(header -> {
+            if (header.contentHash() == null) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND,
+                        "The image with the id " + id + " was uploaded as a url and has no stored content");
+            }
+            return ResponseEntity.ok()
+                    .header(HttpHeaders.CACHE_CONTROL, ImageController.IMMUTABLE)
+                    .eTag("\"" + header.contentHash() + "\"")
+                    .contentType(MediaType.parseMediaType(header.contentType()))
+                    .body(new FileSystemResource(contentStore.path(header.contentHash())));
+        });
+    }
+
+    /**
+     * GET the status of object detection for an image. The image id doubles as the job id for async uploads.
+     * @param id the id of the image.
+     * @return
+     */
+    @GetMapping("/images/{id}/detection")
+    Mono<DetectionJob> getDetection(@PathVariable Long id) {
+        return findImage(id).map(DetectionJob::of);
+    }
+
+    /**
+     * POST call to upload an image and optionally scan it to detect objects in the image, with the same parts as
+     * {@link ImageController#uploadImage}. Provide either a URL or a file but not both.
+     * @param parts the parts of the multipart form, as they arrive
+     * @return
+     */
+    @PostMapping(value = "/images", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    Mono<ResponseEntity<?>> uploadImage(@RequestBody Flux<PartEvent> parts) {
+        // each part is finished before the next is read, a file part is written out a buffer at a time
+        return parts.windowUntil(PartEvent::isLast)
+                .concatMap(part -> part.switchOnFirst((first, events) -> {
+                    if (first.get() instanceof FilePartEvent file && file.name().equals("file")) {
+                        return storeFile(file, events.map(PartEvent::content));
+                    }
+                    if (first.get() instanceof FormPartEvent field) {
+                        return events.then(Mono.just(new UploadPart(field.name(), field.value(), null, null)));
+                    }
+                    // anything else is read and dropped
+                    return events.doOnNext(event -> DataBufferUtils.release(event.content())).then(Mono.empty());
+                }))
+                .collectList()
+                .flatMap(this::uploadImage);
+    }
+
+    /**
+     * A field or file of an upload form. A file has been stored by the time its part is complete.
+     */
+    private record UploadPart(String name, String value, ImageContentStore.StoredContent file, String contentType) {}
+
+    private Mono<UploadPart> storeFile(FilePartEvent first, Flux<DataBuffer> content) {
+        MediaType declaredType = first.headers().getContentType();
+        MessageDigest digest = ImageContentStore.newDigest();
+        long[] length = {0};
+        Flux<DataBuffer> hashed = content.doOnNext(buffer -> {
+            length[0] += buffer.readableByteCount();
+            try (DataBuffer.ByteBufferIterator buffers = buffer.readableByteBuffers()) {
+                while (buffers.hasNext()) {
+                    ByteBuffer next = buffers.next();
+                    digest.update(next);
+                }
+            }
+        });
+        // DataBufferUtils only asks for the next buffer once the last has been written, so a slow disk slows down
+        // the reading of the request rather than buffering it
+        return Mono.usingWhen(
+                        Mono.fromCallable(contentStore::createTempFile).subscribeOn(Schedulers.boundedElastic()),
+                        tmp -> DataBufferUtils.write(hashed, tmp)
+                                .then(Mono.fromCallable(() -> contentStore.moveIntoPlace(tmp,
+                                        HexFormat.of().formatHex(digest.digest()), length[0]))
+                                        .subscribeOn(Schedulers.boundedElastic())),
+                        tmp -> Mono.fromCallable(() -> Files.deleteIfExists(tmp))
+                                .subscribeOn(Schedulers.boundedElastic()))
+                .onErrorMap(IOException.class, ex -> new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                        "Error saving image file."))
+                .map(stored -> new UploadPart(first.name(), null, stored,
+                        declaredType == null ? null : declaredType.toString()));
+    }
+
+    private Mono<ResponseEntity<?>> uploadImage(List<UploadPart> parts) {
+        Map<String, String> fields = new HashMap<>();
+        UploadPart file = null;
+        for (UploadPart part : parts) {
+            if (part.file() != null) {
+                file = part;
+            } else {
+                fields.put(part.name(), part.value());
+            }
+        }
+        String label = fields.get("label");
+        String url = fields.get("url");
+        boolean detectObjects = Boolean.parseBoolean(fields.get("detectObjects"));
+        boolean async = Boolean.parseBoolean(fields.get("async"));
+        // no image provided so nothing to do. Ask the user to provide one.
+        if ((url == null || url.isBlank()) && file == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A url or image file is required");
+        }
+        if ((url != null && !url.isBlank()) && file != null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "Both a url and image file were provided. Please provide only one of them.");
+        }
+
+        Mono<Image> image;
+        if (file != null) {
+            UploadPart stored = file;
+            // probing the type, starting the thumbnails and hashing the image read the file
+            image = Mono.fromCallable(() -> ingestor.fromStoredContent(label, stored.file(), stored.contentType()))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .onErrorMap(IOException.class, ex -> new ResponseStatusException(
+                            HttpStatus.INTERNAL_SERVER_ERROR, "Error saving image file."));
+        } else {
+            image = Mono.just(ingestor.fromUrl(label, url));
+        }
+
+        if (!detectObjects) {
+            return image.flatMap(unsaved -> {
+                unsaved.setDetectionStatus(DetectionStatus.NONE);
+                return repository.insert(unsaved);
+            }).map(ResponseEntity::ok);
+        }
+
+        if (async) {
+            // save first so the caller gets an id to poll, then let a worker fill in the detected objects
+            return image.flatMap(unsaved -> {
+                unsaved.setDetectionStatus(DetectionStatus.PENDING);
+                return repository.insert(unsaved);
+            }).flatMap(this::submitDetection);
+        }
+
+        return image.flatMap(unsaved -> Mono.fromFuture(() -> taggingService.detectTagsAsync(unsaved,
+                                ImaggaCallScheduler.Caller.FOREGROUND))
+                        .onErrorMap(ex -> ex instanceof ImaggaUnavailableException
+                                ? new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                                        "Object detection is temporarily unavailable. Please try again later.")
+                                : new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                                        "Error processing image."))
+                        // a tag seen for the first time is saved to the dictionary through jpa
+                        .publishOn(Schedulers.boundedElastic())
+                        .map(tags -> {
+                            taggingService.replaceDetectedObjects(unsaved, tags);
+                            unsaved.setDetectionStatus(DetectionStatus.COMPLETE);
+                            return unsaved;
+                        }))
+                .flatMap(repository::insert)
+                .map(ResponseEntity::ok);
+    }
+
+    private Mono<ResponseEntity<?>> submitDetection(Image image) {
+        try {
+            detectionWorker.submit(image);
+        } catch (RejectedExecutionException ex) {
+            return repository.updateDetectionStatus(image.getId(), DetectionStatus.FAILED)
+                    .then(Mono.error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                            "Too many images are waiting for object detection. Please try again later.")));
+        }
+        // the worker owns the image from here on so only hand back the job status
+        return Mono.just(ResponseEntity.accepted()
+                .location(URI.create("/images/" + image.getId() + "/detection"))
+                .body(new DetectionJob(image.getId(), DetectionStatus.PENDING, List.of())));
+    }
+}
@@ -0,0 +1,310 @@
+package behnke19.imageTagging;
+
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import io.r2dbc.spi.Readable;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.r2dbc.connection.R2dbcTransactionManager;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.*;
+
+/**
+ * Reads and writes images over R2DBC for the reactive profile, so serving the /images api never blocks a thread on
+ * the database. It works on the same tables as {@link ImageRepository}: ids come from the same image_seq blocks
+ * hibernate uses, new rows start at version 0 like hibernate's, and an {@link ImageSavedEvent} is published once an
+ * insert has committed so the in-memory indexes and the image cache see it.
+ * <p>
+ * The connection pool belongs to this class rather than the context. A ConnectionFactory bean would make Spring
+ * Boot back off from the jdbc datasource that jpa and everything else still use.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+class ReactiveImageRepository {
+    // the allocation size of image_seq on the Image entity
+    private static final int ID_ALLOCATION_SIZE = 50;
+    private static final String COLUMNS = "id, label, detection_status, image_url, content_hash, content_length,"
+            + " content_type, perceptual_hash, version";
+
+    private final ConnectionPool pool;
+    private final DatabaseClient client;
+    private final TransactionalOperator transactional;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ImageCache imageCache;
+    private final boolean sequenceTable;
+    // the rest of the last block of ids, handed out the same way hibernate's pooled optimizer does
+    private long nextId;
+    private long lastId = -1;
+
+    ReactiveImageRepository(@Value("${imageTagging.r2dbc.url}") String url,
+                            @Value("${spring.datasource.username:}") String username,
+                            @Value("${spring.datasource.password:}") String password,
+                            @Value("${imageTagging.r2dbc.pool-size:20}") int poolSize,
+                            ApplicationEventPublisher eventPublisher, ImageCache imageCache) {
+        ConnectionFactoryOptions options = ConnectionFactoryOptions.parse(url).mutate()
+                .option(ConnectionFactoryOptions.USER, username)
+                .option(ConnectionFactoryOptions.PASSWORD, password)
+                .build();
+        this.pool = new ConnectionPool(ConnectionPoolConfiguration.builder(ConnectionFactories.get(options))
+                .initialSize(Math.min(poolSize, 10))
+                .maxSize(poolSize)
+                .build());
+        this.client = DatabaseClient.create(pool);
+        this.transactional = TransactionalOperator.create(new R2dbcTransactionManager(pool));
+        this.eventPublisher = eventPublisher;
+        this.imageCache = imageCache;
+        // mysql has no sequences, hibernate keeps the next value of image_seq in a table there
+        this.sequenceTable = pool.getMetadata().getName().toLowerCase(Locale.ROOT).contains("mysql");
+    }
+
+    /**
+     * @return the image with its tags, or empty if there is none with the id
+     */
+    Mono<Image> findById(long id) {
+        return withTags(client.sql("SELECT " + COLUMNS + " FROM image WHERE id = :id")
+                .bind("id", id)
+                .map(ReactiveImageRepository::image)
+                .all())
+                .next();
+    }
+
+    /**
+     * @return just what is needed to answer a conditional request for the image or its content
+     */
+    Mono<ImageHeader> findHeaderById(long id) {
+        return client.sql("SELECT version, content_hash, content_type FROM image WHERE id = :id")
+                .bind("id", id)
+                .map(row -> new ImageHeader(row.get("version", Long.class), row.get("content_hash", String.class),
+                        row.get("content_type", String.class)))
+                .one();
+    }
+
+    /**
+     * find a page of images by keyset, the images with ids after the last one of the previous page
+     */
+    Flux<Image> findPage(long after, int limit) {
+        return withTags(client.sql("SELECT " + COLUMNS + " FROM image WHERE id > :after ORDER BY id LIMIT :limit")
+                .bind("after", after)
+                .bind("limit", limit)
+                .map(ReactiveImageRepository::image)
+                .all());
+    }
+
+    /**
+     * @return the images with the given ids in id order, leaving out any that don't exist
+     */
+    Flux<Image> findAllById(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return Flux.empty();
+        }
+        return withTags(client.sql("SELECT " + COLUMNS + " FROM image WHERE id IN (:ids) ORDER BY id")
+                .bind("ids", ids)
+                .map(ReactiveImageRepository::image)
+                .all());
+    }
+
+    /**
+     * The same query as {@link ImageRepository#findByDetectedObjectsContainingAll}. The tags must be distinct since
+     * the match is counted per image.
+     */
+    Flux<Image> findContainingAll(Collection<String> detections, float minConfidence, long after, int limit) {
+        return withTags(client.sql("SELECT " + COLUMNS + " FROM image WHERE id > :after AND id IN"
+                        + " (SELECT it.image_id FROM image_tag it JOIN tag t ON t.id = it.tag_id"
+                        + " WHERE t.name IN (:detections) AND it.confidence >= :minConfidence"
+                        + " GROUP BY it.image_id HAVING COUNT(*) = :detectionCount) ORDER BY id LIMIT :limit")
+                .bind("after", after)
+                .bind("detections", detections)
+                .bind("minConfidence", minConfidence)
+                .bind("detectionCount", detections.size())
+                .bind("limit", limit)
+                .map(ReactiveImageRepository::image)
+                .all());
+    }
+
+    /**
+     * Insert a new image with its tags, which must already be resolved against the tag dictionary.
+     * @param image an image without an id
+     * @return the saved image, a copy of the given one with its id and version
+     */
+    Mono<Image> insert(Image image) {
+        return nextId()
+                .flatMap(id -> {
+                    Image saved = copy(image, id, 0L);
+                    return transactional.transactional(insertImage(saved).then(insertTags(saved)))
+                            .thenReturn(saved);
+                })
+                // the listeners only touch memory so they can run on whichever thread finished the commit
+                .doOnNext(saved -> eventPublisher.publishEvent(new ImageSavedEvent(saved.getId(),
+                        List.copyOf(saved.getDetectedObjects()), saved.getPerceptualHash())));
+    }
+
+    /**
+     * Set the detection status of an image, bumping its version.
+     * @return the number of images changed
+     */
+    Mono<Long> updateDetectionStatus(long id, DetectionStatus status) {
+        return client.sql("UPDATE image SET detection_status = :status, version = version + 1 WHERE id = :id")
+                .bind("status", status.name())
+                .bind("id", id)
+                .fetch()
+                .rowsUpdated()
+                // the tags haven't changed so only the cached copy is out of date
+                .doOnNext(updated -> imageCache.invalidate(id));
+    }
+
+    private Mono<Void> insertImage(Image image) {
+        DatabaseClient.GenericExecuteSpec insert = client.sql("INSERT INTO image (" + COLUMNS + ") VALUES (:id,"
+                        + " :label, :detectionStatus, :imageUrl, :contentHash, :contentLength, :contentType,"
+                        + " :perceptualHash, :version)")
+                .bind("id", image.getId())
+                .bind("detectionStatus", image.getDetectionStatus().name())
+                .bind("version", image.getVersion());
+        insert = bindNullable(insert, "label", image.getLabel(), String.class);
+        insert = bindNullable(insert, "imageUrl", image.getImageUrl(), String.class);
+        insert = bindNullable(insert, "contentHash", image.getContentHash(), String.class);
+        insert = bindNullable(insert, "contentLength", image.getContentLength(), Long.class);
+        insert = bindNullable(insert, "contentType", image.getContentType(), String.class);
+        insert = bindNullable(insert, "perceptualHash", image.getPerceptualHash(), Long.class);
+        return insert.then();
+    }
+
+    private Mono<Void> insertTags(Image image) {
+        List<DetectedObject> tags = image.getTags();
+        if (tags.isEmpty()) {
+            return Mono.empty();
+        }
+        // one multi-row insert rather than a statement per tag
+        StringJoiner values = new StringJoiner(", ");
+        for (int i = 0; i < tags.size(); i++) {
+            values.add("(:image, :tag" + i + ", :confidence" + i + ")");
+        }
+        DatabaseClient.GenericExecuteSpec insert = client.sql("INSERT INTO image_tag (image_id, tag_id, confidence)"
+                + " VALUES " + values).bind("image", image.getId());
+        for (int i = 0; i < tags.size(); i++) {
+            insert = insert.bind("tag" + i, tags.get(i).getTag().getId())
+                    .bind("confidence" + i, tags.get(i).getConfidence());
+        }
+        return insert.then();
+    }
+
+    private static <T> DatabaseClient.GenericExecuteSpec bindNullable(DatabaseClient.GenericExecuteSpec spec,
+                                                                      String name, T value, Class<T> type) {
+        return value == null ? spec.bindNull(name, type) : spec.bind(name, value);
+    }
+
+    /**
+     * @return the next id from the current block, reserving a new block once it runs out
+     */
+    private Mono<Long> nextId() {
+        synchronized (this) {
+            if (nextId <= lastId) {
+                return Mono.just(nextId++);
+            }
+        }
+        return reserveIdBlock().map(block -> {
+            synchronized (this) {
+                // inserts that ran out at the same time each reserve a block, only one of them is kept for later
+                if (nextId > lastId) {
+                    nextId = block[0] + 1;
+                    lastId = block[1];
+                }
+            }
+            return block[0];
+        });
+    }
+
+    /**
+     * Reserve a block of ids from image_seq the way hibernate's pooled optimizer does, so the ids can't collide with
+     * the ones jpa hands out.
+     * @return the first and last id of the block
+     */
+    private Mono<long[]> reserveIdBlock() {
+        return readIdSequence().flatMap(value -> value > 1
+                ? Mono.just(new long[]{value - ID_ALLOCATION_SIZE + 1, value})
+                // the first value of the sequence isn't the end of a block, hibernate takes everything up to the
+                // value after it
+                : readIdSequence().map(next -> new long[]{value, next}));
+    }
+
+    private Mono<Long> readIdSequence() {
+        if (!sequenceTable) {
+            return client.sql("SELECT NEXT VALUE FOR image_seq")
+                    .map(row -> row.get(0, Long.class))
+                    .one();
+        }
+        // the row is locked so no other instance can reserve the same block between reading and moving it
+        return transactional.transactional(client.sql("SELECT next_val FROM image_seq FOR UPDATE")
+                .map(row -> row.get(0, Long.class))
+                .one()
+                .flatMap(value -> client.sql("UPDATE image_seq SET next_val = :next WHERE next_val = :value")
+                        .bind("next", value + ID_ALLOCATION_SIZE)
+                        .bind("value", value)
+                        .then()
+                        .thenReturn(value)));
+    }
+
+    /**
+     * Read the tags of the images in one query and add them to the images.
+     */
+    private Flux<Image> withTags(Flux<Image> images) {
+        return images.collectList().flatMapMany(list -> {
+            if (list.isEmpty()) {
+                return Flux.empty();
+            }
+            Map<Long, Image> byId = new LinkedHashMap<>();
+            list.forEach(image -> byId.put(image.getId(), image));
+            return client.sql("SELECT it.image_id, t.name, it.confidence FROM image_tag it"
+                            + " JOIN tag t ON t.id = it.tag_id WHERE it.image_id IN (:ids)")
+                    .bind("ids", byId.keySet())
+                    .map(row -> {
+                        byId.get(row.get("image_id", Long.class)).addDetectedObject(
+                                new Tag(row.get("name", String.class)), row.get("confidence", Float.class));
+                        return Boolean.TRUE;
+                    })
+                    .all()
+                    .thenMany(Flux.fromIterable(list));
+        });
+    }
+
+    private static Image image(Readable row) {
+        Image image = new Image(row.get("id", Long.class), row.get("version", Long.class));
+        image.setLabel(row.get("label", String.class));
+        String status = row.get("detection_status", String.class);
+        image.setDetectionStatus(status == null ? null : DetectionStatus.valueOf(status));
+        image.setImageUrl(row.get("image_url", String.class));
+        image.setContentHash(row.get("content_hash", String.class));
+        image.setContentLength(row.get("content_length", Long.class));
+        image.setContentType(row.get("content_type", String.class));
+        image.setPerceptualHash(row.get("perceptual_hash", Long.class));
+        return image;
+    }
+
+    private static Image copy(Image image, Long id, Long version) {
+        Image copy = new Image(id, version);
+        copy.setLabel(image.getLabel());
+        copy.setDetectionStatus(image.getDetectionStatus());
+        copy.setImageUrl(image.getImageUrl());
+        copy.setContentHash(image.getContentHash());
+        copy.setContentLength(image.getContentLength());
+        copy.setContentType(image.getContentType());
+        copy.setPerceptualHash(image.getPerceptualHash());
+        for (DetectedObject tag : image.getTags()) {
+            copy.addDetectedObject(tag.getTag(), tag.getConfidence());
+        }
+        return copy;
+    }
+
+    @PreDestroy
+    void close() {
+        pool.dispose();
+    }
+}
@@ -0,0 +1,357 @@
+package behnke19.imageTagging;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Background job that runs object detection over images that are already saved: either the ones that were never
+ * tagged or whose detection failed, or every image after the confidence threshold changed. Images are walked in id
+ * order a chunk at a time. Each chunk is detected with bounded concurrency and under a rate budget of its own, well
+ * below what the {@link ImaggaCallScheduler} allows, and the job backs off while async uploads are waiting for the
+ * {@link DetectionWorker}, so uploads keep most of the imagga capacity. A chunk's results are saved in one
+ * transaction along with the {@link JobCheckpoint}, so the job carries on after the last saved chunk when it is
+ * resumed or the service restarts. There is only one job at a time.
+ */
+@Component
+class RetagJob implements SmartInitializingSingleton {
+    private static final Logger log = LoggerFactory.getLogger(RetagJob.class);
+    static final String NAME = "retag";
+    // pending images belong to the detection worker, which resets the ones a previous run abandoned at startup
+    private static final Set<DetectionStatus> UNTAGGED = Set.of(DetectionStatus.NONE, DetectionStatus.FAILED);
+    private static final Duration BACKOFF = Duration.ofSeconds(1);
+
+    private final ImageRepository repository;
+    private final JobCheckpointRepository checkpoints;
+    private final ImageTaggingService taggingService;
+    private final DetectionWorker detectionWorker;
+    private final TransactionTemplate transactionTemplate;
+    private final int concurrency;
+    private final int chunkSize;
+    private final TokenBucket rateLimit;
+    private final Counter tagged;
+    private final Counter failed;
+    private Thread runner;
+    private volatile boolean pauseRequested;
+    private volatile boolean shuttingDown;
+
+    RetagJob(ImageRepository repository, JobCheckpointRepository checkpoints, ImageTaggingService taggingService,
+             DetectionWorker detectionWorker, TransactionTemplate transactionTemplate,
+             @Value("${imageTagging.retag.concurrency:2}") int concurrency,
+             @Value("${imageTagging.retag.chunk-size:50}") int chunkSize,
+             @Value("${imageTagging.retag.permits-per-second:1}") double permitsPerSecond,
+             MeterRegistry meterRegistry) {
+        this.repository = repository;
+        this.checkpoints = checkpoints;
+        this.taggingService = taggingService;
+        this.detectionWorker = detectionWorker;
+        this.transactionTemplate = transactionTemplate;
+        this.concurrency = concurrency;
+        this.chunkSize = chunkSize;
+        this.rateLimit = new TokenBucket(permitsPerSecond, concurrency);
+        this.tagged = Counter.builder("imageTagging.retag").tag("result", "tagged").register(meterRegistry);
+        this.failed = Counter.builder("imageTagging.retag").tag("result", "failed").register(meterRegistry);
+    }
+
+    /**
+     * The result of detection for one image of a chunk.
+     * @param imageId the id of the image
+     * @param tags the tags found, null if detection failed
+     * @param retryAfter set if imagga was unavailable, the image wasn't handled and has to be tried again
+     */
+    private record Outcome(long imageId, List<DetectedTag> tags, Duration retryAfter) {}
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        // a job that was running when the service stopped carries on
+        checkpoints.findById(NAME).filter(checkpoint -> checkpoint.getState() == JobCheckpoint.State.RUNNING)
+                .ifPresent(checkpoint -> {
+                    log.info("Resuming re-tagging after image {}", checkpoint.getLastImageId());
+                    launch();
+                });
+    }
+
+    /**
+     * Start a new job from the first image, replacing any paused or finished one.
+     * @param scope the images to go over
+     * @return the new checkpoint
+     * @throws IllegalStateException if a job is already running
+     */
+    synchronized JobCheckpoint start(JobCheckpoint.Scope scope) {
+        awaitStoppingRunner();
+        if (isRunning()) {
+            throw new IllegalStateException("A re-tagging job is already running");
+        }
+        JobCheckpoint checkpoint = checkpoints.save(new JobCheckpoint(NAME, scope));
+        launch();
+        return checkpoint;
+    }
+
+    /**
+     * Carry on with a paused job from its checkpoint.
+     * @return the checkpoint
+     * @throws IllegalStateException if a job is already running or there is no paused job
+     */
+    synchronized JobCheckpoint resume() {
+        awaitStoppingRunner();
+        if (isRunning()) {
+            throw new IllegalStateException("A re-tagging job is already running");
+        }
+        JobCheckpoint checkpoint = checkpoints.findById(NAME)
+                .filter(existing -> existing.getState() == JobCheckpoint.State.PAUSED)
+                .orElseThrow(() -> new IllegalStateException("There is no paused re-tagging job"));
+        checkpoint.setState(JobCheckpoint.State.RUNNING);
+        checkpoint = checkpoints.save(checkpoint);
+        launch();
+        return checkpoint;
+    }
+
+    /**
+     * Ask the running job to stop. Images already being detected are finished and saved first.
+     * @return the checkpoint, which changes to paused once the job has stopped
+     */
+    synchronized Optional<JobCheckpoint> pause() {
+        if (isRunning()) {
+            pauseRequested = true;
+        }
+        return status();
+    }
+
+    /**
+     * @return the checkpoint as of the last saved chunk, empty if no job has been started
+     */
+    Optional<JobCheckpoint> status() {
+        return checkpoints.findById(NAME);
+    }
+
+    private boolean isRunning() {
+        return runner != null && runner.isAlive();
+    }
+
+    /**
+     * The runner saves its final state just before it exits, so a runner whose checkpoint no longer says running is
+     * only finishing up and is waited for.
+     */
+    private void awaitStoppingRunner() {
+        if (isRunning() && status().filter(checkpoint -> checkpoint.getState() == JobCheckpoint.State.RUNNING)
+                .isEmpty()) {
+            try {
+                runner.join(Duration.ofSeconds(5));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void launch() {
+        pauseRequested = false;
+        runner = Thread.ofVirtual().name("retag").start(this::run);
+    }
+
+    private void run() {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            JobCheckpoint checkpoint = checkpoints.findById(NAME).orElseThrow();
+            JobCheckpoint.Scope scope = checkpoint.getScope();
+            Semaphore permits = new Semaphore(concurrency);
+            while (!stopRequested()) {
+                List<Long> ids = nextIds(checkpoint);
+                if (ids.isEmpty()) {
+                    checkpoint.setState(JobCheckpoint.State.COMPLETE);
+                    checkpoints.save(checkpoint);
+                    log.info("Re-tagging finished, {} images tagged and {} failed", checkpoint.getTagged(),
+                            checkpoint.getFailed());
+                    return;
+                }
+                List<Future<Outcome>> running = new ArrayList<>(ids.size());
+                try {
+                    for (Long id : ids) {
+                        // the runner isn't interrupted, that could close a database connection it is using
+                        if (!waitForForegroundWork()) {
+                            break;
+                        }
+                        if (!rateLimit.acquire(Duration.ofMinutes(1))) {
+                            break;
+                        }
+                        permits.acquire();
+                        running.add(executor.submit(() -> {
+                            try {
+                                return detect(id, scope);
+                            } finally {
+                                permits.release();
+                            }
+                        }));
+                    }
+                } catch (InterruptedException ex) {
+                    shuttingDown = true;
+                }
+                checkpoint = save(checkpoint, collect(running));
+            }
+            if (pauseRequested) {
+                checkpoint.setState(JobCheckpoint.State.PAUSED);
+                checkpoints.save(checkpoint);
+                log.info("Re-tagging paused after image {}", checkpoint.getLastImageId());
+            }
+        } catch (RuntimeException ex) {
+            // stays running in the checkpoint so it is picked up again at the next startup
+            log.error("Re-tagging stopped", ex);
+        }
+    }
+
+    private List<Long> nextIds(JobCheckpoint checkpoint) {
+        if (checkpoint.getScope() == JobCheckpoint.Scope.ALL) {
+            return repository.findIdsAfter(checkpoint.getLastImageId(), Limit.of(chunkSize));
+        }
+        return repository.findIdsAfterWithStatus(checkpoint.getLastImageId(), UNTAGGED, Limit.of(chunkSize));
+    }
+
+    /**
+     * Hold off while uploads are queued for detection so they aren't kept waiting behind the job.
+     * @return false if the job was asked to stop
+     */
+    private boolean waitForForegroundWork() throws InterruptedException {
+        while (detectionWorker.getQueueDepth() > 0 && !stopRequested()) {
+            Thread.sleep(BACKOFF);
+        }
+        return !stopRequested();
+    }
+
+    private boolean stopRequested() {
+        return pauseRequested || shuttingDown;
+    }
+
+    private Outcome detect(long id, JobCheckpoint.Scope scope) {
+        Optional<Image> image = repository.findById(id);
+        if (image.isEmpty() || image.get().getDetectionStatus() == DetectionStatus.PENDING) {
+            // deleted, or async detection is already on it, stale pending images were reset to NONE at startup
+            return new Outcome(id, null, null);
+        }
+        try {
+            return new Outcome(id, taggingService.detectTags(image.get(), scope == JobCheckpoint.Scope.ALL,
+                    ImaggaCallScheduler.Caller.BACKGROUND), null);
+        } catch (ImaggaUnavailableException ex) {
+            return new Outcome(id, null, ex.getRetryAfter());
+        } catch (Exception ex) {
+            log.warn("Re-tagging failed for image {}", id, ex);
+            return new Outcome(id, null, null);
+        }
+    }
+
+    private List<Outcome> collect(List<Future<Outcome>> running) {
+        List<Outcome> outcomes = new ArrayList<>(running.size());
+        for (Future<Outcome> future : running) {
+            while (true) {
+                try {
+                    outcomes.add(future.get());
+                    break;
+                } catch (InterruptedException ex) {
+                    // images that are already being detected are never abandoned
+                } catch (ExecutionException ex) {
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * Save the results of a chunk and move the checkpoint past them. If imagga was unavailable for any image the
+     * checkpoint stops just before the first such image and the job waits before carrying on from there.
+     */
+    private JobCheckpoint save(JobCheckpoint checkpoint, List<Outcome> outcomes) {
+        if (outcomes.isEmpty()) {
+            return checkpoint;
+        }
+        long lastImageId = outcomes.getLast().imageId();
+        Duration retryAfter = null;
+        for (Outcome outcome : outcomes) {
+            if (outcome.retryAfter() != null) {
+                lastImageId = outcome.imageId() - 1;
+                retryAfter = outcome.retryAfter();
+                break;
+            }
+        }
+        long last = lastImageId;
+        JobCheckpoint saved;
+        try {
+            saved = transactionTemplate.execute(status -> apply(outcomes, last));
+        } catch (OptimisticLockingFailureException ex) {
+            // an image was saved by a request while the chunk was being written, read them again and retry once
+            saved = transactionTemplate.execute(status -> apply(outcomes, last));
+        }
+        tagged.increment(saved.getTagged() - checkpoint.getTagged());
+        failed.increment(saved.getFailed() - checkpoint.getFailed());
+        if (retryAfter != null) {
+            log.info("Imagga is unavailable, re-tagging waits {} before carrying on after image {}", retryAfter,
+                    last);
+            long until = System.nanoTime() + retryAfter.toNanos();
+            try {
+                while (System.nanoTime() < until && !stopRequested()) {
+                    Thread.sleep(BACKOFF);
+                }
+            } catch (InterruptedException ex) {
+                shuttingDown = true;
+            }
+        }
+        return saved;
+    }
+
+    private JobCheckpoint apply(List<Outcome> outcomes, long lastImageId) {
+        JobCheckpoint checkpoint = checkpoints.findById(NAME).orElseThrow();
+        long taggedImages = 0;
+        long failedImages = 0;
+        List<Image> changed = new ArrayList<>();
+        for (Outcome outcome : outcomes) {
+            if (outcome.imageId() > lastImageId) {
+                break;
+            }
+            // the detection ran on a copy, the image is read again here so the save is checked against its version
+            Image image = repository.findById(outcome.imageId()).orElse(null);
+            if (image == null || image.getDetectionStatus() == DetectionStatus.PENDING) {
+                continue;
+            }
+            if (outcome.tags() != null) {
+                taggingService.replaceDetectedObjects(image, outcome.tags());
+                image.setDetectionStatus(DetectionStatus.COMPLETE);
+                taggedImages++;
+            } else {
+                // an image that was tagged before keeps its old tags
+                if (image.getDetectionStatus() != DetectionStatus.COMPLETE) {
+                    image.setDetectionStatus(DetectionStatus.FAILED);
+                }
+                failedImages++;
+            }
+            changed.add(image);
+        }
+        repository.saveAll(changed);
+        checkpoint.advance(lastImageId, taggedImages, failedImages);
+        return checkpoints.save(checkpoint);
+    }
+
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        Thread current;
+        synchronized (this) {
+            current = runner;
+        }
+        if (current != null && current.isAlive()) {
+            // finish the chunk in flight but leave the job running so it resumes at the next startup
+            shuttingDown = true;
+            current.join(Duration.ofSeconds(30));
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package behnke19.imageTagging;
+
+/**
+ * An image that looks like another one.
+ * @param distance the number of bits its perceptual hash differs by, 0 for images that look the same
+ * @param image the similar image
+ */
+record SimilarImage(int distance, Image image) {
+}
@@ -0,0 +1,243 @@
+package behnke19.imageTagging;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory BK-tree of image perceptual hashes for finding images that look alike. The tree is built on the
+ * Hamming distance between hashes, so a search only visits the subtrees whose distance from the query could be
+ * within range. It is loaded from the image table at startup and kept current from {@link ImageSavedEvent}s. Images
+ * stored before hashes were kept are hashed in the background after startup.
+ */
+@Component
+class SimilarImageIndex implements SmartInitializingSingleton {
+    private static final Logger log = LoggerFactory.getLogger(SimilarImageIndex.class);
+    private static final int BACKFILL_BATCH_SIZE = 100;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ImageContentStore contentStore;
+    private final ImageScaler scaler;
+    private final ImageCache imageCache;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Set<Long> indexedIds = new HashSet<>();
+    private Node root;
+
+    SimilarImageIndex(JdbcTemplate jdbcTemplate, ImageContentStore contentStore, ImageScaler scaler,
+                      ImageCache imageCache) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.contentStore = contentStore;
+        this.scaler = scaler;
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * An image found by a search.
+     * @param imageId the id of the image
+     * @param distance the number of bits its hash differs by
+     */
+    record Match(long imageId, int distance) {}
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        long start = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            jdbcTemplate.query("SELECT id, perceptual_hash FROM image WHERE perceptual_hash IS NOT NULL",
+                    rs -> {
+                        add(rs.getLong(1), rs.getLong(2));
+                    });
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Indexed {} perceptual hashes in {} ms", indexedIds.size(), System.currentTimeMillis() - start);
+        Thread.ofVirtual().name("perceptual-hash-backfill").start(this::backfill);
+    }
+
+    // after the commit so a rolled back save doesn't leave its hash behind
+    @TransactionalEventListener(fallbackExecution = true)
+    void onImageSaved(ImageSavedEvent event) {
+        if (event.imageId() == null || event.perceptualHash() == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            add(event.imageId(), event.perceptualHash());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the images whose hash is within a distance of the given one.
+     * @param hash the perceptual hash to search around
+     * @param maxDistance the most bits a match may differ by
+     * @return the matches, closest first
+     */
+    List<Match> find(long hash, int maxDistance) {
+        List<Match> matches = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (root == null) {
+                return matches;
+            }
+            Deque<Node> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                Node node = pending.pop();
+                int distance = distance(hash, node.hash);
+                if (distance <= maxDistance) {
+                    for (int i = 0; i < node.idCount; i++) {
+                        matches.add(new Match(node.ids[i], distance));
+                    }
+                }
+                // by the triangle inequality only children this far from the node can be close enough
+                for (int i = 0; i < node.childCount; i++) {
+                    if (Math.abs(node.childDistances[i] - distance) <= maxDistance) {
+                        pending.push(node.children[i]);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        matches.sort(Comparator.comparingInt(Match::distance).thenComparingLong(Match::imageId));
+        return matches;
+    }
+
+    static int distance(long hash, long otherHash) {
+        return Long.bitCount(hash ^ otherHash);
+    }
+
+    // must be called with the write lock held
+    private void add(long imageId, long hash) {
+        if (!indexedIds.add(imageId)) {
+            // an image's file never changes so neither does its hash
+            return;
+        }
+        if (root == null) {
+            root = new Node(hash);
+            root.addId(imageId);
+            return;
+        }
+        Node node = root;
+        while (true) {
+            int distance = distance(hash, node.hash);
+            if (distance == 0) {
+                node.addId(imageId);
+                return;
+            }
+            Node child = node.child(distance);
+            if (child == null) {
+                child = new Node(hash);
+                child.addId(imageId);
+                node.addChild(distance, child);
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Hash the stored files of images that don't have a hash yet, a batch at a time in id order. Files that can't be
+     * decoded are left without one and tried again at the next startup.
+     */
+    private void backfill() {
+        long lastId = 0;
+        int hashed = 0;
+        try {
+            while (true) {
+                List<Map<String, Object>> rows = jdbcTemplate.queryForList("SELECT id, content_hash FROM image"
+                        + " WHERE id > ? AND perceptual_hash IS NULL AND content_hash IS NOT NULL ORDER BY id LIMIT ?",
+                        lastId, BACKFILL_BATCH_SIZE);
+                if (rows.isEmpty()) {
+                    break;
+                }
+                for (Map<String, Object> row : rows) {
+                    lastId = ((Number) row.get("id")).longValue();
+                    OptionalLong hash;
+                    try {
+                        hash = scaler.differenceHash(contentStore.path((String) row.get("content_hash")),
+                                1, TimeUnit.MINUTES);
+                    } catch (IOException | RuntimeException ex) {
+                        log.debug("Could not compute a perceptual hash for image {}", lastId, ex);
+                        continue;
+                    }
+                    if (hash.isPresent()) {
+                        // the version is bumped so a copy loaded before this can't be merged back over the hash,
+                        // and the cached copy is dropped once the update has committed
+                        jdbcTemplate.update("UPDATE image SET perceptual_hash = ?, version = version + 1 WHERE id = ?"
+                                + " AND perceptual_hash IS NULL", hash.getAsLong(), lastId);
+                        imageCache.invalidate(lastId);
+                        lock.writeLock().lock();
+                        try {
+                            add(lastId, hash.getAsLong());
+                        } finally {
+                            lock.writeLock().unlock();
+                        }
+                        hashed++;
+                    }
+                }
+            }
+            if (hashed > 0) {
+                log.info("Computed perceptual hashes for {} older images", hashed);
+            }
+        } catch (RuntimeException ex) {
+            log.warn("Stopped computing perceptual hashes for older images at image {}", lastId, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A hash in the tree with the ids of every image that has exactly that hash. Children are kept in parallel
+     * arrays by their distance from this node, most nodes only have a few.
+     */
+    private static class Node {
+        private final long hash;
+        private long[] ids = new long[1];
+        private int idCount;
+        private byte[] childDistances = new byte[0];
+        private Node[] children = new Node[0];
+        private int childCount;
+
+        Node(long hash) {
+            this.hash = hash;
+        }
+
+        void addId(long id) {
+            if (idCount == ids.length) {
+                ids = Arrays.copyOf(ids, idCount * 2);
+            }
+            ids[idCount++] = id;
+        }
+
+        Node child(int distance) {
+            for (int i = 0; i < childCount; i++) {
+                if (childDistances[i] == distance) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        void addChild(int distance, Node child) {
+            if (childCount == children.length) {
+                int capacity = Math.max(2, childCount * 2);
+                childDistances = Arrays.copyOf(childDistances, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            childDistances[childCount] = (byte) distance;
+            children[childCount++] = child;
+        }
+    }
+}
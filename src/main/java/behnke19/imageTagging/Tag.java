@@ -0,0 +1,30 @@
+package behnke19.imageTagging;
+
+import jakarta.persistence.*;
+
+/**
+ * An entry in the tag dictionary. Every distinct object imagga has detected is stored once here and images refer
+ * to it by its integer id.
+ */
+@Entity
+@Table(name = "tag", uniqueConstraints = @UniqueConstraint(name = "uk_tag_name", columnNames = "name"))
+class Tag {
+    private @Id @GeneratedValue(strategy = GenerationType.IDENTITY) Integer id;
+
+    @Column(nullable = false)
+    private String name;
+
+    Tag() {}
+
+    Tag(String name) {
+        this.name = name;
+    }
+
+    Integer getId() {
+        return id;
+    }
+
+    String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,68 @@
+package behnke19.imageTagging;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class TagController {
+    private static final int DEFAULT_LIMIT = 10;
+    private static final int MAX_LIMIT = 100;
+
+    private static final int MAX_TOP = 1000;
+
+    private final TagIndex tagIndex;
+    private final TagFacets tagFacets;
+
+    TagController(TagIndex tagIndex, TagFacets tagFacets) {
+        this.tagIndex = tagIndex;
+        this.tagFacets = tagFacets;
+    }
+
+    /**
+     * GET the tags that start with a prefix, for type-ahead on the objects filter. Tags are ranked by the number of
+     * images they were detected in and only tags found in at least one image are returned.
+     * @param prefix the start of the tag names, case-insensitive (optional, every tag matches by default)
+     * @param limit the maximum number of tags to return, defaults to 10 and is capped at 100 (optional)
+     * @return
+     */
+    @GetMapping(value = "/tags", produces = MediaType.APPLICATION_JSON_VALUE)
+    List<TagCount> getTags(@RequestParam(value = "prefix", required = false) String prefix,
+                           @RequestParam(value = "limit", required = false) Integer limit) {
+        int count = limit == null ? DEFAULT_LIMIT : Math.max(1, Math.min(limit, MAX_LIMIT));
+        // imagga's tag names are all lower case
+        String normalized = prefix == null ? "" : prefix.trim().toLowerCase(Locale.ROOT);
+        return tagIndex.complete(normalized, count);
+    }
+
+    /**
+     * GET the tags found in the most images.
+     * @param k the number of tags to return, defaults to 10 and is capped at 1000 (optional)
+     * @return
+     */
+    @GetMapping(value = "/tags/top", produces = MediaType.APPLICATION_JSON_VALUE)
+    List<TagCount> getTopTags(@RequestParam(value = "k", required = false) Integer k) {
+        return tagFacets.top(k == null ? DEFAULT_LIMIT : Math.max(1, Math.min(k, MAX_TOP)));
+    }
+
+    /**
+     * GET facet counts for a filter: how many images have all the given objects, and which other tags those images
+     * have most often.
+     * @param objects comma separated list of objects (optional, counts over every tagged image by default)
+     * @param limit the maximum number of tags to return, defaults to 10 and is capped at 1000 (optional)
+     * @return
+     */
+    @GetMapping(value = "/images/facets", produces = MediaType.APPLICATION_JSON_VALUE)
+    FacetCounts getFacets(@RequestParam(value = "objects", required = false) String objects,
+                          @RequestParam(value = "limit", required = false) Integer limit) {
+        Set<String> targetObjects = ImageController.parseObjects(objects);
+        return tagFacets.facets(targetObjects, limit == null ? DEFAULT_LIMIT : Math.max(1, Math.min(limit, MAX_TOP)));
+    }
+}
@@ -0,0 +1,7 @@
+package behnke19.imageTagging;
+
+/**
+ * A tag and the number of images it was detected in.
+ */
+record TagCount(String name, long count) {
+}
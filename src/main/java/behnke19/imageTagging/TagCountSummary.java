@@ -0,0 +1,44 @@
+package behnke19.imageTagging;
+
+import jakarta.persistence.*;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A row of tag_count_summary, written by {@link TagFacets} from its in-memory counters so dashboards can read tag
+ * counts without grouping image_tag. A row with an empty coTag holds the number of images with the tag, any other
+ * row the number of images with both tags, stored once with the tags in alphabetical order.
+ */
+@Entity
+@Table(name = "tag_count_summary")
+@IdClass(TagCountSummary.Key.class)
+class TagCountSummary {
+    @Id
+    private String tag;
+
+    @Id
+    private String coTag;
+
+    @Column(nullable = false)
+    private long imageCount;
+
+    TagCountSummary() {}
+
+    static class Key implements Serializable {
+        private String tag;
+        private String coTag;
+
+        Key() {}
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key key && Objects.equals(tag, key.tag) && Objects.equals(coTag, key.coTag);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tag, coTag);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package behnke19.imageTagging;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves tag names to rows of the tag dictionary table, creating them the first time a name is seen. The
+ * vocabulary is small so every resolved tag stays in memory. New tags are saved in a transaction of their own so a
+ * tag that is cached has always been committed, whatever happens to the transaction of the caller.
+ */
+@Component
+class TagDictionary {
+    private final TagRepository repository;
+    private final TransactionTemplate newTransaction;
+    private final Map<String, Tag> tagsByName = new ConcurrentHashMap<>();
+
+    TagDictionary(TagRepository repository, TransactionTemplate transactionTemplate, MeterRegistry registry) {
+        this.repository = repository;
+        this.newTransaction = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        this.newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        Gauge.builder("imageTagging.tag-dictionary.size", tagsByName, Map::size)
+                .description("Tags held in memory").register(registry);
+    }
+
+    /**
+     * @param name the tag name
+     * @return the saved tag with that name
+     */
+    Tag resolve(String name) {
+        Tag tag = tagsByName.get(name);
+        if (tag != null) {
+            return tag;
+        }
+        // concurrent requests for a new tag wait here rather than all trying to insert it
+        return tagsByName.computeIfAbsent(name, this::load);
+    }
+
+    private Tag load(String name) {
+        try {
+            return newTransaction.execute(status -> repository.findByName(name)
+                    .orElseGet(() -> repository.save(new Tag(name))));
+        } catch (DataIntegrityViolationException ex) {
+            // another instance created the same tag first
+            return newTransaction.execute(status -> repository.findByName(name)).orElseThrow(() -> ex);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package behnke19.imageTagging;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of how many images each tag, and each pair of tags, was detected in. The counters are rebuilt from
+ * image_tag at startup and then adjusted by the difference every time an image's tags change, so answering a top tags
+ * or facet query never rescans the tags. Counters are striped adders so concurrent saves don't contend on them, and
+ * the ones that changed are written to tag_count_summary periodically.
+ */
+@Component
+@DependsOn("legacyTagMigration")
+class TagFacets implements SmartInitializingSingleton {
+    private static final Logger log = LoggerFactory.getLogger(TagFacets.class);
+    // the coTag of a summary row holding a single tag's count
+    private static final String NO_CO_TAG = "";
+    private static final Comparator<TagCount> MOST_COMMON_FIRST = Comparator.comparingLong(TagCount::count).reversed()
+            .thenComparing(TagCount::name);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final TagIndex tagIndex;
+    private final Duration flushInterval;
+    private final LongAdder taggedImages = new LongAdder();
+    private final Map<String, LongAdder> tagCounts = new ConcurrentHashMap<>();
+    // both orders of a pair map to the same adder so the co-occurring tags of any tag can be read directly
+    private final Map<String, Map<String, LongAdder>> pairCounts = new ConcurrentHashMap<>();
+    // the counters that changed since the last flush
+    private final Set<TagPair> dirty = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService flusher;
+
+    TagFacets(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, TagIndex tagIndex,
+              @Value("${imageTagging.tag-counts.flush-interval:60s}") Duration flushInterval,
+              MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.tagIndex = tagIndex;
+        this.flushInterval = flushInterval;
+        this.flusher = new ScheduledThreadPoolExecutor(1,
+                Thread.ofPlatform().name("tag-counts-flush").daemon().factory());
+        Gauge.builder("imageTagging.tag-counts.pairs", pairCounts, TagFacets::pairCount)
+                .description("Pairs of tags being counted").register(meterRegistry);
+        Gauge.builder("imageTagging.tag-counts.unflushed", dirty, Set::size)
+                .description("Tag counts changed since they were last written to tag_count_summary")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        long start = System.currentTimeMillis();
+        taggedImages.reset();
+        tagCounts.clear();
+        pairCounts.clear();
+        // the rows of each image come together so only one image's tags are held at a time
+        Set<String> tags = new HashSet<>();
+        long[] currentImage = {-1};
+        jdbcTemplate.query("SELECT it.image_id, t.name FROM image_tag it JOIN tag t ON t.id = it.tag_id"
+                + " ORDER BY it.image_id", rs -> {
+            long imageId = rs.getLong(1);
+            if (imageId != currentImage[0]) {
+                count(Set.of(), tags);
+                tags.clear();
+                currentImage[0] = imageId;
+            }
+            tags.add(rs.getString(2));
+        });
+        count(Set.of(), tags);
+        // the summary is replaced wholesale, it may be behind if the last shutdown didn't get to flush
+        dirty.clear();
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.update("DELETE FROM tag_count_summary");
+            List<Object[]> rows = new ArrayList<>();
+            tagCounts.forEach((tag, count) -> rows.add(new Object[]{tag, NO_CO_TAG, count.sum()}));
+            pairCounts.forEach((tag, coTags) -> coTags.forEach((coTag, count) -> {
+                if (tag.compareTo(coTag) < 0) {
+                    rows.add(new Object[]{tag, coTag, count.sum()});
+                }
+            }));
+            jdbcTemplate.batchUpdate("INSERT INTO tag_count_summary (tag, co_tag, image_count) VALUES (?, ?, ?)", rows);
+        });
+        log.info("Counted {} tags and {} pairs of tags across {} images in {} ms", tagCounts.size(),
+                pairCount(pairCounts), taggedImages.sum(), System.currentTimeMillis() - start);
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval.toMillis(), flushInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @EventListener
+    void onTagsChanged(ImageTagsChangedEvent event) {
+        count(event.previous(), event.current());
+    }
+
+    /**
+     * @param k the number of tags to return
+     * @return the k tags found in the most images, most common first
+     */
+    List<TagCount> top(int k) {
+        return mostCommon(tagCounts, Set.of(), k);
+    }
+
+    /**
+     * Count the other tags of the images that have every one of the given objects. With no objects or a single
+     * object the counts come straight from the counters. Several objects have to be matched against the
+     * {@link TagIndex} and the tags of the matching images counted, since pairs alone can't say which images have
+     * all of them.
+     * @param objects the objects the images must have, may be empty
+     * @param limit the maximum number of tags to return
+     * @return the number of matching images and the most common other tags among them. With no objects the
+     * matching images are the ones with any tags.
+     */
+    FacetCounts facets(Set<String> objects, int limit) {
+        if (objects.isEmpty()) {
+            return new FacetCounts(taggedImages.sum(), top(limit));
+        }
+        if (objects.size() == 1) {
+            String object = objects.iterator().next();
+            LongAdder count = tagCounts.get(object);
+            return new FacetCounts(count == null ? 0 : count.sum(),
+                    mostCommon(pairCounts.getOrDefault(object, Map.of()), objects, limit));
+        }
+        long[] matchingIds = tagIndex.findContainingAll(objects);
+        List<TagCount> counts = new ArrayList<>();
+        tagIndex.countObjects(matchingIds).forEach((tag, count) -> {
+            if (!objects.contains(tag)) {
+                counts.add(new TagCount(tag, count));
+            }
+        });
+        counts.sort(MOST_COMMON_FIRST);
+        return new FacetCounts(matchingIds.length, counts.subList(0, Math.min(limit, counts.size())));
+    }
+
+    /**
+     * Write every counter that changed since the last flush to tag_count_summary.
+     */
+    void flush() {
+        List<TagPair> changed = new ArrayList<>();
+        for (Iterator<TagPair> pairs = dirty.iterator(); pairs.hasNext(); ) {
+            // taken off before reading the count, a change after this marks it again for the next flush
+            changed.add(pairs.next());
+            pairs.remove();
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        List<Object[]> upserts = new ArrayList<>();
+        List<Object[]> deletes = new ArrayList<>();
+        for (TagPair pair : changed) {
+            long count = pair.coTag().equals(NO_CO_TAG) ? sum(tagCounts.get(pair.tag()))
+                    : sum(pairCounts.getOrDefault(pair.tag(), Map.of()).get(pair.coTag()));
+            if (count > 0) {
+                upserts.add(new Object[]{pair.tag(), pair.coTag(), count});
+            } else {
+                deletes.add(new Object[]{pair.tag(), pair.coTag()});
+            }
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.batchUpdate("INSERT INTO tag_count_summary (tag, co_tag, image_count) VALUES (?, ?, ?)"
+                        + " ON DUPLICATE KEY UPDATE image_count = VALUES(image_count)", upserts);
+                jdbcTemplate.batchUpdate("DELETE FROM tag_count_summary WHERE tag = ? AND co_tag = ?", deletes);
+            });
+        } catch (RuntimeException ex) {
+            dirty.addAll(changed);
+            throw ex;
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        flusher.shutdownNow();
+        flushQuietly();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException ex) {
+            log.warn("Could not write tag counts to tag_count_summary, will try again", ex);
+        }
+    }
+
+    private void count(Set<String> previous, Set<String> current) {
+        if (previous.isEmpty() != current.isEmpty()) {
+            taggedImages.add(current.isEmpty() ? -1 : 1);
+        }
+        for (String tag : previous) {
+            if (!current.contains(tag)) {
+                tagCounter(tag).decrement();
+            }
+        }
+        for (String tag : current) {
+            if (!previous.contains(tag)) {
+                tagCounter(tag).increment();
+            }
+        }
+        // only pairs with a tag that was added or removed change
+        String[] before = previous.toArray(String[]::new);
+        for (int i = 0; i < before.length; i++) {
+            for (int j = i + 1; j < before.length; j++) {
+                if (!current.contains(before[i]) || !current.contains(before[j])) {
+                    pairCounter(before[i], before[j]).decrement();
+                }
+            }
+        }
+        String[] after = current.toArray(String[]::new);
+        for (int i = 0; i < after.length; i++) {
+            for (int j = i + 1; j < after.length; j++) {
+                if (!previous.contains(after[i]) || !previous.contains(after[j])) {
+                    pairCounter(after[i], after[j]).increment();
+                }
+            }
+        }
+    }
+
+    private LongAdder tagCounter(String tag) {
+        dirty.add(new TagPair(tag, NO_CO_TAG));
+        return tagCounts.computeIfAbsent(tag, key -> new LongAdder());
+    }
+
+    private LongAdder pairCounter(String tag, String otherTag) {
+        boolean inOrder = tag.compareTo(otherTag) < 0;
+        String first = inOrder ? tag : otherTag;
+        String second = inOrder ? otherTag : tag;
+        dirty.add(new TagPair(first, second));
+        LongAdder counter = pairCounts.computeIfAbsent(first, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(second, key -> new LongAdder());
+        pairCounts.computeIfAbsent(second, key -> new ConcurrentHashMap<>()).putIfAbsent(first, counter);
+        return counter;
+    }
+
+    /**
+     * @return the limit tags with the highest counts, leaving out the excluded ones and any that are down to zero
+     */
+    private static List<TagCount> mostCommon(Map<String, LongAdder> counts, Set<String> excluded, int limit) {
+        PriorityQueue<TagCount> best = new PriorityQueue<>(MOST_COMMON_FIRST.reversed());
+        counts.forEach((tag, counter) -> {
+            long count = counter.sum();
+            if (count <= 0 || excluded.contains(tag)) {
+                return;
+            }
+            TagCount candidate = new TagCount(tag, count);
+            if (best.size() < limit) {
+                best.add(candidate);
+            } else if (limit > 0 && MOST_COMMON_FIRST.compare(candidate, best.peek()) < 0) {
+                best.poll();
+                best.add(candidate);
+            }
+        });
+        List<TagCount> result = new ArrayList<>(best);
+        result.sort(MOST_COMMON_FIRST);
+        return result;
+    }
+
+    private static long sum(LongAdder counter) {
+        return counter == null ? 0 : counter.sum();
+    }
+
+    private static int pairCount(Map<String, Map<String, LongAdder>> pairs) {
+        return pairs.values().stream().mapToInt(Map::size).sum() / 2;
+    }
+
+    /**
+     * The key of a counter, a single tag when coTag is empty.
+     */
+    private record TagPair(String tag, String coTag) {}
+}
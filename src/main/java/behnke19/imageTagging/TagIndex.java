@@ -0,0 +1,273 @@
+package behnke19.imageTagging;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index from each detected object to the sorted ids of the images it was found in. Multi-object
+ * queries intersect the posting lists starting from the smallest one, so the cost follows the size of the result
+ * rather than the size of the most common tag. The index is loaded from image_tag at startup, before requests are
+ * served, and kept current from {@link ImageSavedEvent}s once the save has committed. Confidences aren't indexed, queries with a minimum confidence go to the database. The tag
+ * names are also kept in a {@link TagTrie} with their image counts for autocomplete.
+ */
+@Component
+@DependsOn("legacyTagMigration")
+class TagIndex implements SmartInitializingSingleton, ApplicationEventPublisherAware {
+    private static final Logger log = LoggerFactory.getLogger(TagIndex.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, PostingList> postings = new HashMap<>();
+    // the tags currently indexed for each image, so a re-save can remove tags the image no longer has
+    private final Map<Long, String[]> tagsByImage = new HashMap<>();
+    // every indexed tag with its image count, for autocomplete
+    private final TagTrie trie = new TagTrie();
+    private ApplicationEventPublisher eventPublisher;
+
+    TagIndex(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        long start = System.currentTimeMillis();
+        Map<Long, Set<String>> loaded = new HashMap<>();
+        jdbcTemplate.query("SELECT it.image_id, t.name FROM image_tag it JOIN tag t ON t.id = it.tag_id",
+                rs -> {
+                    loaded.computeIfAbsent(rs.getLong(1), id -> new HashSet<>()).add(rs.getString(2));
+                });
+        lock.writeLock().lock();
+        try {
+            loaded.forEach(this::index);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Indexed {} tags across {} images in {} ms", postings.size(), loaded.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    // after the commit, so a rollback can't leave the index, and the trie and facets that follow it, out of step with
+    // the database
+    @TransactionalEventListener(fallbackExecution = true)
+    void onImageSaved(ImageSavedEvent event) {
+        if (event.imageId() == null) {
+            return;
+        }
+        Set<String> current = new HashSet<>(event.detectedObjects());
+        current.remove(null);
+        Set<String> previous;
+        lock.writeLock().lock();
+        try {
+            previous = index(event.imageId(), current);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (eventPublisher != null && !previous.equals(current)) {
+            eventPublisher.publishEvent(new ImageTagsChangedEvent(event.imageId(), previous, current));
+        }
+    }
+
+    /**
+     * Find the images that contain every one of the given objects.
+     * @param objects the objects that must all be present
+     * @return the matching image ids in ascending order
+     */
+    long[] findContainingAll(Collection<String> objects) {
+        Set<String> unique = new HashSet<>(objects);
+        if (unique.isEmpty()) {
+            return new long[0];
+        }
+        lock.readLock().lock();
+        try {
+            List<PostingList> lists = new ArrayList<>(unique.size());
+            for (String object : unique) {
+                PostingList list = postings.get(object);
+                if (list == null) {
+                    // nothing has this object so nothing can have all of them
+                    return new long[0];
+                }
+                lists.add(list);
+            }
+            lists.sort(Comparator.comparingInt(list -> list.size));
+
+            PostingList smallest = lists.get(0);
+            long[] result = Arrays.copyOf(smallest.ids, smallest.size);
+            int resultSize = result.length;
+            for (int i = 1; i < lists.size() && resultSize > 0; i++) {
+                PostingList next = lists.get(i);
+                resultSize = intersect(result, resultSize, next.ids, next.size);
+            }
+            return Arrays.copyOf(result, resultSize);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of images the object has been detected in
+     */
+    int count(String object) {
+        lock.readLock().lock();
+        try {
+            PostingList list = postings.get(object);
+            return list == null ? 0 : list.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Count the objects of a set of images.
+     * @param imageIds the ids of the images
+     * @return the number of the images each object was detected in
+     */
+    Map<String, Integer> countObjects(long[] imageIds) {
+        Map<String, Integer> counts = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (long id : imageIds) {
+                for (String object : tagsByImage.getOrDefault(id, new String[0])) {
+                    counts.merge(object, 1, Integer::sum);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return counts;
+    }
+
+    /**
+     * Find the indexed tags that start with a prefix.
+     * @param prefix the start of the tag names, empty for every tag
+     * @param limit the maximum number of tags to return
+     * @return the matching tags with the number of images each is in, most common first
+     */
+    List<TagCount> complete(String prefix, int limit) {
+        lock.readLock().lock();
+        try {
+            return trie.complete(prefix, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Intersect a sorted array with another sorted array, writing the result over the first one.
+     * @return the number of ids left in the first array
+     */
+    static int intersect(long[] ids, int size, long[] other, int otherSize) {
+        int kept = 0;
+        if ((long) size * 16 < otherSize) {
+            // the other list is much longer, binary search it for each id instead of walking all of it
+            int from = 0;
+            for (int i = 0; i < size && from < otherSize; i++) {
+                int found = Arrays.binarySearch(other, from, otherSize, ids[i]);
+                if (found >= 0) {
+                    ids[kept++] = ids[i];
+                    from = found + 1;
+                } else {
+                    from = -found - 1;
+                }
+            }
+            return kept;
+        }
+        int i = 0;
+        int j = 0;
+        while (i < size && j < otherSize) {
+            if (ids[i] < other[j]) {
+                i++;
+            } else if (ids[i] > other[j]) {
+                j++;
+            } else {
+                ids[kept++] = ids[i];
+                i++;
+                j++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Must be called with the write lock held.
+     * @return the objects the image had before
+     */
+    private Set<String> index(Long imageId, Set<String> objects) {
+        String[] previous = tagsByImage.getOrDefault(imageId, new String[0]);
+        for (String object : previous) {
+            if (!objects.contains(object)) {
+                PostingList list = postings.get(object);
+                list.remove(imageId);
+                if (list.size == 0) {
+                    postings.remove(object);
+                }
+                trie.put(object, list.size);
+            }
+        }
+        Set<String> previousSet = Set.of(previous);
+        for (String object : objects) {
+            if (object != null && !previousSet.contains(object)) {
+                PostingList list = postings.computeIfAbsent(object, key -> new PostingList());
+                list.add(imageId);
+                trie.put(object, list.size);
+            }
+        }
+        if (objects.isEmpty()) {
+            tagsByImage.remove(imageId);
+        } else {
+            tagsByImage.put(imageId, objects.stream().filter(Objects::nonNull).toArray(String[]::new));
+        }
+        return previousSet;
+    }
+
+    /**
+     * Growable sorted array of image ids. Ids are almost always added in increasing order so adding is usually an
+     * append.
+     */
+    private static class PostingList {
+        private long[] ids = new long[4];
+        private int size;
+
+        void add(long id) {
+            int position;
+            if (size == 0 || ids[size - 1] < id) {
+                position = size;
+            } else {
+                position = Arrays.binarySearch(ids, 0, size, id);
+                if (position >= 0) {
+                    return;
+                }
+                position = -position - 1;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, position, ids, position + 1, size - position);
+            ids[position] = id;
+            size++;
+        }
+
+        void remove(long id) {
+            int position = Arrays.binarySearch(ids, 0, size, id);
+            if (position >= 0) {
+                System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+                size--;
+            }
+        }
+    }
+}
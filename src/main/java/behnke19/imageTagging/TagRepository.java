@@ -0,0 +1,9 @@
+package behnke19.imageTagging;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.util.Optional;
+
+interface TagRepository extends JpaRepository<Tag, Integer> {
+    Optional<Tag> findByName(String name);
+}
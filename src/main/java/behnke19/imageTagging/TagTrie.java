@@ -0,0 +1,163 @@
+package behnke19.imageTagging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Prefix tree of tag names with the number of images each one is in. Every node also keeps the largest count
+ * anywhere below it, so the most common completions of a prefix are found best first without visiting the rest of
+ * the subtree and the cost of a lookup follows the number of results rather than the size of the vocabulary.
+ * Not thread safe, the {@link TagIndex} guards it with its lock.
+ */
+class TagTrie {
+    private static final char[] NO_LABELS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final Comparator<Candidate> BEST_FIRST = Comparator.comparingInt(Candidate::count).reversed()
+            // a finished tag goes before a subtree that may hold one with the same count, so ties never widen the search
+            .thenComparing(candidate -> candidate.node() != null)
+            .thenComparing(candidate -> candidate.name() == null ? "" : candidate.name());
+
+    private final Node root = new Node();
+    private int size;
+
+    /**
+     * Set the count of a tag, adding it if it's new. A count of zero removes the tag.
+     * @param name the tag name
+     * @param count the number of images with the tag
+     */
+    void put(String name, int count) {
+        Node[] path = new Node[name.length() + 1];
+        path[0] = root;
+        Node node = root;
+        for (int i = 0; i < name.length(); i++) {
+            Node child = node.child(name.charAt(i));
+            if (child == null) {
+                if (count == 0) {
+                    return;
+                }
+                child = node.addChild(name.charAt(i));
+            }
+            node = child;
+            path[i + 1] = node;
+        }
+        if (node.name == null && count > 0) {
+            size++;
+        } else if (node.name != null && count == 0) {
+            size--;
+        }
+        node.name = count > 0 ? name : null;
+        node.count = count;
+
+        for (int i = path.length - 1; i >= 0; i--) {
+            Node current = path[i];
+            if (i > 0 && current.name == null && current.labels.length == 0) {
+                path[i - 1].removeChild(name.charAt(i - 1));
+            } else {
+                current.updateMax();
+            }
+        }
+    }
+
+    /**
+     * @return the number of tags in the trie
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Find the tags starting with a prefix that are in the most images. Tags with the same count come in no
+     * particular order.
+     * @param prefix the start of the tag names, empty for every tag
+     * @param limit the maximum number of tags to return
+     * @return the matching tags, most common first
+     */
+    List<TagCount> complete(String prefix, int limit) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.child(prefix.charAt(i));
+        }
+        List<TagCount> results = new ArrayList<>(Math.min(limit, size));
+        if (node == null || limit <= 0) {
+            return results;
+        }
+        PriorityQueue<Candidate> queue = new PriorityQueue<>(BEST_FIRST);
+        queue.add(new Candidate(node, null, node.max));
+        while (!queue.isEmpty() && results.size() < limit) {
+            Candidate next = queue.poll();
+            if (next.node() == null) {
+                results.add(new TagCount(next.name(), next.count()));
+                continue;
+            }
+            Node current = next.node();
+            if (current.name != null) {
+                queue.add(new Candidate(null, current.name, current.count));
+            }
+            for (Node child : current.children) {
+                queue.add(new Candidate(child, null, child.max));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Either a subtree still to be searched or a tag ready to be returned.
+     */
+    private record Candidate(Node node, String name, int count) {}
+
+    private static class Node {
+        // children are kept in two parallel arrays sorted by character, most nodes only have one or two
+        private char[] labels = NO_LABELS;
+        private Node[] children = NO_CHILDREN;
+        private String name;
+        private int count;
+        private int max;
+
+        Node child(char label) {
+            int position = Arrays.binarySearch(labels, label);
+            return position >= 0 ? children[position] : null;
+        }
+
+        Node addChild(char label) {
+            int position = -Arrays.binarySearch(labels, label) - 1;
+            char[] newLabels = new char[labels.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, position);
+            System.arraycopy(children, 0, newChildren, 0, position);
+            System.arraycopy(labels, position, newLabels, position + 1, labels.length - position);
+            System.arraycopy(children, position, newChildren, position + 1, children.length - position);
+            Node child = new Node();
+            newLabels[position] = label;
+            newChildren[position] = child;
+            labels = newLabels;
+            children = newChildren;
+            return child;
+        }
+
+        void removeChild(char label) {
+            int position = Arrays.binarySearch(labels, label);
+            if (position < 0) {
+                return;
+            }
+            char[] newLabels = new char[labels.length - 1];
+            Node[] newChildren = new Node[children.length - 1];
+            System.arraycopy(labels, 0, newLabels, 0, position);
+            System.arraycopy(children, 0, newChildren, 0, position);
+            System.arraycopy(labels, position + 1, newLabels, position, labels.length - position - 1);
+            System.arraycopy(children, position + 1, newChildren, position, children.length - position - 1);
+            labels = newLabels.length == 0 ? NO_LABELS : newLabels;
+            children = newChildren.length == 0 ? NO_CHILDREN : newChildren;
+        }
+
+        void updateMax() {
+            int highest = count;
+            for (Node child : children) {
+                highest = Math.max(highest, child.max);
+            }
+            max = highest;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package behnke19.imageTagging;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+
+/**
+ * JPEG thumbnails of stored image files in a few fixed sizes, kept on disk under thumbs/size/hash.jpg. Like the
+ * content they are made from, thumbnails never change once written. They are generated in the background when a file
+ * is uploaded and on the first request for images stored before thumbnails existed.
+ */
+@Component
+class ThumbnailStore {
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailStore.class);
+
+    private final Path root;
+    private final List<Integer> sizes;
+    private final float quality;
+    private final ImageContentStore contentStore;
+    private final ImageScaler scaler;
+    private final MeterRegistry meterRegistry;
+    // background generation is only an optimisation so it gives up when busy rather than queueing
+    private final Semaphore backgroundPermits;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    ThumbnailStore(@Value("${imageTagging.thumbnails.path:data/thumbs}") String root,
+                   @Value("${imageTagging.thumbnails.sizes:128,256,512}") List<Integer> sizes,
+                   @Value("${imageTagging.thumbnails.jpeg-quality:0.8}") float quality,
+                   @Value("${imageTagging.thumbnails.background-concurrency:2}") int backgroundConcurrency,
+                   ImageContentStore contentStore, ImageScaler scaler, MeterRegistry meterRegistry) {
+        this.root = Paths.get(root).toAbsolutePath();
+        this.sizes = List.copyOf(sizes);
+        this.quality = quality;
+        this.contentStore = contentStore;
+        this.scaler = scaler;
+        this.meterRegistry = meterRegistry;
+        this.backgroundPermits = new Semaphore(backgroundConcurrency);
+        try {
+            Files.createDirectories(this.root);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not create the thumbnail store at " + this.root, ex);
+        }
+    }
+
+    /**
+     * @return the longest side of each thumbnail size, in pixels
+     */
+    List<Integer> sizes() {
+        return sizes;
+    }
+
+    /**
+     * Get a thumbnail, generating it if it doesn't exist yet.
+     * @param hash the hash of the stored content
+     * @param size one of the configured sizes
+     * @return the thumbnail file, or empty if the content can't be decoded
+     * @throws RejectedExecutionException if the thumbnail has to be generated and too many images are being scaled
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    Optional<Path> get(String hash, int size) throws IOException, InterruptedException {
+        if (!sizes.contains(size)) {
+            throw new IllegalArgumentException("Not a thumbnail size: " + size);
+        }
+        Path target = path(hash, size);
+        if (Files.exists(target)) {
+            meterRegistry.counter("imageTagging.thumbnails", "result", "hit").increment();
+            return Optional.of(target);
+        }
+        if (!generate(hash, size, target)) {
+            return Optional.empty();
+        }
+        meterRegistry.counter("imageTagging.thumbnails", "result", "generated").increment();
+        return Optional.of(target);
+    }
+
+    /**
+     * Generate every size of thumbnail for newly stored content in the background. Any that are skipped because the
+     * server is busy are generated when they are first requested.
+     * @param hash the hash of the stored content
+     */
+    void generateInBackground(String hash) {
+        if (!backgroundPermits.tryAcquire()) {
+            meterRegistry.counter("imageTagging.thumbnails", "result", "skipped").increment();
+            return;
+        }
+        try {
+            executor.execute(() -> generateAll(hash));
+        } catch (RejectedExecutionException ex) {
+            // shutting down
+            backgroundPermits.release();
+            meterRegistry.counter("imageTagging.thumbnails", "result", "skipped").increment();
+        }
+    }
+
+    private void generateAll(String hash) {
+        try {
+            for (int size : sizes) {
+                Path target = path(hash, size);
+                if (!Files.exists(target)) {
+                    generate(hash, size, target);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.debug("Could not generate thumbnails for {}", hash, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            backgroundPermits.release();
+        }
+    }
+
+    Path path(String hash, int size) {
+        // checks the hash so it can't be used to leave the store
+        contentStore.path(hash);
+        return root.resolve(Integer.toString(size)).resolve(hash + ".jpg");
+    }
+
+    /**
+     * @return false if the content can't be decoded
+     * @throws RejectedExecutionException if there is no room to decode the content
+     */
+    private boolean generate(String hash, int size, Path target) throws IOException, InterruptedException {
+        if (scaler.dimensions(contentStore.path(hash)).isEmpty()) {
+            meterRegistry.counter("imageTagging.thumbnails", "result", "unsupported").increment();
+            return false;
+        }
+        Files.createDirectories(target.getParent());
+        // write to a temp file first so a half written thumbnail can never be served
+        Path tmp = Files.createTempFile(target.getParent(), hash, ".tmp");
+        try {
+            if (!scaler.scaleToJpeg(contentStore.path(hash), size, quality, tmp, 10, TimeUnit.SECONDS)) {
+                throw new RejectedExecutionException("Too many images are being scaled to make thumbnail " + target);
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException ex) {
+            // generated by another request in the meantime
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return true;
+    }
+
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        // thumbnails still being written are finished, any that are missing are generated on first request
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,93 @@
+package behnke19.imageTagging;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket rate limiter. Tokens are added at a steady rate up to the bucket size and every call takes one. A
+ * caller that finds the bucket empty reserves the next token and sleeps until it is due, so waiting callers are
+ * served in the order they arrived.
+ */
+class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private final LongSupplier clock;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param permitsPerSecond how fast tokens are added
+     * @param burst the most tokens the bucket can hold
+     */
+    TokenBucket(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, System::nanoTime);
+    }
+
+    TokenBucket(double permitsPerSecond, int burst, LongSupplier clock) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("The rate and burst must be positive");
+        }
+        this.tokensPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = burst;
+        this.clock = clock;
+        this.tokens = burst;
+        this.lastRefill = clock.getAsLong();
+    }
+
+    /**
+     * Take a token, waiting for one if the bucket is empty.
+     * @param maxWait the longest the caller is willing to wait
+     * @return false if no token would be available within maxWait, in which case none was taken
+     * @throws InterruptedException
+     */
+    boolean acquire(Duration maxWait) throws InterruptedException {
+        long waitNanos = reserve(maxWait.toNanos());
+        if (waitNanos < 0) {
+            return false;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return true;
+    }
+
+    /**
+     * Take a token without waiting for it, for callers that wait some other way.
+     * @param maxWait the longest the caller is willing to wait
+     * @return the nanos to wait before using the token, or -1 if that would be longer than maxWait, in which case
+     * none was taken
+     */
+    long reserve(Duration maxWait) {
+        return reserve(maxWait.toNanos());
+    }
+
+    /**
+     * @return how many tokens are available right now
+     */
+    synchronized double available() {
+        refill();
+        return Math.max(0, tokens);
+    }
+
+    /**
+     * Take a token now, letting the balance go negative when the bucket is empty. The debt is what the caller has
+     * to wait for.
+     * @return the nanos to wait before using the token, or -1 if that would be longer than maxWaitNanos
+     */
+    private synchronized long reserve(long maxWaitNanos) {
+        refill();
+        long waitNanos = tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+        if (waitNanos > maxWaitNanos) {
+            return -1;
+        }
+        tokens -= 1;
+        return waitNanos;
+    }
+
+    private void refill() {
+        long now = clock.getAsLong();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,84 @@
+package behnke19.imageTagging;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+		"imageTagging.batch.chunk-size=50",
+		"imageTagging.batch.flush-interval=50ms"})
+@ActiveProfiles("test")
+class BatchIngestionServiceTests {
+
+	@Autowired
+	BatchIngestionService batchIngestionService;
+
+	@Test
+	void reportsResultsBeforeTheChunkIsFull() throws Exception {
+		CountDownLatch firstResult = new CountDownLatch(1);
+		List<BatchIngestionService.BatchItem> items = List.of(
+				new BatchIngestionService.BatchItem(0, () -> new Image("first")),
+				new BatchIngestionService.BatchItem(1, () -> {
+					// only finishes once the first item has been reported, which a full chunk would never allow
+					if (!firstResult.await(10, TimeUnit.SECONDS)) {
+						throw new IllegalStateException("The first result wasn't reported in time");
+					}
+					return new Image("second");
+				}));
+		List<BatchIngestionService.BatchItemResult> results = new ArrayList<>();
+
+		batchIngestionService.ingest(items.iterator(), false, result -> {
+			results.add(result);
+			firstResult.countDown();
+		});
+
+		assertEquals(List.of(0, 1), results.stream().map(BatchIngestionService.BatchItemResult::index).toList());
+		assertTrue(results.stream().allMatch(result -> result.imageId() != null && result.error() == null));
+	}
+
+	@Test
+	void aChunkThatCantBeSavedIsReportedPerItem() throws Exception {
+		List<BatchIngestionService.BatchItem> items = List.of(
+				new BatchIngestionService.BatchItem(0, () -> new Image("x".repeat(1000))),
+				new BatchIngestionService.BatchItem(1, () -> {
+					throw new IllegalArgumentException("not an image");
+				}));
+		List<BatchIngestionService.BatchItemResult> results = new ArrayList<>();
+
+		batchIngestionService.ingest(items.iterator(), false, results::add);
+
+		results.sort(Comparator.comparingInt(BatchIngestionService.BatchItemResult::index));
+		assertEquals(2, results.size());
+		assertNull(results.get(0).imageId());
+		assertEquals("Error saving image.", results.get(0).error());
+		assertEquals("not an image", results.get(1).error());
+	}
+
+	@Test
+	void itemsWithoutAnImageOrThatThrowErrorsAreReported() throws Exception {
+		List<BatchIngestionService.BatchItem> items = List.of(
+				new BatchIngestionService.BatchItem(0, () -> null),
+				new BatchIngestionService.BatchItem(1, () -> {
+					throw new AssertionError("not an exception");
+				}),
+				new BatchIngestionService.BatchItem(2, () -> new Image("fine")));
+		List<BatchIngestionService.BatchItemResult> results = new ArrayList<>();
+
+		batchIngestionService.ingest(items.iterator(), false, results::add);
+
+		results.sort(Comparator.comparingInt(BatchIngestionService.BatchItemResult::index));
+		assertEquals(3, results.size());
+		assertEquals("No image to save.", results.get(0).error());
+		assertEquals("Error processing image.", results.get(1).error());
+		assertNotNull(results.get(2).imageId());
+	}
+}
@@ -0,0 +1,50 @@
+package behnke19.imageTagging;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DetectionCacheTests {
+
+	@Test
+	void normalizesTriviallyDifferentSpellingsOfAUrl() {
+		String url = "http://images.example.com/cats/tabby.jpg?size=large";
+
+		assertEquals(url, DetectionCache.normalizeUrl("  HTTP://Images.Example.COM/cats/tabby.jpg?size=large "));
+		assertEquals(url, DetectionCache.normalizeUrl("http://images.example.com/cats/tabby.jpg?size=large#top"));
+		assertEquals(url, DetectionCache.normalizeUrl("http://images.example.com:80/cats/tabby.jpg?size=large"));
+		assertEquals(url, DetectionCache.normalizeUrl("http://images.example.com/cats/./tabby.jpg?size=large"));
+		assertEquals("https://images.example.com/", DetectionCache.normalizeUrl("https://images.example.com:443"));
+		assertEquals("http://images.example.com/", DetectionCache.normalizeUrl("http://images.example.com"));
+	}
+
+	@Test
+	void keepsWhatTheServerCanTellApart() {
+		// the path and query are case sensitive and a trailing slash can name a different resource
+		assertEquals("http://images.example.com/Cats/Tabby.jpg?Size=Large",
+				DetectionCache.normalizeUrl("http://images.example.com/Cats/Tabby.jpg?Size=Large"));
+		assertEquals("http://images.example.com/cats/",
+				DetectionCache.normalizeUrl("http://images.example.com/cats/"));
+		assertNotEquals(DetectionCache.normalizeUrl("http://images.example.com/cats/"),
+				DetectionCache.normalizeUrl("http://images.example.com/cats"));
+		assertEquals("https://images.example.com:8443/cat.jpg",
+				DetectionCache.normalizeUrl("https://images.example.com:8443/cat.jpg"));
+		assertEquals("http://images.example.com:443/cat.jpg",
+				DetectionCache.normalizeUrl("http://images.example.com:443/cat.jpg"));
+	}
+
+	@Test
+	void leavesUrlsItCantParseAsGiven() {
+		assertEquals("not a url", DetectionCache.normalizeUrl(" not a url "));
+		assertEquals("cats/tabby.jpg", DetectionCache.normalizeUrl("cats/tabby.jpg"));
+	}
+
+	@Test
+	void keysUrlsBeforeContent() {
+		assertEquals("url:http://images.example.com/cat.jpg",
+				DetectionCache.keyFor("HTTP://images.example.com/cat.jpg#fragment", "abc123"));
+		assertEquals(DetectionCache.keyFor("http://images.example.com:80/cat.jpg", null),
+				DetectionCache.keyFor("http://Images.Example.com/cat.jpg", null));
+		assertEquals("sha256:abc123", DetectionCache.keyFor(null, "abc123"));
+	}
+}
@@ -0,0 +1,84 @@
+package behnke19.imageTagging;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+		"imageTagging.image-cache.content-bytes=2500",
+		"imageTagging.image-cache.content-max-entry-bytes=1500"})
+@ActiveProfiles("test")
+class ImageCacheTests {
+
+	@Autowired
+	ImageCache cache;
+	@Autowired
+	ImageRepository repository;
+	@Autowired
+	TagDictionary tagDictionary;
+	@Autowired
+	ImageContentStore contentStore;
+	@Autowired
+	MeterRegistry registry;
+	@Autowired
+	TransactionTemplate transactionTemplate;
+
+	@Test
+	void readsThroughAndDropsImagesOnceSaved() {
+		Image image = new Image("before");
+		image.addDetectedObject(tagDictionary.resolve("cat"), 80f);
+		Long id = repository.save(image).getId();
+
+		Image cached = cache.get(id).orElseThrow();
+		assertEquals("before", cached.getLabel());
+		assertEquals(List.of("cat"), cached.getDetectedObjects());
+		assertSame(cached, cache.get(id).orElseThrow());
+		assertSame(cached, cache.getIfPresent(id).orElseThrow());
+
+		transactionTemplate.executeWithoutResult(status -> {
+			Image changed = repository.findById(id).orElseThrow();
+			changed.setLabel("after");
+			repository.save(changed);
+			// nothing is dropped until the save commits
+			assertTrue(cache.getIfPresent(id).isPresent());
+		});
+		assertTrue(cache.getIfPresent(id).isEmpty());
+		assertEquals("after", cache.get(id).orElseThrow().getLabel());
+		assertTrue(cache.get(Long.MAX_VALUE).isEmpty());
+	}
+
+	@Test
+	void boundsContentByBytes() throws Exception {
+		String large = contentStore.store(filled(2000, (byte) 1));
+		assertTrue(cache.content(large).isEmpty());
+
+		for (byte b = 2; b < 6; b++) {
+			byte[] content = filled(1000, b);
+			assertArrayEquals(content, cache.content(contentStore.store(content)).orElseThrow());
+		}
+		double resident = 0;
+		for (int i = 0; i < 100; i++) {
+			// writes are applied and evicted in the background, the size reads 0 until the first ones are applied
+			resident = registry.get("imageTagging.image-cache.resident").tag("tier", "content").gauge().value();
+			if (resident > 0 && resident <= 2500) {
+				break;
+			}
+			Thread.sleep(10);
+		}
+		assertTrue(resident > 0 && resident <= 2500, "resident bytes " + resident);
+	}
+
+	private static byte[] filled(int length, byte value) {
+		byte[] content = new byte[length];
+		Arrays.fill(content, value);
+		return content;
+	}
+}
@@ -0,0 +1,147 @@
+package behnke19.imageTagging;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class ImageCatalogImporterTests {
+
+	@Autowired
+	ImageCatalogImporter importer;
+	@Autowired
+	ImageCatalogStreamer streamer;
+	@Autowired
+	ImageRepository repository;
+	@Autowired
+	ImageContentStore contentStore;
+	@Autowired
+	DetectionCache detectionCache;
+	@Autowired
+	TagIndex tagIndex;
+	@Autowired
+	TransactionTemplate transactionTemplate;
+	@Autowired
+	ObjectMapper objectMapper;
+
+	private ImageCatalogImporter.ImportResult importLines(String... lines) throws Exception {
+		return importer.importAll(new ByteArrayInputStream(String.join("\n", lines).getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private Image load(long id) {
+		return transactionTemplate.execute(status -> {
+			Image image = repository.findById(id).orElseThrow();
+			image.getTags();
+			return image;
+		});
+	}
+
+	@Test
+	void importsImagesWithTheirIdsTagsAndContent() throws Exception {
+		byte[] content = "an imported image".getBytes(StandardCharsets.UTF_8);
+		String hash = DetectionCache.sha256(content);
+		ImageCatalogImporter.ImportResult result = importLines(
+				"{\"id\":9000001,\"label\":\"file\",\"detectionStatus\":\"COMPLETE\",\"tags\":[{\"name\":\"imported-cat\","
+						+ "\"confidence\":88.5}],\"contentHash\":\"" + hash + "\",\"contentType\":\"image/png\","
+						+ "\"content\":\"" + Base64.getEncoder().encodeToString(content) + "\"}",
+				"{\"id\":9000002,\"imageUrl\":\"http://images.example.com/imported.jpg\",\"detectionStatus\":\"PENDING\"}",
+				"{\"label\":\"no id\"}",
+				"{\"id\":9000003,\"contentHash\":\"" + hash.replace('a', 'b') + "\",\"content\":\""
+						+ Base64.getEncoder().encodeToString(content) + "\"}");
+
+		assertEquals(2, result.imported());
+		assertEquals(0, result.skipped());
+		assertEquals(2, result.errors().size());
+
+		Image file = load(9000001);
+		assertEquals("file", file.getLabel());
+		assertEquals(hash, file.getContentHash());
+		assertEquals((long) content.length, file.getContentLength());
+		assertEquals(List.of("imported-cat"), file.getDetectedObjects());
+		assertEquals(88.5f, file.getTags().getFirst().getConfidence());
+		assertArrayEquals(content, Files.readAllBytes(contentStore.path(hash)));
+		assertEquals(List.of(new DetectedTag("imported-cat", 88.5f)),
+				detectionCache.get("sha256:" + hash).orElseThrow());
+		assertArrayEquals(new long[]{9000001}, tagIndex.findContainingAll(List.of("imported-cat")));
+
+		assertEquals(DetectionStatus.NONE, load(9000002).getDetectionStatus());
+		assertTrue(repository.findById(9000003L).isEmpty());
+
+		// new images get ids after the imported ones
+		assertTrue(repository.save(new Image("after import")).getId() > 9000002);
+
+		// importing again skips what is already there
+		ImageCatalogImporter.ImportResult again = importLines(
+				"{\"id\":9000002,\"imageUrl\":\"http://images.example.com/imported.jpg\"}");
+		assertEquals(0, again.imported());
+		assertEquals(1, again.skipped());
+	}
+
+	@Test
+	void exportsWhatItImports() throws Exception {
+		byte[] content = "round trip".getBytes(StandardCharsets.UTF_8);
+		String hash = contentStore.store(content);
+		importLines("{\"id\":9100001,\"label\":\"round trip\",\"detectionStatus\":\"COMPLETE\",\"tags\":[{\"name\":"
+				+ "\"round-trip\",\"confidence\":50.0}],\"contentHash\":\"" + hash + "\",\"contentLength\":10}");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		streamer.export(out, ImageCatalogStreamer.ContentMode.INLINE);
+		JsonNode exported = null;
+		for (String line : out.toString(StandardCharsets.UTF_8).split("\n")) {
+			JsonNode node = objectMapper.readTree(line);
+			if (node.get("id").asLong() == 9100001) {
+				exported = node;
+			}
+		}
+
+		assertNotNull(exported);
+		assertEquals("round trip", exported.get("label").asText());
+		assertEquals(hash, exported.get("contentHash").asText());
+		assertArrayEquals(content, exported.get("content").binaryValue());
+		assertEquals(Map.of("name", "round-trip", "confidence", 50.0),
+				objectMapper.convertValue(exported.get("tags").get(0), Map.class));
+
+		out.reset();
+		streamer.export(out, ImageCatalogStreamer.ContentMode.NONE);
+		assertFalse(out.toString(StandardCharsets.UTF_8).contains(hash));
+	}
+
+	@Test
+	void uploadsBeforeAndAfterAnImportGetIdsOfTheirOwn() throws Exception {
+		long uploaded = repository.save(new Image("before import")).getId();
+		List<String> lines = new ArrayList<>();
+		for (long id = uploaded + 1; id <= uploaded + 5; id++) {
+			lines.add("{\"id\":" + id + ",\"label\":\"imported next to an upload\"}");
+		}
+
+		ImageCatalogImporter.ImportResult result = importLines(lines.toArray(new String[0]));
+
+		// every id up to the sequence may be in a block an instance is handing out, so none of them is imported
+		assertEquals(0, result.imported());
+		assertEquals(5, result.errors().size());
+		for (long id = uploaded + 1; id <= uploaded + 5; id++) {
+			assertFalse(repository.existsById(id));
+		}
+		// more than a block of uploads, all of them are saved with ids of their own
+		for (int i = 0; i < 60; i++) {
+			Image image = repository.save(new Image("after import"));
+			assertEquals("after import", load(image.getId()).getLabel());
+		}
+	}
+}
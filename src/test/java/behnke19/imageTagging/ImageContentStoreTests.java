@@ -0,0 +1,81 @@
+package behnke19.imageTagging;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageContentStoreTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void streamedContentIsStoredUnderItsHash() throws Exception {
+		ImageContentStore store = new ImageContentStore(dir.toString());
+		byte[] content = new byte[200_000];
+		new Random(7).nextBytes(content);
+
+		ImageContentStore.StoredContent stored = store.store(new ByteArrayInputStream(content));
+
+		assertEquals(DetectionCache.sha256(content), stored.hash());
+		assertEquals(content.length, stored.length());
+		assertArrayEquals(content, Files.readAllBytes(store.path(stored.hash())));
+		assertEquals(stored.hash(), store.store(content));
+	}
+
+	@Test
+	void storingTheSameContentAgainLeavesNoTempFiles() throws Exception {
+		ImageContentStore store = new ImageContentStore(dir.toString());
+		byte[] content = "the same image".getBytes();
+
+		String hash = store.store(new ByteArrayInputStream(content)).hash();
+		assertEquals(hash, store.store(new ByteArrayInputStream(content)).hash());
+
+		try (Stream<Path> files = Files.walk(dir)) {
+			assertEquals(1, files.filter(Files::isRegularFile).count());
+		}
+	}
+
+	@Test
+	void aFailedUploadLeavesNothingBehind() throws Exception {
+		ImageContentStore store = new ImageContentStore(dir.toString());
+		InputStream broken = new InputStream() {
+			private int remaining = 100_000;
+
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) == -1 ? -1 : one[0];
+			}
+
+			// the default read(byte[], int, int) swallows an exception after the first byte of a buffer
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				if (remaining <= 0) {
+					throw new IOException("connection reset");
+				}
+				int count = Math.min(length, remaining);
+				Arrays.fill(buffer, offset, offset + count, (byte) 1);
+				remaining -= count;
+				return count;
+			}
+		};
+
+		assertThrows(IOException.class, () -> store.store(broken));
+		// neither the temp file nor a blob under the hash of what was read
+		try (Stream<Path> files = Files.walk(dir)) {
+			assertEquals(List.of(), files.filter(Files::isRegularFile).toList());
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package behnke19.imageTagging;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+@ActiveProfiles("test")
+class ImageControllerTests {
+
+	@Autowired
+	MockMvc mvc;
+	@Autowired
+	ImageRepository repository;
+
+	/**
+	 * Save images, which get higher ids than any image already in the database.
+	 * @return their ids in order
+	 */
+	private List<Long> saveImages(int count) {
+		List<Image> images = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			images.add(new Image("page " + i));
+		}
+		return repository.saveAll(images).stream().map(Image::getId).sorted().toList();
+	}
+
+	private static String next(long after, int limit) {
+		return "<http://localhost/images?after=" + after + "&limit=" + limit + ">; rel=\"next\"";
+	}
+
+	@Test
+	void pagesThroughImagesWithTheNextLink() throws Exception {
+		List<Long> ids = saveImages(4);
+		long before = ids.getFirst() - 1;
+
+		mvc.perform(get("/images").param("after", Long.toString(before)).param("limit", "2")
+						.accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$[*].id", contains(ids.get(0).intValue(), ids.get(1).intValue())))
+				.andExpect(header().string(HttpHeaders.LINK, next(ids.get(1), 2)));
+		// the last page is exactly full, there is nothing after it so it has no link
+		mvc.perform(get("/images").param("after", Long.toString(ids.get(1))).param("limit", "2")
+						.accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$[*].id", contains(ids.get(2).intValue(), ids.get(3).intValue())))
+				.andExpect(header().doesNotExist(HttpHeaders.LINK));
+		mvc.perform(get("/images").param("after", Long.toString(ids.getLast())).accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$", hasSize(0)))
+				.andExpect(header().doesNotExist(HttpHeaders.LINK));
+	}
+
+	@Test
+	void clampsTheLimit() throws Exception {
+		List<Long> ids = saveImages(1001);
+		long before = ids.getFirst() - 1;
+
+		mvc.perform(get("/images").param("after", Long.toString(before)).param("limit", "0")
+						.accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$[*].id", contains(ids.getFirst().intValue())))
+				.andExpect(header().string(HttpHeaders.LINK, next(ids.getFirst(), 1)));
+		mvc.perform(get("/images").param("after", Long.toString(before)).param("limit", "5000")
+						.accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$", hasSize(1000)))
+				.andExpect(header().string(HttpHeaders.LINK, next(ids.get(999), 1000)));
+		// without a limit the page holds 100 images
+		mvc.perform(get("/images").param("after", Long.toString(before)).accept(MediaType.APPLICATION_JSON))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$[*].id", contains(IntStream.range(0, 100)
+						.mapToObj(i -> ids.get(i).intValue()).toArray())))
+				.andExpect(header().string(HttpHeaders.LINK, next(ids.get(99), 100)));
+	}
+}
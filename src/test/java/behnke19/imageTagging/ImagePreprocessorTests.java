@@ -0,0 +1,69 @@
+package behnke19.imageTagging;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImagePreprocessorTests {
+
+	@TempDir
+	Path dir;
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final ImagePreprocessor preprocessor = new ImagePreprocessor(new ImageScaler(1 << 20), true,
+			256, 0.8f, ObservationRegistry.NOOP, registry);
+
+	private Path png(int width, int height) throws Exception {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Random random = new Random(42);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.setRGB(x, y, random.nextInt());
+			}
+		}
+		Path file = dir.resolve(width + "x" + height + ".png");
+		ImageIO.write(image, "png", file.toFile());
+		return file;
+	}
+
+	@Test
+	void downscalesLargeImagesToJpeg() throws Exception {
+		Path original = png(1000, 500);
+		long originalSize = Files.size(original);
+
+		try (ImagePreprocessor.PreparedUpload upload = preprocessor.prepare(original)) {
+			assertTrue(upload.temporary());
+			BufferedImage scaled = ImageIO.read(upload.path().toFile());
+			assertEquals(256, scaled.getWidth());
+			assertEquals(128, scaled.getHeight());
+			assertEquals(originalSize - Files.size(upload.path()),
+					registry.get("imageTagging.preprocess.bytes.saved").counter().count());
+			upload.close();
+			assertFalse(Files.exists(upload.path()));
+		}
+		assertEquals(originalSize, Files.size(original));
+	}
+
+	@Test
+	void uploadsSmallOrUnreadableFilesAsTheyAre() throws Exception {
+		Path small = png(200, 100);
+		Path notAnImage = Files.write(dir.resolve("notes.txt"), "not an image".getBytes());
+
+		try (ImagePreprocessor.PreparedUpload upload = preprocessor.prepare(small)) {
+			assertEquals(small, upload.path());
+			assertFalse(upload.temporary());
+		}
+		try (ImagePreprocessor.PreparedUpload upload = preprocessor.prepare(notAnImage)) {
+			assertEquals(notAnImage, upload.path());
+		}
+	}
+}
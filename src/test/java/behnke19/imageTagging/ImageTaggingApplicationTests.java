@@ -2,8 +2,10 @@ package behnke19.imageTagging;
 
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
 
 @SpringBootTest
+@ActiveProfiles("test")
 class ImageTaggingApplicationTests {
 
 	@Test
@@ -0,0 +1,144 @@
+package behnke19.imageTagging;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static behnke19.imageTagging.ImaggaCallScheduler.Caller.BACKGROUND;
+import static behnke19.imageTagging.ImaggaCallScheduler.Caller.FOREGROUND;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImaggaCallSchedulerTests {
+
+	private static ImaggaCallScheduler scheduler(int maxAttempts, int failureThreshold) {
+		ImaggaProperties properties = new ImaggaProperties(
+				"http://localhost/v2/tags", "http://localhost/v2/uploads", 30f,
+				new ImaggaProperties.RateLimit(1000, 1000, Duration.ofSeconds(1), Duration.ofSeconds(1)),
+				new ImaggaProperties.Concurrency(4, 1, 16),
+				new ImaggaProperties.Timeouts(Duration.ofSeconds(1), Duration.ofSeconds(1)),
+				new ImaggaProperties.Retry(maxAttempts, Duration.ofMillis(1), Duration.ofMillis(10)),
+				new ImaggaProperties.CircuitBreaker(failureThreshold, Duration.ofMinutes(1)));
+		return new ImaggaCallScheduler(properties, new SimpleMeterRegistry());
+	}
+
+	@Test
+	void retriesRetryableStatuses() throws Exception {
+		ImaggaCallScheduler scheduler = scheduler(3, 10);
+		AtomicInteger attempts = new AtomicInteger();
+
+		String result = scheduler.execute(BACKGROUND, () -> {
+			if (attempts.incrementAndGet() < 3) {
+				throw new ImaggaException(503, null);
+			}
+			return "tags";
+		});
+
+		assertEquals("tags", result);
+		assertEquals(3, attempts.get());
+	}
+
+	@Test
+	void retriesAsyncCallsWithoutBlocking() throws Exception {
+		ImaggaCallScheduler scheduler = scheduler(3, 10);
+		AtomicInteger attempts = new AtomicInteger();
+
+		CompletableFuture<String> result = scheduler.executeAsync(BACKGROUND, () -> attempts.incrementAndGet() < 3
+				? CompletableFuture.failedFuture(new ImaggaException(503, null))
+				: CompletableFuture.completedFuture("tags"));
+
+		assertEquals("tags", result.get(5, TimeUnit.SECONDS));
+		assertEquals(3, attempts.get());
+		// a client error is passed straight on
+		ExecutionException ex = assertThrows(ExecutionException.class, () -> scheduler.executeAsync(BACKGROUND,
+				() -> CompletableFuture.failedFuture(new ImaggaException(400, null))).get(5, TimeUnit.SECONDS));
+		assertEquals(400, ((ImaggaException) ex.getCause()).getStatusCode());
+	}
+
+	@Test
+	void doesNotRetryClientErrors() {
+		ImaggaCallScheduler scheduler = scheduler(3, 10);
+		AtomicInteger attempts = new AtomicInteger();
+
+		ImaggaException ex = assertThrows(ImaggaException.class, () -> scheduler.execute(BACKGROUND, () -> {
+			attempts.incrementAndGet();
+			throw new ImaggaException(400, null);
+		}));
+
+		assertEquals(400, ex.getStatusCode());
+		assertEquals(1, attempts.get());
+	}
+
+	@Test
+	void failsFastOnceTheCircuitOpens() {
+		ImaggaCallScheduler scheduler = scheduler(1, 2);
+		AtomicInteger attempts = new AtomicInteger();
+		ImaggaCallScheduler.ImaggaCall<String> failing = () -> {
+			attempts.incrementAndGet();
+			throw new ImaggaException(500, null);
+		};
+
+		assertThrows(ImaggaException.class, () -> scheduler.execute(BACKGROUND, failing));
+		assertThrows(ImaggaException.class, () -> scheduler.execute(BACKGROUND, failing));
+		assertThrows(ImaggaUnavailableException.class, () -> scheduler.execute(BACKGROUND, failing));
+
+		assertEquals(2, attempts.get());
+		assertEquals(CircuitBreaker.State.OPEN, scheduler.getCircuitState());
+	}
+
+	@Test
+	void anInterruptedCallIsNotCountedAndGivesBackItsSlot() throws Exception {
+		ImaggaCallScheduler scheduler = scheduler(3, 1);
+		AtomicInteger attempts = new AtomicInteger();
+
+		for (int i = 0; i < 20; i++) {
+			assertThrows(InterruptedException.class, () -> scheduler.execute(BACKGROUND, () -> {
+				attempts.incrementAndGet();
+				throw new InterruptedException();
+			}));
+			assertTrue(Thread.interrupted());
+		}
+
+		assertEquals(20, attempts.get());
+		assertEquals(CircuitBreaker.State.CLOSED, scheduler.getCircuitState());
+		assertEquals("tags", scheduler.execute(BACKGROUND, () -> "tags"));
+	}
+
+	@Test
+	void aRetryAfterLongerThanTheMaxBackoffCanBeRetriedLater() {
+		ImaggaCallScheduler scheduler = scheduler(3, 10);
+		AtomicInteger attempts = new AtomicInteger();
+
+		ImaggaUnavailableException ex = assertThrows(ImaggaUnavailableException.class,
+				() -> scheduler.execute(BACKGROUND, () -> {
+					attempts.incrementAndGet();
+					throw new ImaggaException(429, Duration.ofMinutes(1));
+				}));
+
+		assertEquals(Duration.ofMinutes(1), ex.getRetryAfter());
+		assertEquals(1, attempts.get());
+	}
+
+	@Test
+	void foregroundCallersDoNotWaitLongForTheRateLimit() throws Exception {
+		ImaggaProperties properties = new ImaggaProperties(
+				"http://localhost/v2/tags", "http://localhost/v2/uploads", 30f,
+				new ImaggaProperties.RateLimit(0.1, 1, Duration.ofSeconds(30), Duration.ofMillis(50)),
+				new ImaggaProperties.Concurrency(4, 1, 16),
+				new ImaggaProperties.Timeouts(Duration.ofSeconds(1), Duration.ofSeconds(1)),
+				new ImaggaProperties.Retry(3, Duration.ofMillis(1), Duration.ofMillis(10)),
+				new ImaggaProperties.CircuitBreaker(10, Duration.ofMinutes(1)));
+		ImaggaCallScheduler scheduler = new ImaggaCallScheduler(properties, new SimpleMeterRegistry());
+		assertEquals("tags", scheduler.execute(FOREGROUND, () -> "tags"));
+
+		long start = System.nanoTime();
+		assertThrows(ImaggaUnavailableException.class, () -> scheduler.execute(FOREGROUND, () -> "tags"));
+		assertTrue(System.nanoTime() - start < Duration.ofSeconds(5).toNanos());
+	}
+}
@@ -0,0 +1,56 @@
+package behnke19.imageTagging;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ImaggaResponseDecoderTests {
+
+	private final ImaggaResponseDecoder decoder = new ImaggaResponseDecoder(new ObjectMapper());
+
+	private static InputStream json(String json) {
+		return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void readsTagsAboveTheThreshold() throws Exception {
+		List<DetectedTag> tags = decoder.decodeTags(json("{\"result\":{\"tags\":["
+				+ "{\"confidence\":61.5,\"tag\":{\"en\":\"mountain\",\"de\":\"berg\"},\"extra\":[1,{\"a\":2}]},"
+				+ "{\"tag\":{\"en\":\"sky\"},\"confidence\":45},"
+				+ "{\"confidence\":12.25,\"tag\":{\"en\":\"snow\"}}],\"unused\":{\"x\":[]}},"
+				+ "\"status\":{\"text\":\"\",\"type\":\"success\"}}"), 30f);
+
+		assertEquals(List.of(new DetectedTag("mountain", 61.5f), new DetectedTag("sky", 45f)), tags);
+	}
+
+	@Test
+	void rejectsUnsuccessfulResponses() {
+		assertThrows(Exception.class, () -> decoder.decodeTags(json("{\"result\":{\"tags\":[]},"
+				+ "\"status\":{\"text\":\"Unsupported image\",\"type\":\"error\"}}"), 30f));
+		assertThrows(Exception.class, () -> decoder.decodeTags(json("{\"result\":{\"tags\":["), 30f));
+	}
+
+	@Test
+	void readsUploadIds() throws Exception {
+		assertEquals("i05e1321", decoder.decodeUploadId(json("{\"status\":{\"type\":\"success\",\"text\":\"\"},"
+				+ "\"result\":{\"other\":{\"a\":1},\"upload_id\":\"i05e1321\"}}")));
+	}
+
+	@Test
+	void internsTagNames() throws Exception {
+		String response = "{\"result\":{\"tags\":[{\"confidence\":50,\"tag\":{\"en\":\"cat\"}}]},"
+				+ "\"status\":{\"type\":\"success\"}}";
+		String first = decoder.decodeTags(json(response), 30f).get(0).name();
+		String second = decoder.decodeTags(json(response), 30f).get(0).name();
+
+		assertSame(first, second);
+	}
+}
@@ -0,0 +1,205 @@
+package behnke19.imageTagging;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.springframework.boot.convert.DurationStyle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A local stand-in for the imagga /v2/uploads and /v2/tags apis. Every response is delayed by a configurable
+ * latency, a share of requests fail with a 500 or are throttled with a 429, and tags responses carry a fixed number
+ * of tags drawn from a zipf distribution over a synthetic vocabulary so a few tags are on most images.
+ * Run it on its own with main, settings are read from stub.* system properties.
+ */
+class ImaggaStubServer implements AutoCloseable {
+
+    /**
+     * @param latency the mean delay before each response
+     * @param jitter responses are delayed by latency plus or minus up to this much
+     * @param errorRate share of requests answered with a 500
+     * @param throttleRate share of requests answered with a 429
+     * @param tagCount tags in each tags response
+     * @param vocabulary number of distinct tags
+     */
+    record Settings(Duration latency, Duration jitter, double errorRate, double throttleRate, int tagCount,
+                    int vocabulary) {
+
+        static Settings fromSystemProperties() {
+            return new Settings(
+                    DurationStyle.detectAndParse(System.getProperty("stub.latency", "100ms")),
+                    DurationStyle.detectAndParse(System.getProperty("stub.jitter", "50ms")),
+                    Double.parseDouble(System.getProperty("stub.error-rate", "0")),
+                    Double.parseDouble(System.getProperty("stub.throttle-rate", "0")),
+                    Integer.getInteger("stub.tag-count", 20),
+                    Integer.getInteger("stub.vocabulary", 2000));
+        }
+    }
+
+    private final Settings settings;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final double[] cumulativeWeights;
+    private final LongAdder requests = new LongAdder();
+
+    ImaggaStubServer(int port, Settings settings) throws IOException {
+        this.settings = settings;
+        this.cumulativeWeights = zipfWeights(settings.vocabulary());
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.setExecutor(executor);
+        server.createContext("/v2/uploads", this::upload);
+        server.createContext("/v2/tags", this::tags);
+        server.start();
+    }
+
+    /**
+     * @return the base url to configure as imagga.stub.url
+     */
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * @param rank the popularity rank of a tag, 0 is the most common
+     * @return the name the stub uses for that tag
+     */
+    static String tagName(int rank) {
+        return "tag-" + rank;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.close();
+    }
+
+    private void upload(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (delayAndMaybeFail(exchange)) {
+                return;
+            }
+            respond(exchange, 200, "{\"result\":{\"upload_id\":\"i" + UUID.randomUUID().toString().replace("-", "")
+                    + "\"},\"status\":{\"text\":\"\",\"type\":\"success\"}}");
+        }
+    }
+
+    private void tags(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query == null || !(query.contains("image_url=") || query.contains("image_upload_id="))) {
+                respond(exchange, 400, "{\"status\":{\"text\":\"No image given\",\"type\":\"error\"}}");
+                return;
+            }
+            if (delayAndMaybeFail(exchange)) {
+                return;
+            }
+            respond(exchange, 200, tagsResponse());
+        }
+    }
+
+    /**
+     * @return true if a failure response was sent
+     */
+    private boolean delayAndMaybeFail(HttpExchange exchange) throws IOException {
+        requests.increment();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long jitter = settings.jitter().toMillis();
+        long delay = settings.latency().toMillis() + (jitter > 0 ? random.nextLong(-jitter, jitter + 1) : 0);
+        try {
+            Thread.sleep(Math.max(0, delay));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        double roll = random.nextDouble();
+        if (roll < settings.throttleRate()) {
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            respond(exchange, 429, "{\"status\":{\"text\":\"Too many requests\",\"type\":\"error\"}}");
+            return true;
+        }
+        if (roll < settings.throttleRate() + settings.errorRate()) {
+            respond(exchange, 500, "{\"status\":{\"text\":\"Internal error\",\"type\":\"error\"}}");
+            return true;
+        }
+        return false;
+    }
+
+    private String tagsResponse() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Set<Integer> ranks = new LinkedHashSet<>();
+        int tagCount = Math.min(settings.tagCount(), settings.vocabulary());
+        while (ranks.size() < tagCount) {
+            ranks.add(sample(random.nextDouble()));
+        }
+        StringBuilder json = new StringBuilder("{\"result\":{\"tags\":[");
+        // confidences run from 100 down towards the 30 threshold like real responses
+        double confidence = 100;
+        boolean first = true;
+        for (int rank : ranks) {
+            confidence -= random.nextDouble() * (70.0 / tagCount);
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"confidence\":").append(Math.max(confidence, 30))
+                    .append(",\"tag\":{\"en\":\"").append(tagName(rank)).append("\"}}");
+        }
+        return json.append("]},\"status\":{\"text\":\"\",\"type\":\"success\"}}").toString();
+    }
+
+    private int sample(double uniform) {
+        int rank = java.util.Arrays.binarySearch(cumulativeWeights, uniform);
+        return Math.min(rank < 0 ? -rank - 1 : rank, cumulativeWeights.length - 1);
+    }
+
+    private static double[] zipfWeights(int vocabulary) {
+        double[] cumulative = new double[vocabulary];
+        double total = 0;
+        for (int rank = 0; rank < vocabulary; rank++) {
+            total += 1.0 / (rank + 1);
+            cumulative[rank] = total;
+        }
+        for (int rank = 0; rank < vocabulary; rank++) {
+            cumulative[rank] /= total;
+        }
+        return cumulative;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    public static void main(String[] args) throws Exception {
+        ImaggaStubServer stub = new ImaggaStubServer(Integer.getInteger("stub.port", 8089),
+                Settings.fromSystemProperties());
+        System.out.println("Imagga stub listening on " + stub.getUrl());
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,258 @@
+package behnke19.imageTagging;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Drives a mixed workload of uploads and queries against the service and reports throughput and latency
+ * percentiles per operation. Unless load.target is set it starts the {@link ImaggaStubServer} and the application
+ * with the test profile in this JVM, so nothing outside the build is needed.
+ * <p>
+ * Settings are system properties: load.target, load.concurrency, load.warmup, load.duration, load.upload-ratio
+ * (the share of operations that are uploads), load.file-ratio (the share of uploads that send a file rather than a
+ * url), load.async and load.file-size, plus the stub.* settings of the stub server.
+ * <p>
+ * load.modes compares ways of serving requests: a comma separated list of 'platform' for tomcat's thread pool,
+ * 'virtual' for a virtual thread per request and 'reactive' for the reactive profile's WebFlux and R2DBC on netty. The
+ * reactive mode runs its blocking work on virtual threads too, so it and 'virtual' differ only in the programming
+ * model. The application is started once per mode, each with a database of its own, and the same workload is run
+ * against each.
+ */
+class LoadDriver {
+
+    enum Operation { UPLOAD_URL, UPLOAD_FILE, QUERY_OBJECTS, QUERY_PAGE }
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final String target;
+    private final double uploadRatio;
+    private final double fileRatio;
+    private final boolean async;
+    private final int fileSize;
+
+    LoadDriver(String target, double uploadRatio, double fileRatio, boolean async, int fileSize) {
+        this.target = target;
+        this.uploadRatio = uploadRatio;
+        this.fileRatio = fileRatio;
+        this.async = async;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Latencies and failures recorded by one worker, merged when the run ends.
+     */
+    private static final class Recorder {
+        private final Map<Operation, long[]> latencies = new EnumMap<>(Operation.class);
+        private final Map<Operation, Integer> counts = new EnumMap<>(Operation.class);
+        private final Map<Operation, Integer> errors = new EnumMap<>(Operation.class);
+
+        void record(Operation operation, long nanos, boolean ok) {
+            int count = counts.getOrDefault(operation, 0);
+            long[] values = latencies.computeIfAbsent(operation, key -> new long[1024]);
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+                latencies.put(operation, values);
+            }
+            values[count] = nanos;
+            counts.put(operation, count + 1);
+            if (!ok) {
+                errors.merge(operation, 1, Integer::sum);
+            }
+        }
+
+        void addTo(Recorder total) {
+            for (Map.Entry<Operation, Integer> entry : counts.entrySet()) {
+                long[] values = latencies.get(entry.getKey());
+                for (int i = 0; i < entry.getValue(); i++) {
+                    total.record(entry.getKey(), values[i], true);
+                }
+            }
+            errors.forEach((operation, count) -> total.errors.merge(operation, count, Integer::sum));
+        }
+    }
+
+    /**
+     * Run the workload until the deadline.
+     * @param concurrency the number of concurrent clients, each sending its next request as soon as the last returns
+     * @param warmup how long to run before recording
+     * @param duration how long to record for
+     * @return the report
+     */
+    String run(int concurrency, Duration warmup, Duration duration) throws Exception {
+        long start = System.nanoTime();
+        long recordFrom = start + warmup.toNanos();
+        long deadline = recordFrom + duration.toNanos();
+        List<Future<Recorder>> workers = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < concurrency; i++) {
+                workers.add(executor.submit(() -> work(recordFrom, deadline)));
+            }
+        }
+        Recorder total = new Recorder();
+        for (Future<Recorder> worker : workers) {
+            worker.get().addTo(total);
+        }
+        return report(total, concurrency, duration);
+    }
+
+    private Recorder work(long recordFrom, long deadline) {
+        Recorder recorder = new Recorder();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now;
+        while ((now = System.nanoTime()) < deadline) {
+            Operation operation;
+            if (random.nextDouble() < uploadRatio) {
+                operation = random.nextDouble() < fileRatio ? Operation.UPLOAD_FILE : Operation.UPLOAD_URL;
+            } else {
+                operation = random.nextBoolean() ? Operation.QUERY_OBJECTS : Operation.QUERY_PAGE;
+            }
+            boolean ok;
+            try {
+                int status = send(operation, random);
+                ok = status >= 200 && status < 300;
+            } catch (Exception ex) {
+                ok = false;
+            }
+            long end = System.nanoTime();
+            if (now >= recordFrom) {
+                recorder.record(operation, end - now, ok);
+            }
+        }
+        return recorder;
+    }
+
+    private int send(Operation operation, ThreadLocalRandom random) throws Exception {
+        HttpRequest request = switch (operation) {
+            case UPLOAD_URL -> upload(new MultipartBody()
+                    // a fresh url every time so the detection cache doesn't answer for imagga
+                    .addField("url", "https://images.example.com/" + UUID.randomUUID() + ".jpg", "text/plain"));
+            case UPLOAD_FILE -> {
+                byte[] content = new byte[fileSize];
+                random.nextBytes(content);
+                yield upload(new MultipartBody().addFile("file", "image.jpg", content));
+            }
+            case QUERY_OBJECTS -> {
+                // popular tags so the queries have results, in pairs to exercise the AND filter
+                String objects = ImaggaStubServer.tagName(random.nextInt(5)) + ","
+                        + ImaggaStubServer.tagName(5 + random.nextInt(20));
+                yield HttpRequest.newBuilder(URI.create(target + "/images?limit=50&objects=" + objects)).GET().build();
+            }
+            case QUERY_PAGE -> HttpRequest.newBuilder(URI.create(target + "/images?limit=100")).GET().build();
+        };
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private HttpRequest upload(MultipartBody body) {
+        // boolean parts are read as json by the controller
+        body.addField("detectObjects", "true", "application/json");
+        if (async) {
+            body.addField("async", "true", "application/json");
+        }
+        return HttpRequest.newBuilder(URI.create(target + "/images"))
+                .header("Content-Type", body.contentType())
+                .POST(body.publisher())
+                .build();
+    }
+
+    private static String report(Recorder total, int concurrency, Duration duration) {
+        double seconds = duration.toNanos() / 1e9;
+        StringBuilder report = new StringBuilder(String.format("%nconcurrency %d, %.1fs recorded%n", concurrency,
+                seconds));
+        report.append(String.format("%-14s %9s %8s %10s %10s %10s %10s %10s%n",
+                "operation", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        long all = 0;
+        for (Operation operation : Operation.values()) {
+            int count = total.counts.getOrDefault(operation, 0);
+            if (count == 0) {
+                continue;
+            }
+            all += count;
+            long[] values = Arrays.copyOf(total.latencies.get(operation), count);
+            Arrays.sort(values);
+            report.append(String.format("%-14s %9d %8d %10.1f %10.2f %10.2f %10.2f %10.2f%n",
+                    operation, count, total.errors.getOrDefault(operation, 0), count / seconds,
+                    percentile(values, 0.5), percentile(values, 0.99), percentile(values, 0.999),
+                    values[count - 1] / 1e6));
+        }
+        report.append(String.format("%-14s %9d %8s %10.1f%n", "total", all, "", all / seconds));
+        return report.toString();
+    }
+
+    /**
+     * @return the nearest-rank percentile of sorted nanos, in milliseconds
+     */
+    private static double percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    private static String run(String target) throws Exception {
+        LoadDriver driver = new LoadDriver(target,
+                Double.parseDouble(System.getProperty("load.upload-ratio", "0.2")),
+                Double.parseDouble(System.getProperty("load.file-ratio", "0.5")),
+                Boolean.getBoolean("load.async"),
+                Integer.getInteger("load.file-size", 64 * 1024));
+        return driver.run(Integer.getInteger("load.concurrency", 16),
+                DurationStyle.detectAndParse(System.getProperty("load.warmup", "5s")),
+                DurationStyle.detectAndParse(System.getProperty("load.duration", "30s")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String target = System.getProperty("load.target");
+        if (target != null) {
+            System.out.println(run(target));
+            return;
+        }
+        String modes = System.getProperty("load.modes", "");
+        // read when reactor's schedulers are first used, so it has to be set before any app is started
+        System.setProperty("reactor.schedulers.defaultBoundedElasticOnVirtualThreads", "true");
+        try (ImaggaStubServer stub = new ImaggaStubServer(0, ImaggaStubServer.Settings.fromSystemProperties())) {
+            for (String mode : modes.isBlank() ? new String[]{""} : modes.split(",")) {
+                mode = mode.trim();
+                // passed as arguments because default properties would lose to the test profile
+                List<String> appArgs = new ArrayList<>(List.of(args));
+                appArgs.add("--server.port=0");
+                appArgs.add("--imagga.stub.url=" + stub.getUrl());
+                List<String> profiles = new ArrayList<>(List.of("test"));
+                if (!mode.isEmpty()) {
+                    if (!mode.equals("platform") && !mode.equals("virtual") && !mode.equals("reactive")) {
+                        throw new IllegalArgumentException(
+                                "load.modes must list 'platform', 'virtual' or 'reactive', not " + mode);
+                    }
+                    appArgs.add("--spring.threads.virtual.enabled=" + !mode.equals("platform"));
+                    // a database per mode so the later runs don't query the images uploaded by the earlier ones
+                    String database = "load-" + mode + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+                    appArgs.add("--spring.datasource.url=jdbc:h2:mem:" + database);
+                    if (mode.equals("reactive")) {
+                        // the test profile comes last so its settings still win
+                        profiles.addFirst("reactive");
+                        appArgs.add("--spring.main.web-application-type=reactive");
+                        appArgs.add("--imageTagging.r2dbc.url=r2dbc:h2:mem:///" + database.replaceFirst(";", "?options="));
+                    }
+                }
+                try (ConfigurableApplicationContext app = new SpringApplicationBuilder(ImageTaggingApplication.class)
+                        .profiles(profiles.toArray(new String[0]))
+                        .run(appArgs.toArray(new String[0]))) {
+                    String report = run("http://localhost:" + app.getEnvironment().getProperty("local.server.port"));
+                    System.out.println(mode.isEmpty() ? report : "\n" + mode + report);
+                }
+            }
+        }
+    }
+}
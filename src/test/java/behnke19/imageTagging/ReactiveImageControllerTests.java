@@ -0,0 +1,183 @@
+package behnke19.imageTagging;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// the test profile comes last so its database and imagga settings win over the reactive profile's
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		properties = "spring.main.web-application-type=reactive")
+@ActiveProfiles({"reactive", "test"})
+class ReactiveImageControllerTests {
+
+	private static final ImaggaStubServer stub = startStub();
+
+	@Autowired
+	WebTestClient client;
+	@Autowired
+	ImageRepository repository;
+	@LocalServerPort
+	int port;
+
+	private static ImaggaStubServer startStub() {
+		try {
+			return new ImaggaStubServer(0, new ImaggaStubServer.Settings(Duration.ofMillis(10), Duration.ZERO, 0, 0,
+					5, 50));
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	@DynamicPropertySource
+	static void imagga(DynamicPropertyRegistry registry) {
+		registry.add("imagga.stub.url", stub::getUrl);
+	}
+
+	@AfterAll
+	static void stopStub() {
+		stub.close();
+	}
+
+	/**
+	 * The parts of an image's JSON the tests look at.
+	 */
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	record SavedImage(long id, String label, DetectionStatus detectionStatus, List<String> detectedObjects,
+					  String contentHash, Long contentLength) {}
+
+	private WebTestClient.ResponseSpec upload(MultipartBodyBuilder body) {
+		return client.post().uri("/images")
+				.contentType(MediaType.MULTIPART_FORM_DATA)
+				.body(BodyInserters.fromMultipartData(body.build()))
+				.exchange();
+	}
+
+	private long uploadUrl(String label) {
+		MultipartBodyBuilder body = new MultipartBodyBuilder();
+		body.part("label", label);
+		body.part("url", "https://images.example.com/" + UUID.randomUUID() + ".jpg");
+		SavedImage image = upload(body).expectStatus().isOk()
+				.expectBody(SavedImage.class).returnResult().getResponseBody();
+		assertEquals(label, image.label());
+		assertEquals(DetectionStatus.NONE, image.detectionStatus());
+		return image.id();
+	}
+
+	@Test
+	void uploadsAFileAndDetectsItsObjects() {
+		byte[] content = new byte[200_000];
+		ThreadLocalRandom.current().nextBytes(content);
+		MultipartBodyBuilder body = new MultipartBodyBuilder();
+		body.part("file", content).filename("image.jpg").contentType(MediaType.IMAGE_JPEG);
+		body.part("detectObjects", "true");
+
+		SavedImage image = upload(body).expectStatus().isOk()
+				.expectBody(SavedImage.class).returnResult().getResponseBody();
+
+		assertEquals(DetectionStatus.COMPLETE, image.detectionStatus());
+		assertEquals(5, image.detectedObjects().size());
+		assertEquals(content.length, image.contentLength());
+		assertEquals(DetectionCache.sha256(content), image.contentHash());
+		client.get().uri("/images/" + image.id() + "/content").exchange()
+				.expectStatus().isOk()
+				.expectHeader().valueEquals(HttpHeaders.ETAG, "\"" + image.contentHash() + "\"")
+				.expectBody(byte[].class).isEqualTo(content);
+		client.get().uri("/images/" + image.id() + "/content").header(HttpHeaders.RANGE, "bytes=100-109").exchange()
+				.expectStatus().isEqualTo(206)
+				.expectBody(byte[].class).isEqualTo(Arrays.copyOfRange(content, 100, 110));
+	}
+
+	@Test
+	void detectsObjectsInTheBackground() throws InterruptedException {
+		MultipartBodyBuilder body = new MultipartBodyBuilder();
+		body.part("url", "https://images.example.com/" + UUID.randomUUID() + ".jpg");
+		body.part("detectObjects", "true");
+		body.part("async", "true");
+
+		DetectionJob job = upload(body).expectStatus().isAccepted()
+				.expectBody(DetectionJob.class).returnResult().getResponseBody();
+		assertEquals(DetectionStatus.PENDING, job.status());
+
+		long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+		DetectionJob status = job;
+		while (status.status() == DetectionStatus.PENDING && System.nanoTime() < deadline) {
+			Thread.sleep(20);
+			status = client.get().uri("/images/" + job.imageId() + "/detection").exchange()
+					.expectStatus().isOk().expectBody(DetectionJob.class).returnResult().getResponseBody();
+		}
+		assertEquals(DetectionStatus.COMPLETE, status.status());
+		assertEquals(5, status.detectedObjects().size());
+	}
+
+	@Test
+	void pagesThroughImagesSavedByEitherMode() {
+		// ids handed out by hibernate and by the reactive repository come from the same sequence
+		long first = repository.save(new Image("jpa")).getId();
+		List<Long> ids = List.of(first, uploadUrl("reactive 1"), uploadUrl("reactive 2"));
+		assertEquals(3, ids.stream().distinct().count());
+		List<Long> sorted = ids.stream().sorted().toList();
+
+		client.get().uri("/images?after={after}&limit=2", sorted.getFirst() - 1).accept(MediaType.APPLICATION_JSON)
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().valueEquals(HttpHeaders.LINK, "<http://localhost:" + port + "/images?after="
+						+ sorted.get(1) + "&limit=2>; rel=\"next\"")
+				.expectBody()
+				.jsonPath("$.length()").isEqualTo(2)
+				.jsonPath("$[0].id").isEqualTo(sorted.get(0))
+				.jsonPath("$[1].id").isEqualTo(sorted.get(1));
+		client.get().uri("/images?after={after}&limit=2", sorted.get(1)).accept(MediaType.APPLICATION_JSON)
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().doesNotExist(HttpHeaders.LINK)
+				.expectBody()
+				.jsonPath("$.length()").isEqualTo(1)
+				.jsonPath("$[0].id").isEqualTo(sorted.get(2));
+	}
+
+	@Test
+	void answersConditionalRequestsForAnImage() {
+		long id = uploadUrl("conditional");
+
+		String etag = client.get().uri("/images/" + id).exchange()
+				.expectStatus().isOk()
+				.expectHeader().cacheControl(CacheControl.noCache())
+				.expectBody().jsonPath("$.label").isEqualTo("conditional")
+				.returnResult().getResponseHeaders().getETag();
+		assertNotNull(etag);
+		client.get().uri("/images/" + id).header(HttpHeaders.IF_NONE_MATCH, etag).exchange()
+				.expectStatus().isNotModified();
+		client.get().uri("/images/" + Long.MAX_VALUE).exchange()
+				.expectStatus().isNotFound();
+	}
+
+	@Test
+	void rejectsAnUploadWithoutAnImage() {
+		MultipartBodyBuilder body = new MultipartBodyBuilder();
+		body.part("label", "nothing");
+
+		upload(body).expectStatus().isBadRequest();
+	}
+}
@@ -0,0 +1,151 @@
+package behnke19.imageTagging;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+		"imageTagging.retag.chunk-size=2",
+		"imageTagging.retag.permits-per-second=50"})
+@ActiveProfiles("test")
+class RetagJobTests {
+
+	private static final ImaggaStubServer stub = startStub();
+
+	@Autowired
+	RetagJob job;
+	@Autowired
+	ImageRepository repository;
+	@Autowired
+	TagDictionary tagDictionary;
+	@Autowired
+	DetectionWorker detectionWorker;
+	@Autowired
+	TransactionTemplate transactionTemplate;
+
+	private static ImaggaStubServer startStub() {
+		try {
+			return new ImaggaStubServer(0, new ImaggaStubServer.Settings(Duration.ofMillis(200), Duration.ZERO, 0, 0,
+					5, 50));
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	@DynamicPropertySource
+	static void imagga(DynamicPropertyRegistry registry) {
+		registry.add("imagga.stub.url", stub::getUrl);
+	}
+
+	@AfterAll
+	static void stopStub() {
+		stub.close();
+	}
+
+	private long saveUrlImage(DetectionStatus status, String... tags) {
+		Image image = new Image("retag");
+		image.setImageUrl("http://images.example.com/" + UUID.randomUUID() + ".jpg");
+		image.setDetectionStatus(status);
+		for (String tag : tags) {
+			image.addDetectedObject(tagDictionary.resolve(tag), 90f);
+		}
+		return repository.save(image).getId();
+	}
+
+	private JobCheckpoint awaitStopped() throws InterruptedException {
+		long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+		while (System.nanoTime() < deadline) {
+			JobCheckpoint checkpoint = job.status().orElseThrow();
+			if (checkpoint.getState() != JobCheckpoint.State.RUNNING) {
+				return checkpoint;
+			}
+			Thread.sleep(20);
+		}
+		fail("The re-tagging job didn't stop");
+		return null;
+	}
+
+	private Image load(long id) {
+		return transactionTemplate.execute(status -> {
+			Image image = repository.findById(id).orElseThrow();
+			image.getTags();
+			return image;
+		});
+	}
+
+	@Test
+	void tagsUntaggedImagesAndLeavesTaggedOnesAlone() throws Exception {
+		List<Long> untagged = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			untagged.add(saveUrlImage(DetectionStatus.NONE));
+		}
+		untagged.add(saveUrlImage(DetectionStatus.FAILED));
+		long tagged = saveUrlImage(DetectionStatus.COMPLETE, "old");
+
+		job.start(JobCheckpoint.Scope.UNTAGGED);
+		JobCheckpoint checkpoint = awaitStopped();
+
+		assertEquals(JobCheckpoint.State.COMPLETE, checkpoint.getState());
+		assertTrue(checkpoint.getTagged() >= untagged.size());
+		for (long id : untagged) {
+			Image image = load(id);
+			assertEquals(DetectionStatus.COMPLETE, image.getDetectionStatus());
+			assertEquals(5, image.getDetectedObjects().size());
+		}
+		assertEquals(List.of("old"), load(tagged).getDetectedObjects());
+	}
+
+	@Test
+	void tagsImagesLeftPendingByThePreviousRun() throws Exception {
+		long abandoned = saveUrlImage(DetectionStatus.PENDING);
+
+		detectionWorker.resetAbandonedDetections();
+		assertEquals(DetectionStatus.NONE, load(abandoned).getDetectionStatus());
+		job.start(JobCheckpoint.Scope.UNTAGGED);
+
+		assertEquals(JobCheckpoint.State.COMPLETE, awaitStopped().getState());
+		Image image = load(abandoned);
+		assertEquals(DetectionStatus.COMPLETE, image.getDetectionStatus());
+		assertEquals(5, image.getDetectedObjects().size());
+	}
+
+	@Test
+	void pausesAndResumesFromItsCheckpoint() throws Exception {
+		List<Long> ids = new ArrayList<>();
+		// each chunk waits 200ms on the stub, so the pause lands long before the last of them
+		for (int i = 0; i < 10; i++) {
+			ids.add(saveUrlImage(DetectionStatus.COMPLETE, "old"));
+		}
+
+		job.start(JobCheckpoint.Scope.ALL);
+		job.pause();
+		JobCheckpoint paused = awaitStopped();
+		assertEquals(JobCheckpoint.State.PAUSED, paused.getState());
+		assertTrue(paused.getLastImageId() < ids.getLast());
+		JobCheckpoint resumed = job.resume();
+		assertEquals(paused.getLastImageId(), resumed.getLastImageId());
+		assertThrows(IllegalStateException.class, () -> job.start(JobCheckpoint.Scope.ALL));
+		JobCheckpoint finished = awaitStopped();
+
+		assertEquals(JobCheckpoint.State.COMPLETE, finished.getState());
+		for (long id : ids) {
+			List<String> objects = load(id).getDetectedObjects();
+			assertEquals(5, objects.size());
+			assertFalse(objects.contains("old"));
+		}
+	}
+}
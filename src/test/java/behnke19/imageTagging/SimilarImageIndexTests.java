@@ -0,0 +1,114 @@
+package behnke19.imageTagging;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SimilarImageIndexTests {
+
+	@TempDir
+	Path dir;
+
+	private final ImageScaler scaler = new ImageScaler(1 << 24);
+
+	private static SimilarImageIndex index(long... hashes) {
+		// the database and stores are only used to load and backfill at startup
+		SimilarImageIndex index = new SimilarImageIndex(null, null, null, null);
+		for (int i = 0; i < hashes.length; i++) {
+			index.onImageSaved(new ImageSavedEvent((long) i + 1, List.of(), hashes[i]));
+		}
+		return index;
+	}
+
+	@Test
+	void findsHashesWithinDistanceClosestFirst() {
+		SimilarImageIndex index = index(0b0000L, 0b0001L, 0b0111L, 0b1111_1111L, 0b0001L, -1L);
+
+		assertEquals(List.of(new SimilarImageIndex.Match(1, 0), new SimilarImageIndex.Match(2, 1),
+				new SimilarImageIndex.Match(5, 1)), index.find(0, 2));
+		assertEquals(List.of(new SimilarImageIndex.Match(6, 0)), index.find(-1L, 10));
+		assertEquals(5, index.find(0b0011L, 8).size());
+	}
+
+	@Test
+	void matchesBruteForceSearch() {
+		Random random = new Random(42);
+		long[] hashes = new long[2000];
+		for (int i = 0; i < hashes.length; i++) {
+			// flip a few bits of a handful of base hashes so there are clusters to find
+			hashes[i] = (i % 7 * 0x9E3779B97F4A7C15L) ^ (1L << random.nextInt(64)) ^ (1L << random.nextInt(64));
+		}
+		SimilarImageIndex index = index(hashes);
+
+		for (int query = 0; query < 50; query++) {
+			long hash = hashes[random.nextInt(hashes.length)] ^ (1L << random.nextInt(64));
+			long expected = 0;
+			for (long other : hashes) {
+				if (SimilarImageIndex.distance(hash, other) <= 5) {
+					expected++;
+				}
+			}
+			assertEquals(expected, index.find(hash, 5).size());
+		}
+	}
+
+	@Test
+	void resizedCopiesHashCloseAndOtherImagesDont() throws Exception {
+		BufferedImage original = shapes(800, 600, 1);
+		Path originalFile = write(original, "png", "original.png");
+		Path smallFile = write(resize(original, 200, 150), "jpg", "small.jpg");
+		Path otherFile = write(shapes(800, 600, 2), "png", "other.png");
+
+		long hash = scaler.differenceHash(originalFile, 1, TimeUnit.SECONDS).orElseThrow();
+		long smallHash = scaler.differenceHash(smallFile, 1, TimeUnit.SECONDS).orElseThrow();
+		long otherHash = scaler.differenceHash(otherFile, 1, TimeUnit.SECONDS).orElseThrow();
+
+		assertTrue(SimilarImageIndex.distance(hash, smallHash) <= 4);
+		assertTrue(SimilarImageIndex.distance(hash, otherHash) > 10);
+	}
+
+	@Test
+	void filesThatArentImagesHaveNoHash() throws Exception {
+		Path file = dir.resolve("notes.txt");
+		Files.writeString(file, "not an image");
+
+		assertTrue(scaler.differenceHash(file, 1, TimeUnit.SECONDS).isEmpty());
+	}
+
+	private static BufferedImage shapes(int width, int height, long seed) {
+		Random random = new Random(seed);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		for (int i = 0; i < 12; i++) {
+			graphics.setColor(new Color(random.nextInt(0xFFFFFF)));
+			graphics.fillOval(random.nextInt(width), random.nextInt(height), width / 3, height / 3);
+		}
+		graphics.dispose();
+		return image;
+	}
+
+	private static BufferedImage resize(BufferedImage image, int width, int height) {
+		BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = resized.createGraphics();
+		graphics.drawImage(image.getScaledInstance(width, height, java.awt.Image.SCALE_SMOOTH), 0, 0, null);
+		graphics.dispose();
+		return resized;
+	}
+
+	private Path write(BufferedImage image, String format, String name) throws Exception {
+		Path file = dir.resolve(name);
+		ImageIO.write(image, format, file.toFile());
+		return file;
+	}
+}
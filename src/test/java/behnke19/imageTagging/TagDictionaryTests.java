@@ -0,0 +1,34 @@
+package behnke19.imageTagging;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class TagDictionaryTests {
+
+	@Autowired
+	TagDictionary tagDictionary;
+	@Autowired
+	TagRepository tagRepository;
+	@Autowired
+	TransactionTemplate transactionTemplate;
+
+	@Test
+	void aNewTagOutlivesTheRollbackOfTheTransactionThatResolvedIt() {
+		Tag resolved = transactionTemplate.execute(status -> {
+			Tag tag = tagDictionary.resolve("rolled-back-tag");
+			status.setRollbackOnly();
+			return tag;
+		});
+
+		assertNotNull(resolved.getId());
+		assertEquals(resolved.getId(), tagRepository.findByName("rolled-back-tag").orElseThrow().getId());
+		assertSame(resolved, tagDictionary.resolve("rolled-back-tag"));
+	}
+}
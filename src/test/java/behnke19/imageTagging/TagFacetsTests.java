@@ -0,0 +1,52 @@
+package behnke19.imageTagging;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TagFacetsTests {
+
+	private TagIndex index;
+	private TagFacets facets;
+
+	@BeforeEach
+	void setup() {
+		index = new TagIndex(null);
+		facets = new TagFacets(null, null, index, Duration.ofMinutes(1), new SimpleMeterRegistry());
+		index.setApplicationEventPublisher(event -> facets.onTagsChanged((ImageTagsChangedEvent) event));
+		index.onImageSaved(new ImageSavedEvent(1L, List.of("cat", "hat")));
+		index.onImageSaved(new ImageSavedEvent(2L, List.of("cat")));
+		index.onImageSaved(new ImageSavedEvent(3L, List.of("cat", "hat", "bat")));
+		index.onImageSaved(new ImageSavedEvent(4L, List.of()));
+	}
+
+	@Test
+	void countsTagsAndPairs() {
+		assertEquals(List.of(new TagCount("cat", 3), new TagCount("hat", 2)), facets.top(2));
+		assertEquals(new FacetCounts(3, List.of(new TagCount("cat", 3), new TagCount("hat", 2),
+				new TagCount("bat", 1))), facets.facets(Set.of(), 10));
+		assertEquals(new FacetCounts(2, List.of(new TagCount("cat", 2), new TagCount("bat", 1))),
+				facets.facets(Set.of("hat"), 10));
+		assertEquals(new FacetCounts(2, List.of(new TagCount("bat", 1))), facets.facets(Set.of("hat", "cat"), 10));
+		assertEquals(new FacetCounts(0, List.of()), facets.facets(Set.of("dog"), 10));
+	}
+
+	@Test
+	void adjustsCountsWhenTagsChange() {
+		index.onImageSaved(new ImageSavedEvent(3L, List.of("hat", "dog")));
+		index.onImageSaved(new ImageSavedEvent(1L, List.of()));
+
+		assertEquals(List.of(new TagCount("cat", 1), new TagCount("dog", 1), new TagCount("hat", 1)),
+				facets.top(10));
+		assertEquals(new FacetCounts(1, List.of(new TagCount("dog", 1))), facets.facets(Set.of("hat"), 10));
+		assertEquals(new FacetCounts(0, List.of()), facets.facets(Set.of("bat"), 10));
+		assertEquals(new FacetCounts(2, List.of(new TagCount("cat", 1), new TagCount("dog", 1),
+				new TagCount("hat", 1))), facets.facets(Set.of(), 10));
+	}
+}
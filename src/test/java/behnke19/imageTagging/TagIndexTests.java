@@ -0,0 +1,47 @@
+package behnke19.imageTagging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class TagIndexTests {
+
+	@Test
+	void findsImagesContainingAllObjects() {
+		TagIndex index = new TagIndex(null);
+		index.onImageSaved(new ImageSavedEvent(1L, List.of("cat", "hat")));
+		index.onImageSaved(new ImageSavedEvent(2L, List.of("cat")));
+		index.onImageSaved(new ImageSavedEvent(3L, List.of("cat", "hat", "bat")));
+
+		assertArrayEquals(new long[]{1, 2, 3}, index.findContainingAll(List.of("cat")));
+		assertArrayEquals(new long[]{1, 3}, index.findContainingAll(List.of("cat", "hat")));
+		assertArrayEquals(new long[]{3}, index.findContainingAll(List.of("hat", "bat", "cat")));
+		assertArrayEquals(new long[0], index.findContainingAll(List.of("cat", "dog")));
+	}
+
+	@Test
+	void resavingAnImageReplacesItsObjects() {
+		TagIndex index = new TagIndex(null);
+		index.onImageSaved(new ImageSavedEvent(1L, List.of()));
+		index.onImageSaved(new ImageSavedEvent(1L, List.of("cat", "hat")));
+		index.onImageSaved(new ImageSavedEvent(1L, List.of("cat")));
+
+		assertArrayEquals(new long[]{1}, index.findContainingAll(List.of("cat")));
+		assertArrayEquals(new long[0], index.findContainingAll(List.of("hat")));
+	}
+
+	@Test
+	void intersectsListsOfVeryDifferentSizes() {
+		long[] small = {5, 500, 999, 2000};
+		long[] large = new long[1000];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = i;
+		}
+		int size = TagIndex.intersect(small, small.length, large, large.length);
+		assertArrayEquals(new long[]{5, 500, 999}, Arrays.copyOf(small, size));
+	}
+
+}
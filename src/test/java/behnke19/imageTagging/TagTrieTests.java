@@ -0,0 +1,56 @@
+package behnke19.imageTagging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagTrieTests {
+
+	@Test
+	void completesPrefixesMostCommonFirst() {
+		TagTrie trie = new TagTrie();
+		trie.put("cat", 5);
+		trie.put("car", 9);
+		trie.put("carpet", 2);
+		trie.put("cart", 7);
+		trie.put("dog", 20);
+
+		assertEquals(List.of(new TagCount("car", 9), new TagCount("cart", 7), new TagCount("cat", 5),
+				new TagCount("carpet", 2)), trie.complete("ca", 10));
+		assertEquals(List.of(new TagCount("car", 9), new TagCount("cart", 7)), trie.complete("car", 2));
+		assertEquals(List.of(new TagCount("dog", 20)), trie.complete("", 1));
+		assertEquals(List.of(), trie.complete("cow", 10));
+		assertEquals(5, trie.size());
+	}
+
+	@Test
+	void updatesCountsAndRemovesUnusedTags() {
+		TagTrie trie = new TagTrie();
+		trie.put("car", 9);
+		trie.put("cart", 7);
+		trie.put("car", 0);
+		trie.put("cat", 8);
+
+		assertEquals(List.of(new TagCount("cat", 8), new TagCount("cart", 7)), trie.complete("ca", 10));
+		trie.put("cart", 0);
+		trie.put("cat", 0);
+		assertEquals(List.of(), trie.complete("", 10));
+		assertEquals(0, trie.size());
+		trie.put("cow", 0);
+		assertEquals(0, trie.size());
+	}
+
+	@Test
+	void followsTheTagIndex() {
+		TagIndex index = new TagIndex(null);
+		index.onImageSaved(new ImageSavedEvent(1L, List.of("cat", "hat")));
+		index.onImageSaved(new ImageSavedEvent(2L, List.of("cat")));
+		index.onImageSaved(new ImageSavedEvent(3L, List.of("cat", "hat", "car")));
+		assertEquals(List.of(new TagCount("cat", 3), new TagCount("car", 1)), index.complete("ca", 10));
+
+		index.onImageSaved(new ImageSavedEvent(3L, List.of("hat")));
+		assertEquals(List.of(new TagCount("cat", 2), new TagCount("hat", 2)), index.complete("", 10));
+	}
+}
@@ -0,0 +1,70 @@
+package behnke19.imageTagging;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThumbnailStoreTests {
+
+	@TempDir
+	Path dir;
+
+	private ImageContentStore contentStore;
+	private ThumbnailStore thumbnailStore;
+
+	private ThumbnailStore store() {
+		contentStore = new ImageContentStore(dir.resolve("content").toString());
+		return new ThumbnailStore(dir.resolve("thumbs").toString(), List.of(64, 128), 0.8f, 1, contentStore,
+				new ImageScaler(1 << 20), new SimpleMeterRegistry());
+	}
+
+	private String storePng(int width, int height) throws Exception {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return contentStore.store(out.toByteArray());
+	}
+
+	@Test
+	void generatesThumbnailsOnFirstRequest() throws Exception {
+		thumbnailStore = store();
+		String hash = storePng(400, 200);
+
+		Optional<Path> thumbnail = thumbnailStore.get(hash, 128);
+		assertTrue(thumbnail.isPresent());
+		assertEquals(thumbnailStore.path(hash, 128), thumbnail.get());
+		BufferedImage scaled = ImageIO.read(thumbnail.get().toFile());
+		assertEquals(128, scaled.getWidth());
+		assertEquals(64, scaled.getHeight());
+		assertFalse(Files.exists(thumbnailStore.path(hash, 64)));
+	}
+
+	@Test
+	void neverScalesUp() throws Exception {
+		thumbnailStore = store();
+		String hash = storePng(50, 20);
+
+		BufferedImage thumbnail = ImageIO.read(thumbnailStore.get(hash, 128).orElseThrow().toFile());
+		assertEquals(50, thumbnail.getWidth());
+		assertEquals(20, thumbnail.getHeight());
+	}
+
+	@Test
+	void rejectsUnknownSizesAndUnreadableContent() throws Exception {
+		thumbnailStore = store();
+		String hash = contentStore.store("not an image".getBytes());
+
+		assertThrows(IllegalArgumentException.class, () -> thumbnailStore.get(hash, 100));
+		assertTrue(thumbnailStore.get(hash, 64).isEmpty());
+	}
+}